@@ -7,22 +7,23 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
 
 /**
  * Created by eduardo on 4/29/16.
@@ -32,25 +33,36 @@ public class AfterFlightActivity extends Activity {
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    // Flight Statistics first logs how analysis scales with worker count, cold and cached.
+    public static final String EXTRAS_BENCHMARK_STATISTICS = "BENCHMARK_STATISTICS";
 
     // An array of floats that will hold the barometer values
     private static int ARR_SIZE = 30;
     public static float[] baroValues = new float[ARR_SIZE];
+    // When each barometer value was sampled and received, in elapsedRealtimeNanos()
+    public static long[] sampleTimes = new long[ARR_SIZE];
+    public static long[] rxTimes = new long[ARR_SIZE];
     public static int index = 0;
 
+    private static final int MAX_COMPARED_FLIGHTS = 10;
+    private static final long APOGEE_WINDOW_NS = 10000000000L;
+
     private TextView mConnectionState;
     private TextView mDataField;
     private String mDeviceName;
     private String mDeviceAddress;
     private BluetoothLeService mBluetoothLeService;
-    private boolean mConnected = false;
 
 
     private Button mGetData;
     private Button mGraphData;
     private Button mCurrentData;
+    private Button mCompareFlights;
+    private Button mFlightStatistics;
 
-    private Map<UUID, BluetoothGattCharacteristic> map = new HashMap<UUID, BluetoothGattCharacteristic>();
+    // Live readout and the decimated stream for baroValues, while resumed and bound.
+    private TelemetrySubscription mReadout;
+    private TelemetrySubscription mGraphStream;
 
 
     // Code to manage Service lifecycle.
@@ -65,37 +77,49 @@ public class AfterFlightActivity extends Activity {
             }
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            subscribeTelemetry();
+            followConnectionState();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mReadout = mGraphStream = null;
             mBluetoothLeService = null;
         }
     };
 
+    // Follows the service's link state while resumed and bound.
+    private final ConnectionState.Listener mConnectionListener = new ConnectionState.Listener() {
+        @Override
+        public void onStateChanged(int from, final int to) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    showConnectionState(to);
+                }
+            });
+        }
+    };
+
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-                updateConnectionState(R.string.connected);
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                invalidateOptionsMenu();
-                clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+            if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
 
                 // Show all the supported services and characteristics on the user interface.
                 //displayGattServices(mBluetoothLeService.getSupportedGattServices());
                 getGattService(mBluetoothLeService.getSupportedGattService());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-
-                // Displays the data from the RX Characteristic
-                //displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
-                displayData(intent.getByteArrayExtra(BluetoothLeService.EXTRA_DATA));
+            } else if (BluetoothLeService.ACTION_FLIGHT_DIRECTORY.equals(action)) {
+                downloadLatestFlight();
+            } else if (BluetoothLeService.ACTION_FLIGHT_DOWNLOADED.equals(action)) {
+                final boolean complete =
+                        intent.getBooleanExtra(BluetoothLeService.EXTRA_DOWNLOAD_COMPLETE, false);
+                final String name =
+                        intent.getStringExtra(BluetoothLeService.EXTRA_FLIGHT_FILE);
+                Toast.makeText(AfterFlightActivity.this,
+                        (complete ? "Downloaded " : "Partly downloaded ") + name,
+                        Toast.LENGTH_SHORT).show();
             }
         }
     };
@@ -122,21 +146,10 @@ public class AfterFlightActivity extends Activity {
         mGetData.setOnClickListener(new View.OnClickListener(){
             @Override
             public void onClick(View v) {
-                Log.w(TAG, "Sending READ command");
-                BluetoothGattCharacteristic txChar = map.get(BluetoothLeService.UUID_BLE_TX);
-
-                byte b = 0x00;
-                byte[] temp = "read".getBytes();
-                byte[] tx = new byte[temp.length + 1];
-                tx[0] = b;
-
-                for (int i = 1; i < temp.length + 1; i++) {
-
-                    tx[i] = temp[i - 1];
-                }
-
-                txChar.setValue(tx);
-                mBluetoothLeService.writeCharacteristic(txChar);
+                // Only the parts of the latest flight not stored yet are fetched, once the
+                // directory arrives.
+                Log.w(TAG, "Requesting flight directory");
+                mBluetoothLeService.requestFlightDirectory();
             }
         });
 
@@ -160,6 +173,26 @@ public class AfterFlightActivity extends Activity {
             }
         });
 
+        mCompareFlights = (Button) findViewById(R.id.compare_flights);
+        mCompareFlights.setOnClickListener(new View.OnClickListener(){
+
+            @Override
+            public void onClick(View v) {
+
+                compareFlights(v);
+            }
+        });
+
+        mFlightStatistics = (Button) findViewById(R.id.flight_statistics);
+        mFlightStatistics.setOnClickListener(new View.OnClickListener(){
+
+            @Override
+            public void onClick(View v) {
+
+                flightStatistics();
+            }
+        });
+
         /*GraphView graph = (GraphView) findViewById(R.id.graph_points);
 
         LineGraphSeries<DataPoint> series = new LineGraphSeries<DataPoint>(new DataPoint[] {
@@ -185,11 +218,15 @@ public class AfterFlightActivity extends Activity {
     protected void onResume() {
         super.onResume();
 
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        registerReceiver(mGattUpdateReceiver, BluetoothLeService.makeGattUpdateIntentFilter(
+                BluetoothLeService.ACTION_FLIGHT_DIRECTORY,
+                BluetoothLeService.ACTION_FLIGHT_DOWNLOADED));
 
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
+            subscribeTelemetry();
+            followConnectionState();
         }
     }
 
@@ -198,6 +235,14 @@ public class AfterFlightActivity extends Activity {
         super.onPause();
 
         unregisterReceiver(mGattUpdateReceiver);
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.getConnectionState().removeListener(mConnectionListener);
+            if (mReadout != null) {
+                mBluetoothLeService.unsubscribe(mReadout);
+                mBluetoothLeService.unsubscribe(mGraphStream);
+            }
+        }
+        mReadout = mGraphStream = null;
     }
 
     @Override
@@ -211,7 +256,7 @@ public class AfterFlightActivity extends Activity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.gatt_services, menu);
-        if (mConnected) {
+        if (mBluetoothLeService != null && mBluetoothLeService.getConnectionState().isLinkUp()) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
         } else {
@@ -242,6 +287,9 @@ public class AfterFlightActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_replay:
+                replayLatestFlight();
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -250,13 +298,34 @@ public class AfterFlightActivity extends Activity {
     }
 
 
-    private void updateConnectionState(final int resourceId) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mConnectionState.setText(resourceId);
-            }
-        });
+    private void followConnectionState() {
+        final ConnectionState state = mBluetoothLeService.getConnectionState();
+        state.addListener(mConnectionListener);
+        showConnectionState(state.get());
+    }
+
+    private void showConnectionState(int state) {
+        final boolean connected = ConnectionState.isLinkUp(state);
+        mConnectionState.setText(connected ? R.string.connected : R.string.disconnected);
+        invalidateOptionsMenu();
+        if (!connected) {
+            clearUI();
+        }
+    }
+
+    private void replayLatestFlight() {
+
+        final File log = FlightLog.latest(this);
+        if (log == null) {
+            Toast.makeText(this, "No recorded flight to replay", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (mBluetoothLeService.startReplay(log, 1.0)) {
+            Toast.makeText(this, "Replaying " + log.getName(), Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, "Disconnect from the altimeter to replay a flight",
+                    Toast.LENGTH_LONG).show();
+        }
     }
 
     private void getGattService(BluetoothGattService gattService) {
@@ -267,9 +336,6 @@ public class AfterFlightActivity extends Activity {
             return;
         }
 
-        BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(BluetoothLeService.UUID_BLE_TX);
-        map.put(characteristic.getUuid(), characteristic);
-
         BluetoothGattCharacteristic characteristicRx = gattService.getCharacteristic(BluetoothLeService.UUID_BLE_RX);
 
         if (characteristicRx == null) {
@@ -282,32 +348,82 @@ public class AfterFlightActivity extends Activity {
     }
 
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
+    // Fetches the window around apogee first, so the interesting part can be looked at while
+    // the rest of the flight follows.
+    private void downloadLatestFlight() {
+        final List<FlightDownloader.Entry> flights = mBluetoothLeService.getFlightDirectory();
+        final FlightDownloader downloader = mBluetoothLeService.getDownloader();
+        if (flights.isEmpty() || downloader == null) {
+            Toast.makeText(this, "No flights on the altimeter", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final FlightDownloader.Entry latest = flights.get(flights.size() - 1);
+        Log.i(TAG, "Downloading " + latest);
+        downloader.downloadApogee(latest, APOGEE_WINDOW_NS);
+        downloader.downloadAll(latest);
     }
 
+    private void subscribeTelemetry() {
+        if (mReadout != null) {
+            return;
+        }
+        mReadout = TelemetrySubscription.readout(TAG, new TelemetrySubscription.Listener() {
+            @Override
+            public void onTelemetry(TelemetrySnapshot snapshot) {
+                displayData((float) snapshot.filtered[TelemetrySchema.CHANNEL_PRESSURE]);
+            }
+        });
+        // Keeps the decimated stream for the after-flight graph
+        mGraphStream = new TelemetrySubscription(TAG + " graph",
+                new TelemetrySubscription.Listener() {
+                    @Override
+                    public void onTelemetry(TelemetrySnapshot snapshot) {
+                        recordData(snapshot.value, snapshot.sampleTimeNs, snapshot.rxTimeNs);
+                    }
+                }).channels(TelemetrySchema.CHANNEL_PRESSURE)
+                .decimation(BluetoothLeService.GRAPH_DECIMATION)
+                .queue(TelemetryChannel.POLICY_DROP_OLDEST, ARR_SIZE)
+                .deliverOn(new Handler(Looper.getMainLooper()));
+        restoreData(mBluetoothLeService.getRecordingLog());
+        mBluetoothLeService.subscribe(mReadout);
+        mBluetoothLeService.subscribe(mGraphStream);
+    }
 
+    // After the process died mid-session the static arrays start empty; refill them from the
+    // start of the session's log, decimated as the live stream is.  Receive times are not
+    // logged, so the refilled samples show no latency.
+    private void restoreData(File log) {
+        if (index > 0 || log == null) {
+            return;
+        }
+        final int decimation = BluetoothLeService.GRAPH_DECIMATION;
+        final long[] times = new long[ARR_SIZE * decimation];
+        final float[] values = new float[ARR_SIZE * decimation];
+        try {
+            final int n = FlightLog.read(log, 0, times.length, times, values);
+            for (int i = 0; i < n; i += decimation) {
+                recordData(values[i], times[i], times[i]);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to restore samples from " + log, e);
+        }
+    }
 
-    public void displayData(byte[] byteArray) {
 
-        float value = 0;
 
-        if (byteArray != null) {
+    public void displayData(float value) {
 
-            //float value = ByteBuffer.wrap(byteArray).order(ByteOrder.BIG_ENDIAN).getFloat();
-            value = ByteBuffer.wrap(byteArray).order(ByteOrder.BIG_ENDIAN).getFloat();
-            mDataField.setText(String.format("%.2f", value));
-        }
+        mDataField.setText(String.format("%.2f", value));
+    }
+
+    public void recordData(float value, long sampleTimeNs, long rxTimeNs) {
 
         if (index < ARR_SIZE) {
 
             // Store barometer value at index
             baroValues[index] = value;
+            sampleTimes[index] = sampleTimeNs;
+            rxTimes[index] = rxTimeNs;
             index++;
 
         }
@@ -318,7 +434,9 @@ public class AfterFlightActivity extends Activity {
         for (int i = 0; i < baroValues.length; i++) {
 
             //System.out.println("Value at index " + i + " is " + baroValues[i]);
-            Log.w(TAG, "Index: " + i + ", Value: " + baroValues[i]);
+            Log.w(TAG, "Index: " + i + ", Value: " + baroValues[i]
+                    + ", Time: " + String.format("%.3fs", (sampleTimes[i] - sampleTimes[0]) / 1e9)
+                    + ", Latency: " + String.format("%.1fms", (rxTimes[i] - sampleTimes[i]) / 1e6));
         }
     }
 
@@ -330,4 +448,52 @@ public class AfterFlightActivity extends Activity {
         //intent.putExtra(GraphActivity.EXTRAS_DEVICE_ADDRESS, baroValues);
         startActivity(intent);
     }
+
+    public void flightStatistics() {
+
+        // Summaries are cached per flight, so this is cheap after the first run
+        final File[] logs = FlightLog.list(this);
+        final boolean benchmark =
+                getIntent().getBooleanExtra(EXTRAS_BENCHMARK_STATISTICS, false);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (benchmark) {
+                        Log.i(TAG, ArchiveAnalytics.benchmark(logs));
+                    }
+                    final ArchiveAnalytics analytics = ArchiveAnalytics.compute(logs);
+                    Log.i(TAG, analytics.toString());
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(AfterFlightActivity.this, String.format(
+                                    "%d flights, median apogee %.0fm", analytics.launched,
+                                    analytics.apogeeMedian), Toast.LENGTH_LONG).show();
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to analyze flights", e);
+                }
+            }
+        }, "FlightStatistics").start();
+    }
+
+    public void compareFlights(View view) {
+
+        // Overlay the most recent flights, aligned on launch
+        final File[] logs = FlightLog.list(this);
+        final int count = Math.min(logs.length, MAX_COMPARED_FLIGHTS);
+        final String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = logs[logs.length - count + i].getName();
+        }
+
+        final Intent intent = new Intent(this, GraphActivity.class);
+        intent.putExtra(GraphActivity.EXTRAS_DEVICE_NAME, mDeviceName);
+        intent.putExtra(GraphActivity.EXTRAS_DEVICE_ADDRESS, mDeviceAddress);
+        intent.putExtra(GraphActivity.EXTRAS_OVERLAY_FLIGHTS, names);
+        intent.putExtra(GraphActivity.EXTRAS_OVERLAY_ALIGNMENT, FlightOverlay.ALIGN_LAUNCH);
+        startActivity(intent);
+    }
 }
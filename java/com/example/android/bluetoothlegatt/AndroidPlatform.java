@@ -0,0 +1,46 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The Android implementations {@link Platform} starts out with.  Kept apart so that classes
+ * using {@link Platform} never refer to Android themselves.
+ */
+final class AndroidPlatform {
+
+    static final Platform.Clock CLOCK = new Platform.Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    static final Platform.Threads THREADS = new Platform.Threads() {
+        @Override
+        public void setBackgroundPriority() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+    };
+
+    static final Platform.Logger LOGGER = new Platform.Logger() {
+        @Override
+        public void i(String tag, String message) {
+            Log.i(tag, message);
+        }
+
+        @Override
+        public void w(String tag, String message, Throwable tr) {
+            Log.w(tag, message, tr);
+        }
+
+        @Override
+        public void e(String tag, String message, Throwable tr) {
+            Log.e(tag, message, tr);
+        }
+    };
+
+    private AndroidPlatform() {
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes per-flight and aggregate statistics over every stored flight.  The archive is split
+ * into chunks of flights that are summarized in parallel on the {@link FlightOverlay} fork/join
+ * pool; each flight reuses its cached {@link FlightSummary} when the log has not changed, so a
+ * rerun over hundreds of flights mostly reads a few bytes per flight.
+ */
+public class ArchiveAnalytics {
+    private final static String TAG = ArchiveAnalytics.class.getSimpleName();
+
+    // Flights summarized sequentially by one fork/join leaf.
+    private static final int CHUNK = 4;
+
+    public final FlightSummary[] flights;
+    public final int launched;
+    public final float apogeeMin;
+    public final float apogeeMedian;
+    public final float apogeeP90;
+    public final float apogeeMax;
+    public final float apogeeMean;
+    public final float apogeeStdDev;
+    public final float meanTimeToApogeeS;
+    public final float meanAscentRateMps;
+    public final float meanDrogueRateMps;
+    public final float meanMainRateMps;
+
+    private ArchiveAnalytics(FlightSummary[] flights) {
+        this.flights = flights;
+
+        final float[] apogees = new float[flights.length];
+        int n = 0;
+        double timeSum = 0;
+        double ascentSum = 0;
+        double drogueSum = 0;
+        int drogueCount = 0;
+        double mainSum = 0;
+        int mainCount = 0;
+        for (FlightSummary flight : flights) {
+            if (!flight.launched) {
+                continue;
+            }
+            apogees[n++] = flight.apogeeM;
+            timeSum += flight.timeToApogeeS;
+            ascentSum += flight.ascentRateMps;
+            if (!Float.isNaN(flight.drogueRateMps)) {
+                drogueSum += flight.drogueRateMps;
+                drogueCount++;
+            }
+            if (!Float.isNaN(flight.mainRateMps)) {
+                mainSum += flight.mainRateMps;
+                mainCount++;
+            }
+        }
+        launched = n;
+
+        Arrays.sort(apogees, 0, n);
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += apogees[i];
+        }
+        final double mean = n == 0 ? Double.NaN : sum / n;
+        double squares = 0;
+        for (int i = 0; i < n; i++) {
+            squares += (apogees[i] - mean) * (apogees[i] - mean);
+        }
+        apogeeMin = n == 0 ? Float.NaN : apogees[0];
+        apogeeMax = n == 0 ? Float.NaN : apogees[n - 1];
+        apogeeMedian = percentile(apogees, n, 0.5);
+        apogeeP90 = percentile(apogees, n, 0.9);
+        apogeeMean = (float) mean;
+        apogeeStdDev = n == 0 ? Float.NaN : (float) Math.sqrt(squares / n);
+        meanTimeToApogeeS = n == 0 ? Float.NaN : (float) (timeSum / n);
+        meanAscentRateMps = n == 0 ? Float.NaN : (float) (ascentSum / n);
+        meanDrogueRateMps = drogueCount == 0 ? Float.NaN : (float) (drogueSum / drogueCount);
+        meanMainRateMps = mainCount == 0 ? Float.NaN : (float) (mainSum / mainCount);
+    }
+
+    /**
+     * Summarizes every log in {@code logs}.
+     */
+    public static ArchiveAnalytics compute(File[] logs) throws IOException {
+        return compute(logs, FlightOverlay.pool());
+    }
+
+    public static ArchiveAnalytics compute(File[] logs, ForkJoinPool pool) throws IOException {
+        final long start = System.nanoTime();
+        final FlightSummary[] summaries = new FlightSummary[logs.length];
+        final IOException error = pool.invoke(
+                new SummarizeTask(logs, summaries, 0, logs.length));
+        if (error != null) {
+            throw error;
+        }
+        final ArchiveAnalytics analytics = new ArchiveAnalytics(summaries);
+        Platform.log().i(TAG, String.format("Analyzed %d flights in %.1fms", logs.length,
+                (System.nanoTime() - start) / 1e6));
+        return analytics;
+    }
+
+    /**
+     * Times {@link #compute} of {@code logs} with 1, 2, 4... workers up to one per core, cold
+     * with every cached summary deleted first and again from the cache.  The caches are left
+     * rebuilt.
+     *
+     * @return One line per worker count.
+     */
+    public static String benchmark(File[] logs) throws IOException {
+        long samples = 0;
+        for (File log : logs) {
+            samples += FlightLog.sampleCount(log);
+        }
+        final StringBuilder sb = new StringBuilder(String.format("Analyze %d flights, %d samples",
+                logs.length, samples));
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int workers = 1; ; workers = Math.min(cores, workers * 2)) {
+            final ForkJoinPool pool = new ForkJoinPool(workers);
+            try {
+                // The first run warms the page cache and the JIT.
+                compute(logs, pool);
+                for (File log : logs) {
+                    FlightLog.sibling(log, FlightSummary.EXTENSION).delete();
+                }
+                long start = System.nanoTime();
+                compute(logs, pool);
+                final double coldMs = (System.nanoTime() - start) / 1e6;
+                start = System.nanoTime();
+                compute(logs, pool);
+                final double cachedMs = (System.nanoTime() - start) / 1e6;
+                sb.append(String.format("\n  %d workers: %.1f ms cold, %.1f ms cached", workers,
+                        coldMs, cachedMs));
+            } finally {
+                pool.shutdown();
+            }
+            if (workers == cores) {
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d flights, %d launched\n", flights.length, launched));
+        sb.append(String.format("apogee: min=%.1fm median=%.1fm p90=%.1fm max=%.1fm "
+                        + "mean=%.1fm sd=%.1fm\n", apogeeMin, apogeeMedian, apogeeP90,
+                apogeeMax, apogeeMean, apogeeStdDev));
+        sb.append(String.format("time to apogee=%.1fs ascent=%.1fm/s drogue=%.1fm/s main=%.1fm/s",
+                meanTimeToApogeeS, meanAscentRateMps, meanDrogueRateMps, meanMainRateMps));
+        for (FlightSummary flight : flights) {
+            sb.append("\n  ").append(flight);
+        }
+        return sb.toString();
+    }
+
+    private static float percentile(float[] sorted, int n, double p) {
+        if (n == 0) {
+            return Float.NaN;
+        }
+        return sorted[(int) Math.min(n - 1, Math.round(p * (n - 1)))];
+    }
+
+    private static class SummarizeTask extends RecursiveTask<IOException> {
+        final File[] mLogs;
+        final FlightSummary[] mOut;
+        final int mFrom;
+        final int mTo;
+
+        SummarizeTask(File[] logs, FlightSummary[] out, int from, int to) {
+            mLogs = logs;
+            mOut = out;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected IOException compute() {
+            if (mTo - mFrom <= CHUNK) {
+                try {
+                    for (int i = mFrom; i < mTo; i++) {
+                        mOut[i] = FlightSummary.loadOrCompute(mLogs[i]);
+                    }
+                } catch (IOException e) {
+                    return e;
+                }
+                return null;
+            }
+            final int mid = (mFrom + mTo) >>> 1;
+            final SummarizeTask left = new SummarizeTask(mLogs, mOut, mFrom, mid);
+            final SummarizeTask right = new SummarizeTask(mLogs, mOut, mid, mTo);
+            right.fork();
+            final IOException error = left.compute();
+            final IOException rightError = right.join();
+            return error != null ? error : rightError;
+        }
+    }
+}
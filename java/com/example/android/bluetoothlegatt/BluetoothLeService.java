@@ -28,15 +28,21 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -49,11 +55,8 @@ public class BluetoothLeService extends Service {
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
     private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Written from binder callback threads and read anywhere; see ConnectionState.
+    private final ConnectionState mConnectionState = new ConnectionState();
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -61,10 +64,44 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
+    // A characteristic other than the telemetry stream changed.  Samples are not broadcast;
+    // they come through subscribe().
     public final static String ACTION_DATA_AVAILABLE =
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
+    // The altimeter's flight directory has arrived; see getFlightDirectory().
+    public final static String ACTION_FLIGHT_DIRECTORY =
+            "com.example.bluetooth.le.ACTION_FLIGHT_DIRECTORY";
+    // A flight download finished, with the local log's file name and whether it is complete.
+    public final static String ACTION_FLIGHT_DOWNLOADED =
+            "com.example.bluetooth.le.ACTION_FLIGHT_DOWNLOADED";
+    public final static String EXTRA_FLIGHT_FILE =
+            "com.example.bluetooth.le.EXTRA_FLIGHT_FILE";
+    public final static String EXTRA_DOWNLOAD_COMPLETE =
+            "com.example.bluetooth.le.EXTRA_DOWNLOAD_COMPLETE";
+
+    // Settings kept across restarts.  Start the service with ACTION_CONFIGURE and any of the
+    // setting extras below to change them, e.g. from a shell:
+    //   am startservice -n com.example.android.bluetoothlegatt/.BluetoothLeService
+    //       -a com.example.bluetooth.le.ACTION_CONFIGURE
+    //       --el com.example.bluetooth.le.EXTRA_RESAMPLE_PERIOD_NS 10000000
+    public final static String ACTION_CONFIGURE =
+            "com.example.bluetooth.le.ACTION_CONFIGURE";
+    // long: period of the grid recorded samples are resampled onto, or 0 to record them as
+    // they arrive.
+    public final static String EXTRA_RESAMPLE_PERIOD_NS =
+            "com.example.bluetooth.le.EXTRA_RESAMPLE_PERIOD_NS";
+    // int: Resampler.INTERPOLATION_LINEAR or _CUBIC.
+    public final static String EXTRA_RESAMPLE_INTERPOLATION =
+            "com.example.bluetooth.le.EXTRA_RESAMPLE_INTERPOLATION";
+    // String: ground station to relay samples to, udp://host:port or ws://host:port/path, or
+    // empty to stop relaying.  RelayGroundStation stands in for one.
+    public final static String EXTRA_RELAY_ENDPOINT =
+            "com.example.bluetooth.le.EXTRA_RELAY_ENDPOINT";
+    // int: GroupCommitWriter.DURABILITY_* policy for the next flight log.
+    public final static String EXTRA_DURABILITY =
+            "com.example.bluetooth.le.EXTRA_DURABILITY";
+    // Settings are stored under their extra's name.
+    private static final String PREFERENCES = "BluetoothLeService";
 
     // ADDED
     public final static UUID UUID_BLE_TXRX =
@@ -74,15 +111,127 @@ public class BluetoothLeService extends Service {
     public final static UUID UUID_BLE_TX =
             UUID.fromString(SampleGattAttributes.BLE_TX_UUID);
 
+    // Commands queued for the TX characteristic.  The GATT stack only accepts one outstanding
+    // characteristic write, so frames wait here until onCharacteristicWrite frees the link;
+    // acks are then matched by request id, so several commands can await an ack at once.
+    private static final int TX_QUEUE_SIZE = 16;
+    private static final long COMMAND_TIMEOUT_NS = 2000000000L;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mTxLock = new Object();
+    private final CommandEncoder mCommandEncoder = new CommandEncoder();
+    private final CommandTracker mCommandTracker = new CommandTracker();
+    private final byte[][] mTxQueue = new byte[TX_QUEUE_SIZE][CommandEncoder.MAX_FRAME_LENGTH];
+    private final int[] mTxLength = new int[TX_QUEUE_SIZE];
+    private final int[] mTxRequestId = new int[TX_QUEUE_SIZE];
+    // One exact-length array per frame size, since setValue() takes the whole array.
+    private final byte[][] mTxFrames = new byte[CommandEncoder.MAX_FRAME_LENGTH + 1][];
+    // Decodes, timestamps, records and publishes RX samples off the GATT callback thread.
+    private IngestPipeline mPipeline;
+    // Flight log for the current connection, opened on the first sample.
+    private FlightRecorder mRecorder;
+    // Survives the process, so a session it dies in can be resumed; null if it cannot be opened.
+    private SessionCheckpoint mCheckpoint;
+    // Log of the session left open by a previous process, appended to on the first sample.
+    private File mResumeLog;
+    private FlightReplayer mReplayer;
+    // Cleared by the replay thread when it finishes, however it finishes.
+    private volatile boolean mReplaying;
+    private int mDurability = GroupCommitWriter.DURABILITY_PERIODIC;
+    private volatile TelemetryRelay mRelay;
+    private String mRelayEndpoint;
+    // RX notifications have been enabled on the current connection.
+    private volatile boolean mRxSubscribed;
+    // Range downloads from the altimeter's flight memory, created on first use.
+    private volatile FlightDownloader mDownloader;
+    private volatile List<FlightDownloader.Entry> mFlightDirectory =
+            Collections.<FlightDownloader.Entry>emptyList();
+
+    // Each consumer subscribes with its own channel, so a slow activity can only lose its own
+    // samples and never holds up the ingest pipeline.  Storage is the pipeline's own persist
+    // stage, which blocks rather than drops.  The publish stage walks a snapshot of the list.
+    public final static int GRAPH_DECIMATION = 4;
+    private final CopyOnWriteArrayList<TelemetrySubscription> mSubscriptions =
+            new CopyOnWriteArrayList<TelemetrySubscription>();
+
+    // Ground-station relay batching: 25 samples or 100 ms, with 5 s of backlog at 100 Hz.
+    private static final int RELAY_BATCH_SAMPLES = 25;
+    private static final long RELAY_MAX_LATENCY_NS = 100000000L;
+    private static final int RELAY_QUEUE_BATCHES = 20;
+
+    // A session older than this, or from before the phone rebooted, is not resumed.
+    private static final long RESUME_WINDOW_NS = 10 * 60 * 1000000000L;
+
+    private int mTxHead;
+    private int mTxCount;
+    private boolean mTxBusy;
+
+    {
+        for (int i = 0; i < mTxFrames.length; i++) {
+            mTxFrames[i] = new byte[i];
+        }
+    }
+
+    private final CommandTracker.Callback mLoggingCallback = new CommandTracker.Callback() {
+        @Override
+        public void onAck(int opcode, int status, long roundTripNs) {
+            Log.d(TAG, String.format("%s acked, status=%d, rtt=%.1fms",
+                    CommandEncoder.opcodeName(opcode), status, roundTripNs / 1e6));
+        }
+
+        @Override
+        public void onTimeout(int opcode) {
+            Log.w(TAG, CommandEncoder.opcodeName(opcode) + " timed out waiting for ack");
+        }
+    };
+
+    private final Runnable mCommandSweep = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(this);
+            final long now = SystemClock.elapsedRealtimeNanos();
+            final long nextDeadline = mCommandTracker.sweep(now);
+            if (nextDeadline != -1) {
+                mHandler.postDelayed(this, Math.max(1, (nextDeadline - now) / 1000000));
+            }
+        }
+    };
+
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
+    private final ConnectionSupervisor mSupervisor = new ConnectionSupervisor(mHandler,
+            new ConnectionSupervisor.Link() {
+                @Override
+                public boolean reconnect(boolean fresh) {
+                    if (fresh && mBluetoothGatt != null) {
+                        mBluetoothGatt.close();
+                        mBluetoothGatt = null;
+                    }
+                    return openGatt(mBluetoothDeviceAddress);
+                }
+
+                @Override
+                public void drop() {
+                    if (mBluetoothGatt != null) {
+                        mBluetoothGatt.disconnect();
+                    }
+                }
+
+                @Override
+                public boolean isStreamExpected() {
+                    return mCommandTracker.isStreamPending();
+                }
+            });
+
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             String intentAction;
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
+                mConnectionState.moveTo(ConnectionState.STATE_DISCOVERING);
+                mRxSubscribed = false;
+                mSupervisor.onConnected();
                 broadcastUpdate(intentAction);
                 Log.i(TAG, "Connected to GATT server.");
                 // Attempts to discover services after successful connection.
@@ -91,7 +240,24 @@ public class BluetoothLeService extends Service {
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
+                mRxSubscribed = false;
+                dropTxQueue();
+                // While the supervisor reconnects, the flight carries on in the same log and
+                // with the same clock and phase state.
+                if (mSupervisor.onDisconnected(status)) {
+                    mConnectionState.moveTo(ConnectionState.STATE_RECONNECTING);
+                } else {
+                    mConnectionState.moveTo(ConnectionState.STATE_DISCONNECTED);
+                    Log.i(TAG, mPipeline.getRateController().toString());
+                    Log.i(TAG, mPipeline.getLoss().toString());
+                    for (TelemetrySubscription subscription : mSubscriptions) {
+                        Log.i(TAG, subscription.toString());
+                    }
+                    Log.i(TAG, mSupervisor.toString());
+                    // Samples still in flight belong in this log; the persist stage closes it
+                    // once they are in.
+                    mPipeline.reset(mEndRecording);
+                }
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
             }
@@ -100,6 +266,9 @@ public class BluetoothLeService extends Service {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (mSupervisor.isRecovering()) {
+                    subscribeRx();
+                }
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
@@ -110,15 +279,30 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
+            final long rxTimeNs = SystemClock.elapsedRealtimeNanos();
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic, rxTimeNs);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            if (UUID_BLE_TX.equals(characteristic.getUuid())) {
+                synchronized (mTxLock) {
+                    mTxBusy = false;
+                }
+                pumpTxQueue();
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            // Stamp before anything else so the time reflects arrival, not our processing.
+            final long rxTimeNs = SystemClock.elapsedRealtimeNanos();
+            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic, rxTimeNs);
         }
     };
 
@@ -128,30 +312,235 @@ public class BluetoothLeService extends Service {
     }
 
     private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-
+                                 final BluetoothGattCharacteristic characteristic,
+                                 final long rxTimeNs) {
         if (UUID_BLE_RX.equals(characteristic.getUuid())) {
 
             final byte[] rx = characteristic.getValue();
-            float value = ByteBuffer.wrap(rx).order(ByteOrder.BIG_ENDIAN).getFloat();
+            if (rx == null || rx.length == 0) {
+                return;
+            }
 
-            Log.w(TAG, String.format("GET RX Characteristic values = %.2f", value));
+            if (CommandEncoder.isAck(rx)) {
+                mCommandTracker.onAck(CommandEncoder.ackRequestId(rx), CommandEncoder.ackStatus(rx),
+                        rxTimeNs);
+                return;
+            }
 
-            if (rx != null && rx.length > 0) {
+            // Only frames the altimeter streams count as signs of life, not acks.
+            mSupervisor.onSample(rxTimeNs);
+            final FlightDownloader downloader = mDownloader;
+            if (downloader != null && downloader.onFrame(rx)) {
+                return;
+            }
 
-                intent.putExtra(EXTRA_DATA, rx);
+            if (mConnectionState.get() != ConnectionState.STATE_STREAMING) {
+                mConnectionState.moveTo(ConnectionState.STATE_STREAMING);
             }
+
+            // The pipeline checks the CRC, and its publish stage hands samples to subscribers
+            // once decoded.  Corrupt frames only show up in its loss accounting.
+            mPipeline.submit(rx, rxTimeNs);
+            return;
         }
-        sendBroadcast(intent);
+        sendBroadcast(new Intent(action));
     }
 
+    // Run by the persist stage once a reset has passed every sample received before it.
+    private final Runnable mEndRecording = new Runnable() {
+        @Override
+        public void run() {
+            stopRecording();
+        }
+    };
+
+    private final IngestPipeline.Sink mIngestSink = new IngestPipeline.Sink() {
+        @Override
+        public void phaseChanged(int phase, final int rateHz) {
+            Log.i(TAG, "Flight phase " + FlightPhaseDetector.phaseName(phase)
+                    + ", requesting " + rateHz + " Hz");
+            if (phase == FlightPhaseDetector.PHASE_BOOST) {
+                // Called on the estimate stage, which owns the detector.
+                Log.i(TAG, String.format("Ground pressure fixed at %.2f",
+                        mPipeline.getPhaseDetector().getGroundPressure()));
+            }
+            // Commands go through the main thread like every other caller's.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Replayed flights have a fixed rate; only a connected altimeter can
+                    // change it.
+                    if (mConnectionState.isLinkUp() && !mReplaying) {
+                        sendCommand(CommandEncoder.OP_SET_RATE, null, rateHz);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void persist(IngestPipeline.Sample sample) throws IOException {
+            recordSample(sample.sampleTimeNs, sample.value);
+        }
+
+        @Override
+        public void persistGrid(long firstNs, long periodNs, float[] values, int count)
+                throws IOException {
+            for (int i = 0; i < count; i++) {
+                recordSample(firstNs + i * periodNs, values[i]);
+            }
+        }
+
+        @Override
+        public void persistIdle(long nowNs) throws IOException {
+            synchronized (BluetoothLeService.this) {
+                if (mRecorder != null) {
+                    mRecorder.tick(nowNs);
+                }
+            }
+        }
+
+        @Override
+        public void publish(IngestPipeline.Sample sample, TelemetrySnapshot snapshot) {
+            Log.v(TAG, String.format("GET RX Characteristic values = %.2f", sample.value));
+
+            try {
+                for (TelemetrySubscription subscription : mSubscriptions) {
+                    subscription.offer(snapshot);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            final TelemetryRelay relay = mRelay;
+            if (relay != null) {
+                relay.offer(sample.sequence, sample.sampleTimeNs, sample.rxTimeNs, sample.value,
+                        sample.phase);
+            }
+        }
+    };
+
     public class LocalBinder extends Binder {
         BluetoothLeService getService() {
             return BluetoothLeService.this;
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mPipeline = new IngestPipeline(mIngestSink);
+        mPipeline.setFilter(TelemetrySchema.CHANNEL_PRESSURE, readoutFilter());
+        applySettings();
+        openCheckpoint();
+        mPipeline.start();
+        mConnectionState.addListener(new ConnectionState.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                Log.i(TAG, "Connection " + ConnectionState.stateName(from) + " -> "
+                        + ConnectionState.stateName(to));
+            }
+        });
+    }
+
+    /**
+     * Starts delivering decoded samples to {@code subscription} until
+     * {@link #unsubscribe(TelemetrySubscription)}.
+     */
+    public void subscribe(TelemetrySubscription subscription) {
+        subscription.start();
+        mSubscriptions.add(subscription);
+    }
+
+    public void unsubscribe(TelemetrySubscription subscription) {
+        if (mSubscriptions.remove(subscription)) {
+            subscription.close();
+            Log.i(TAG, subscription.toString());
+        }
+    }
+
+    /**
+     * @return A filter for service discovery, which every connected screen follows, plus
+     *         {@code actions}.  The link state comes from {@link #getConnectionState} and
+     *         samples through {@link #subscribe} instead.
+     */
+    public static IntentFilter makeGattUpdateIntentFilter(String... actions) {
+        final IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(ACTION_GATT_SERVICES_DISCOVERED);
+        for (String action : actions) {
+            intentFilter.addAction(action);
+        }
+        return intentFilter;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mDownloader != null) {
+            mDownloader.close();
+        }
+        for (TelemetrySubscription subscription : mSubscriptions) {
+            unsubscribe(subscription);
+        }
+        stopRelay();
+        stopReplay();
+        // Returns once the stages have stopped, so no late sample can reopen the log.
+        mPipeline.shutdown();
+        stopRecording();
+        super.onDestroy();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_CONFIGURE.equals(intent.getAction())) {
+            configure(intent);
+        }
+        // Only ever started to be configured; bound activities keep it running while in use.
+        stopSelf(startId);
+        return START_NOT_STICKY;
+    }
+
+    // Stores the settings the intent carries and applies them.
+    private void configure(Intent intent) {
+        final SharedPreferences.Editor editor =
+                getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit();
+        if (intent.hasExtra(EXTRA_RESAMPLE_PERIOD_NS)) {
+            editor.putLong(EXTRA_RESAMPLE_PERIOD_NS,
+                    intent.getLongExtra(EXTRA_RESAMPLE_PERIOD_NS, 0));
+        }
+        if (intent.hasExtra(EXTRA_RESAMPLE_INTERPOLATION)) {
+            editor.putInt(EXTRA_RESAMPLE_INTERPOLATION,
+                    intent.getIntExtra(EXTRA_RESAMPLE_INTERPOLATION,
+                            Resampler.INTERPOLATION_LINEAR));
+        }
+        if (intent.hasExtra(EXTRA_DURABILITY)) {
+            editor.putInt(EXTRA_DURABILITY, intent.getIntExtra(EXTRA_DURABILITY,
+                    GroupCommitWriter.DURABILITY_PERIODIC));
+        }
+        if (intent.hasExtra(EXTRA_RELAY_ENDPOINT)) {
+            final String endpoint = intent.getStringExtra(EXTRA_RELAY_ENDPOINT);
+            editor.putString(EXTRA_RELAY_ENDPOINT, endpoint == null ? "" : endpoint);
+        }
+        editor.apply();
+        applySettings();
+    }
+
+    private void applySettings() {
+        final SharedPreferences settings = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        setResampling(settings.getLong(EXTRA_RESAMPLE_PERIOD_NS, 0),
+                settings.getInt(EXTRA_RESAMPLE_INTERPOLATION, Resampler.INTERPOLATION_LINEAR));
+        setDurability(settings.getInt(EXTRA_DURABILITY, GroupCommitWriter.DURABILITY_PERIODIC));
+        final String endpoint = settings.getString(EXTRA_RELAY_ENDPOINT, "");
+        if (endpoint.isEmpty()) {
+            stopRelay();
+        } else if (!endpoint.equals(mRelayEndpoint)) {
+            try {
+                startRelay(endpoint);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Not relaying: " + e.getMessage());
+            }
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -208,13 +597,23 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        mSupervisor.onConnectRequested();
+        return openGatt(address);
+    }
+
+    private boolean openGatt(final String address) {
+        if (mBluetoothAdapter == null || address == null) {
+            return false;
+        }
 
         // Previously connected device.  Try to reconnect.
         if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
                 && mBluetoothGatt != null) {
             Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
             if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+                // A reconnect attempt stays RECONNECTING until the link is up.
+                mConnectionState.transition(ConnectionState.STATE_DISCONNECTED,
+                        ConnectionState.STATE_CONNECTING);
                 return true;
             } else {
                 return false;
@@ -231,7 +630,8 @@ public class BluetoothLeService extends Service {
         mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
         Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        mConnectionState.transition(ConnectionState.STATE_DISCONNECTED,
+                ConnectionState.STATE_CONNECTING);
         return true;
     }
 
@@ -242,8 +642,11 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
+        mSupervisor.onDisconnectRequested();
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
+            // No callback will report it, e.g. between reconnect attempts.
+            mConnectionState.moveTo(ConnectionState.STATE_DISCONNECTED);
             return;
         }
         mBluetoothGatt.disconnect();
@@ -254,6 +657,11 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
+        mSupervisor.onDisconnectRequested();
+        // A closed handle reports nothing more.
+        mConnectionState.moveTo(ConnectionState.STATE_DISCONNECTED);
+        // The log is closed once the samples still in flight are in it.
+        mPipeline.reset(mEndRecording);
         if (mBluetoothGatt == null) {
             return;
         }
@@ -303,6 +711,18 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
+        if (UUID_BLE_RX.equals(characteristic.getUuid())) {
+            // The supervisor may already have re-subscribed after a reconnect, and a second
+            // descriptor write would collide with the first.
+            if (enabled == mRxSubscribed) {
+                return;
+            }
+            mRxSubscribed = enabled;
+            if (enabled) {
+                mConnectionState.transition(ConnectionState.STATE_DISCOVERING,
+                        ConnectionState.STATE_SUBSCRIBING);
+            }
+        }
         mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
 
         if (UUID_BLE_RX.equals(characteristic.getUuid())) {
@@ -316,6 +736,32 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    /**
+     * Re-enables RX notifications after the supervisor reconnects, when no activity may be
+     * around to do it.
+     */
+    private void subscribeRx() {
+        final BluetoothGattService service = getSupportedGattService();
+        final BluetoothGattCharacteristic rx =
+                service == null ? null : service.getCharacteristic(UUID_BLE_RX);
+        if (rx == null) {
+            Log.w(TAG, "RX characteristic missing after reconnect");
+            return;
+        }
+        setCharacteristicNotification(rx, true);
+    }
+
+    public ConnectionSupervisor getSupervisor() {
+        return mSupervisor;
+    }
+
+    /**
+     * @return The link's state machine; in-process listeners can follow it without receivers.
+     */
+    public ConnectionState getConnectionState() {
+        return mConnectionState;
+    }
+
     /**
      * Retrieves a list of supported GATT services on the connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
@@ -362,4 +808,389 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "Failed to write characteristic");
         }
     }
+
+    /**
+     * Queues a command for the TX characteristic.  The outcome is reported to {@code callback}
+     * once the altimeter acks it or the command times out.
+     *
+     * @param opcode One of the {@code CommandEncoder.OP_*} opcodes.
+     * @param callback Receives the ack or timeout, or null to only log the outcome.
+     * @param args Command arguments, each encoded as a big-endian 32 bit integer.
+     *
+     * @return The request id, or -1 if the command could not be queued.
+     */
+    public int sendCommand(int opcode, CommandTracker.Callback callback, int... args) {
+        return sendCommand(opcode, COMMAND_TIMEOUT_NS, callback, args);
+    }
+
+    /**
+     * As {@link #sendCommand(int, CommandTracker.Callback, int...)}, for commands that take
+     * longer than usual to ack.
+     */
+    public int sendCommand(int opcode, long timeoutNs, CommandTracker.Callback callback,
+                           int... args) {
+        final int requestId;
+        synchronized (mTxLock) {
+            if (mTxCount == TX_QUEUE_SIZE) {
+                Log.w(TAG, "TX queue full, dropping " + CommandEncoder.opcodeName(opcode));
+                return -1;
+            }
+            requestId = mCommandTracker.begin(opcode, timeoutNs,
+                    callback != null ? callback : mLoggingCallback);
+            if (requestId == -1) {
+                Log.w(TAG, "Too many commands awaiting ack, dropping "
+                        + CommandEncoder.opcodeName(opcode));
+                return -1;
+            }
+
+            mCommandEncoder.begin(opcode, requestId);
+            for (int arg : args) {
+                mCommandEncoder.putI32(arg);
+            }
+            final int tail = (mTxHead + mTxCount) % TX_QUEUE_SIZE;
+            mTxLength[tail] = mCommandEncoder.end();
+            mTxRequestId[tail] = requestId;
+            mCommandEncoder.copyTo(mTxQueue[tail]);
+            mTxCount++;
+        }
+        pumpTxQueue();
+        return requestId;
+    }
+
+    /**
+     * Asks the altimeter for its flight directory, broadcast as {@link #ACTION_FLIGHT_DIRECTORY}.
+     */
+    public void requestFlightDirectory() {
+        final FlightDownloader downloader = getDownloader();
+        if (downloader != null) {
+            downloader.requestDirectory();
+        }
+    }
+
+    /**
+     * @return The last flight directory received from the altimeter.
+     */
+    public List<FlightDownloader.Entry> getFlightDirectory() {
+        return mFlightDirectory;
+    }
+
+    /**
+     * @return The downloader for the connected altimeter, or null before connecting.
+     *         Finished downloads are broadcast as {@link #ACTION_FLIGHT_DOWNLOADED}.
+     */
+    public synchronized FlightDownloader getDownloader() {
+        if (mDownloader == null && mBluetoothDeviceAddress != null) {
+            mDownloader = new FlightDownloader(FlightLog.directory(this), mBluetoothDeviceAddress,
+                    new FlightDownloader.Transport() {
+                        @Override
+                        public int send(int opcode, long timeoutNs,
+                                        CommandTracker.Callback callback, int... args) {
+                            return sendCommand(opcode, timeoutNs, callback, args);
+                        }
+                    }, mDownloadListener);
+        }
+        return mDownloader;
+    }
+
+    private final FlightDownloader.Listener mDownloadListener = new FlightDownloader.Listener() {
+        @Override
+        public void onDirectory(List<FlightDownloader.Entry> flights) {
+            mFlightDirectory = Collections.unmodifiableList(flights);
+            sendBroadcast(new Intent(ACTION_FLIGHT_DIRECTORY));
+        }
+
+        @Override
+        public void onDownloadFinished(FlightDownloader.Entry flight, File log, RangeSet stored,
+                                       boolean complete) {
+            final Intent intent = new Intent(ACTION_FLIGHT_DOWNLOADED);
+            intent.putExtra(EXTRA_FLIGHT_FILE, log.getName());
+            intent.putExtra(EXTRA_DOWNLOAD_COMPLETE, complete);
+            sendBroadcast(intent);
+        }
+    };
+
+    /**
+     * Replays a stored flight log through the ingest pipeline, exactly as if its samples were
+     * arriving from the altimeter, except that nothing is recorded or checkpointed.  Any replay
+     * already running is stopped first.  Refused unless the altimeter is disconnected, since
+     * a replay resets the estimator state a live session depends on.
+     *
+     * @param speed Replay speed relative to the recording, or
+     *              {@code FlightReplayer.SPEED_UNLIMITED}.
+     * @return false if the replay was refused.
+     */
+    public synchronized boolean startReplay(File log, double speed) {
+        if (mConnectionState.get() != ConnectionState.STATE_DISCONNECTED) {
+            Log.w(TAG, "Not replaying " + log.getName() + " while "
+                    + ConnectionState.stateName(mConnectionState.get()));
+            return false;
+        }
+        stopReplay();
+        mPipeline.reset(mEndRecording);
+        // A fixed virtual epoch keeps every replay of the same log bit-for-bit identical.
+        final FlightReplayer replayer = new FlightReplayer(log, speed, 0,
+                new FrameSink() {
+                    @Override
+                    public boolean submit(byte[] frame, long rxTimeNs)
+                            throws InterruptedException {
+                        return mPipeline.submitReplayed(frame, rxTimeNs);
+                    }
+                });
+        mReplayer = replayer;
+        mReplaying = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replayer.run();
+                } finally {
+                    replayFinished(replayer);
+                }
+            }
+        }, "FlightReplayer").start();
+        return true;
+    }
+
+    public synchronized void stopReplay() {
+        if (mReplayer != null) {
+            mReplayer.cancel();
+            replayFinished(mReplayer);
+        }
+    }
+
+    private synchronized void replayFinished(FlightReplayer replayer) {
+        if (mReplayer == replayer) {
+            mReplayer = null;
+            mReplaying = false;
+        }
+    }
+
+    /**
+     * Starts forwarding decoded samples to a ground station, replacing any running relay,
+     * until the service stops.  {@link #EXTRA_RELAY_ENDPOINT} with {@link #ACTION_CONFIGURE}
+     * sets it for good.
+     *
+     * @param endpoint {@code udp://host:port} or {@code ws://host:port/path}.
+     */
+    public synchronized void startRelay(String endpoint) {
+        stopRelay();
+        mRelay = new TelemetryRelay(TelemetryRelay.createTransport(endpoint),
+                RELAY_BATCH_SAMPLES, RELAY_MAX_LATENCY_NS, RELAY_QUEUE_BATCHES);
+        mRelayEndpoint = endpoint;
+        mRelay.start();
+    }
+
+    public synchronized void stopRelay() {
+        if (mRelay != null) {
+            mRelay.stop();
+            mRelay = null;
+        }
+        mRelayEndpoint = null;
+    }
+
+    public TelemetryRelay getRelay() {
+        return mRelay;
+    }
+
+    /**
+     * Selects when recorded samples are forced to flash, trading data at risk for write
+     * amplification.  Takes effect with the next flight log, and lasts until the service is
+     * destroyed; {@link #EXTRA_DURABILITY} with {@link #ACTION_CONFIGURE} sets it for good.
+     *
+     * @param durability One of the {@code GroupCommitWriter.DURABILITY_*} policies.
+     */
+    public synchronized void setDurability(int durability) {
+        if (durability < GroupCommitWriter.DURABILITY_BATCH
+                || durability > GroupCommitWriter.DURABILITY_SESSION) {
+            Log.w(TAG, "Ignoring unknown durability " + durability);
+            return;
+        }
+        mDurability = durability;
+    }
+
+    /**
+     * Records samples resampled onto a uniform grid, with NaN marking gaps, instead of as they
+     * arrive.  Takes effect with the next sample, and lasts until the service is destroyed;
+     * {@link #ACTION_CONFIGURE} sets it for good.
+     *
+     * @param periodNs Grid period, or 0 to record samples as they arrive.
+     * @param interpolation {@code Resampler.INTERPOLATION_LINEAR} or {@code _CUBIC}.
+     */
+    public void setResampling(long periodNs, int interpolation) {
+        mPipeline.setResampling(periodNs, interpolation);
+    }
+
+    /**
+     * Sets the filter chain for one {@code TelemetrySchema.CHANNEL_*} of the published
+     * snapshots, or null for raw values.  Recorded samples are never filtered.
+     */
+    public void setChannelFilter(int channel, StreamFilter filter) {
+        mPipeline.setFilter(channel, filter);
+    }
+
+    /**
+     * @return The default pressure readout chain: spikes dropped, then a short median and light
+     *         smoothing, none of which depend on the sample rate.
+     */
+    public static StreamFilter readoutFilter() {
+        return new StreamFilter.Chain(new StreamFilter.OutlierRejector(8f, 4),
+                new StreamFilter.Median(5), new StreamFilter.Exponential(0.3f));
+    }
+
+    public IngestPipeline getIngestPipeline() {
+        return mPipeline;
+    }
+
+    /**
+     * @return The most recently published sample, or null before the first one arrives.
+     */
+    public TelemetrySnapshot getLatestSnapshot() {
+        return mPipeline.getLatest();
+    }
+
+    public CommandTracker getCommandTracker() {
+        return mCommandTracker;
+    }
+
+    /**
+     * @return The log the current session records to, or null outside a session.
+     */
+    public synchronized File getRecordingLog() {
+        if (mRecorder != null) {
+            return mRecorder.getLog().getFile();
+        }
+        return mResumeLog;
+    }
+
+    // Picks up the session a previous process died in, if it is recent enough to belong to
+    // the flight still under way.
+    private void openCheckpoint() {
+        final File directory = FlightLog.directory(this);
+        try {
+            mCheckpoint = SessionCheckpoint.open(new File(directory, SessionCheckpoint.FILE_NAME));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open session checkpoint", e);
+            return;
+        }
+        if (mCheckpoint.isResumable()) {
+            final File log = new File(directory, mCheckpoint.getLogName());
+            final long ageNs = SystemClock.elapsedRealtimeNanos() - mCheckpoint.getSampleTimeNs();
+            if (log.exists() && ageNs >= 0 && ageNs < RESUME_WINDOW_NS) {
+                Log.i(TAG, "Resuming from " + mCheckpoint);
+                mPipeline.restore(mCheckpoint,
+                        Math.max(mCheckpoint.getSampleTimeNs(), lastSampleTimeNs(log)));
+                mResumeLog = log;
+            } else {
+                Log.i(TAG, "Not resuming stale " + mCheckpoint);
+                mCheckpoint.end();
+            }
+        }
+        mPipeline.setCheckpoint(mCheckpoint);
+    }
+
+    private static long lastSampleTimeNs(File log) {
+        final long count = FlightLog.sampleCount(log);
+        final long[] times = new long[1];
+        try {
+            if (count > 0 && FlightLog.read(log, count - 1, 1, times, new float[1]) == 1) {
+                return times[0];
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + log, e);
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private synchronized void recordSample(long sampleTimeNs, float value) throws IOException {
+        if (mRecorder == null) {
+            if (mResumeLog == null
+                    && mConnectionState.get() == ConnectionState.STATE_DISCONNECTED) {
+                // A straggler from a session already closed; a new log would never be closed
+                // and its checkpoint would be resumed by the next start.
+                Log.w(TAG, "Dropping sample recorded outside a session");
+                return;
+            }
+            if (mResumeLog != null) {
+                final File log = mResumeLog;
+                mResumeLog = null;
+                mRecorder = FlightRecorder.resume(log, mDurability);
+            } else {
+                mRecorder = new FlightRecorder(FlightLog.directory(this), mDurability);
+                if (mCheckpoint != null) {
+                    mCheckpoint.begin(mRecorder.getLog().getFile());
+                }
+            }
+        }
+        mRecorder.onSample(sampleTimeNs, value);
+        if (mCheckpoint != null) {
+            mCheckpoint.setLogSamples(mRecorder.getLog().getCount());
+        }
+    }
+
+    private synchronized void stopRecording() {
+        mResumeLog = null;
+        if (mRecorder != null) {
+            try {
+                mRecorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close flight log", e);
+            }
+            mRecorder = null;
+        }
+        // Closed cleanly, so there is nothing to resume.
+        if (mCheckpoint != null) {
+            mCheckpoint.end();
+        }
+    }
+
+    private void pumpTxQueue() {
+        final boolean streamRequested;
+        synchronized (mTxLock) {
+            if (mTxBusy || mTxCount == 0) {
+                return;
+            }
+            if (mBluetoothGatt == null) {
+                return;
+            }
+            BluetoothGattService service = mBluetoothGatt.getService(UUID_BLE_TXRX);
+            BluetoothGattCharacteristic txChar =
+                    service == null ? null : service.getCharacteristic(UUID_BLE_TX);
+            if (txChar == null) {
+                Log.w(TAG, "TX characteristic not available yet");
+                return;
+            }
+
+            final int requestId = mTxRequestId[mTxHead];
+            final byte[] frame = mTxFrames[mTxLength[mTxHead]];
+            System.arraycopy(mTxQueue[mTxHead], 0, frame, 0, frame.length);
+            mTxHead = (mTxHead + 1) % TX_QUEUE_SIZE;
+            mTxCount--;
+
+            txChar.setValue(frame);
+            if (!mBluetoothGatt.writeCharacteristic(txChar)) {
+                Log.w(TAG, "Failed to write command frame");
+                mCommandTracker.abort(requestId);
+                return;
+            }
+            mTxBusy = true;
+            mCommandTracker.markSent(requestId, SystemClock.elapsedRealtimeNanos());
+            streamRequested = CommandEncoder.startsStream(mCommandTracker.getOpcode(requestId));
+        }
+        if (streamRequested) {
+            mSupervisor.onStreamRequested();
+        }
+        // The command's timeout starts now, however long it waited in the queue.
+        mHandler.post(mCommandSweep);
+    }
+
+    private void dropTxQueue() {
+        synchronized (mTxLock) {
+            while (mTxCount > 0) {
+                mCommandTracker.abort(mTxRequestId[mTxHead]);
+                mTxHead = (mTxHead + 1) % TX_QUEUE_SIZE;
+                mTxCount--;
+            }
+            mTxBusy = false;
+        }
+    }
 }
@@ -0,0 +1,175 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Online estimator mapping the altimeter's sample clock onto the phone's monotonic clock.
+ *
+ * Every timed sample gives an observation {@code offset = rxTime - deviceTime}, which is the
+ * true clock offset plus a non-negative link delay.  The estimator keeps the minimum offset
+ * seen in each block of device time (the sample that was delayed least), and fits
+ * {@code offset = a + b * deviceTime} through those minima with an exponentially forgetting
+ * least-squares fit, so slow crystal drift ({@code b}) is tracked without storing history.
+ *
+ * The device clock is a 32 bit microsecond counter; {@link #unwrapMicros(long)} extends it
+ * across wraparounds.
+ */
+public class ClockSync {
+
+    // Length of device time over which the minimum offset is taken.
+    private static final long BLOCK_NS = 1000000000L;
+    // Per-block forgetting factor; older blocks fade out over roughly 1 / (1 - FORGET) blocks.
+    private static final double FORGET = 0.98;
+    private static final long WRAP_MICROS = 1L << 32;
+
+    private long mLastRawMicros = -1;
+    private long mWrapOffsetMicros;
+
+    private boolean mHaveOrigin;
+    private long mOriginDeviceNs;
+
+    private long mBlockStartNs;
+    private long mBlockMinOffsetNs = Long.MAX_VALUE;
+    private long mBlockMinDeviceNs;
+
+    // Weighted sums for the least-squares fit, x in seconds since origin, y in ns.
+    private double mSw;
+    private double mSx;
+    private double mSy;
+    private double mSxx;
+    private double mSxy;
+    private int mBlocks;
+
+    private double mInterceptNs;
+    private double mSlope;
+
+    /**
+     * Extends a raw 32 bit microsecond counter into a monotonic 64 bit device time.
+     *
+     * @return Device time in nanoseconds.
+     */
+    public synchronized long unwrapMicros(long rawMicros) {
+        if (mLastRawMicros != -1 && rawMicros < mLastRawMicros
+                && mLastRawMicros - rawMicros > WRAP_MICROS / 2) {
+            mWrapOffsetMicros += WRAP_MICROS;
+        }
+        mLastRawMicros = rawMicros;
+        return (rawMicros + mWrapOffsetMicros) * 1000L;
+    }
+
+    /**
+     * Adds an observation of a sample stamped {@code deviceNs} by the altimeter and received
+     * at {@code rxNs} on the phone.
+     */
+    public synchronized void update(long deviceNs, long rxNs) {
+        final long offsetNs = rxNs - deviceNs;
+        if (!mHaveOrigin) {
+            mHaveOrigin = true;
+            mOriginDeviceNs = deviceNs;
+            mBlockStartNs = deviceNs;
+            mInterceptNs = offsetNs;
+        }
+
+        if (deviceNs - mBlockStartNs >= BLOCK_NS && mBlockMinOffsetNs != Long.MAX_VALUE) {
+            addBlock(mBlockMinDeviceNs, mBlockMinOffsetNs);
+            mBlockStartNs = deviceNs;
+            mBlockMinOffsetNs = Long.MAX_VALUE;
+        }
+        if (offsetNs < mBlockMinOffsetNs) {
+            mBlockMinOffsetNs = offsetNs;
+            mBlockMinDeviceNs = deviceNs;
+        }
+        // Until a full block exists, follow the lowest offset seen so far.
+        if (mBlocks == 0 && offsetNs < mInterceptNs) {
+            mInterceptNs = offsetNs;
+        }
+    }
+
+    /**
+     * Maps a device timestamp onto the phone's {@code SystemClock.elapsedRealtimeNanos()} base.
+     */
+    public synchronized long toPhoneTime(long deviceNs) {
+        final double x = (deviceNs - mOriginDeviceNs) / 1e9;
+        return deviceNs + (long) (mInterceptNs + mSlope * x * 1e9);
+    }
+
+    public synchronized boolean isSynchronized() {
+        return mBlocks > 0;
+    }
+
+    public synchronized double getDriftPpm() {
+        return mSlope * 1e6;
+    }
+
+    public synchronized void reset() {
+        mLastRawMicros = -1;
+        mWrapOffsetMicros = 0;
+        mHaveOrigin = false;
+        mBlockMinOffsetNs = Long.MAX_VALUE;
+        mSw = mSx = mSy = mSxx = mSxy = 0;
+        mBlocks = 0;
+        mInterceptNs = 0;
+        mSlope = 0;
+    }
+
+    /**
+     * Appends the unwrapping and fit state to {@code out}, for {@link #restoreState}.
+     */
+    public synchronized void saveState(ByteBuffer out) {
+        out.putLong(mLastRawMicros).putLong(mWrapOffsetMicros);
+        out.put((byte) (mHaveOrigin ? 1 : 0)).putLong(mOriginDeviceNs);
+        out.putLong(mBlockStartNs).putLong(mBlockMinOffsetNs).putLong(mBlockMinDeviceNs);
+        out.putDouble(mSw).putDouble(mSx).putDouble(mSy).putDouble(mSxx).putDouble(mSxy);
+        out.putInt(mBlocks).putDouble(mInterceptNs).putDouble(mSlope);
+    }
+
+    /**
+     * Picks up where {@link #saveState} left off.  The phone clock keeps counting while the
+     * process is gone, so the fit still holds unless the phone rebooted.
+     */
+    public synchronized void restoreState(ByteBuffer in) {
+        mLastRawMicros = in.getLong();
+        mWrapOffsetMicros = in.getLong();
+        mHaveOrigin = in.get() != 0;
+        mOriginDeviceNs = in.getLong();
+        mBlockStartNs = in.getLong();
+        mBlockMinOffsetNs = in.getLong();
+        mBlockMinDeviceNs = in.getLong();
+        mSw = in.getDouble();
+        mSx = in.getDouble();
+        mSy = in.getDouble();
+        mSxx = in.getDouble();
+        mSxy = in.getDouble();
+        mBlocks = in.getInt();
+        mInterceptNs = in.getDouble();
+        mSlope = in.getDouble();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("offset=%.3fms drift=%.1fppm blocks=%d",
+                mInterceptNs / 1e6, mSlope * 1e6, mBlocks);
+    }
+
+    private void addBlock(long deviceNs, long offsetNs) {
+        final double x = (deviceNs - mOriginDeviceNs) / 1e9;
+        final double y = offsetNs;
+        mSw = mSw * FORGET + 1;
+        mSx = mSx * FORGET + x;
+        mSy = mSy * FORGET + y;
+        mSxx = mSxx * FORGET + x * x;
+        mSxy = mSxy * FORGET + x * y;
+        mBlocks++;
+
+        final double det = mSw * mSxx - mSx * mSx;
+        if (mBlocks >= 2 && det > 1e-9) {
+            // Slope is ns of offset per second of device time; store it dimensionless.
+            final double slopeNsPerS = (mSw * mSxy - mSx * mSy) / det;
+            mInterceptNs = (mSy - slopeNsPerS * mSx) / mSw;
+            mSlope = slopeNsPerS / 1e9;
+        } else {
+            mInterceptNs = mSy / mSw;
+            mSlope = 0;
+        }
+    }
+}
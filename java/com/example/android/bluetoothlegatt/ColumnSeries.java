@@ -0,0 +1,201 @@
+package com.example.android.bluetoothlegatt;
+
+import android.graphics.Canvas;
+
+import com.jjoe64.graphview.GraphView;
+import com.jjoe64.graphview.series.DataPointInterface;
+import com.jjoe64.graphview.series.LineGraphSeries;
+
+import java.util.Iterator;
+
+/**
+ * Line series over primitive columns: Y values in a {@code float[]}, X values either in an
+ * ascending {@code double[]} or on a uniform grid.  No object is created per point; GraphView
+ * walks the columns through a single reusable {@link PointCursor}.
+ *
+ * When the visible range holds more than two points per pixel, each pixel's worth of points
+ * is folded into its min and max, so a draw costs O(visible points) time and nothing in garbage
+ * however long the series is.  NaN values are gaps and are not plotted.
+ */
+public class ColumnSeries extends LineGraphSeries<DataPointInterface> {
+
+    private static final int DEFAULT_WIDTH = 512;
+
+    private final double[] mX;
+    private final double mX0;
+    private final double mDx;
+    private final float[] mY;
+    private final int mCount;
+    private final double mMinY;
+    private final double mMaxY;
+
+    private int mWidth = DEFAULT_WIDTH;
+    // Per-pixel envelope of the last reduced range.
+    private double[] mBucketX = new double[0];
+    private float[] mBucketMin = new float[0];
+    private float[] mBucketMax = new float[0];
+
+    private final PointCursor mPoints = new PointCursor() {
+        @Override
+        double x(int i) {
+            return xAt(i);
+        }
+
+        @Override
+        double y(int i) {
+            return mY[i];
+        }
+    };
+
+    private final PointCursor mBuckets = new PointCursor() {
+        @Override
+        double x(int i) {
+            return mBucketX[i >> 1];
+        }
+
+        @Override
+        double y(int i) {
+            return (i & 1) == 0 ? mBucketMin[i >> 1] : mBucketMax[i >> 1];
+        }
+    };
+
+    /**
+     * @param x Ascending X values; only the first {@code count} are used.
+     */
+    public ColumnSeries(double[] x, float[] y, int count) {
+        this(x, 0, 0, y, count);
+    }
+
+    /**
+     * Series whose point {@code i} lies at {@code x0 + i * dx}.
+     */
+    public ColumnSeries(double x0, double dx, float[] y, int count) {
+        this(null, x0, dx, y, count);
+    }
+
+    private ColumnSeries(double[] x, double x0, double dx, float[] y, int count) {
+        mX = x;
+        mX0 = x0;
+        mDx = dx;
+        mY = y;
+        mCount = count;
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (int i = 0; i < count; i++) {
+            // Comparisons with NaN are false, so a gap only replaces a min or max still unset.
+            if (y[i] < min || Float.isNaN(min)) {
+                min = y[i];
+            }
+            if (y[i] > max || Float.isNaN(max)) {
+                max = y[i];
+            }
+        }
+        mMinY = Float.isNaN(min) ? 0 : min;
+        mMaxY = Float.isNaN(max) ? 0 : max;
+    }
+
+    @Override
+    public void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
+        if (graphView.getWidth() > 0) {
+            mWidth = graphView.getWidth();
+        }
+        super.draw(graphView, canvas, isSecondScale);
+    }
+
+    @Override
+    public Iterator<DataPointInterface> getValues(double from, double until) {
+        // One point either side of the range, so lines run off the edges of the viewport.
+        final int first = Math.max(0, indexAfter(from) - 1);
+        final int end = Math.min(mCount, indexAfter(until) + 1);
+        if (end - first <= 2 * mWidth) {
+            return mPoints.reset(first, end);
+        }
+        return mBuckets.reset(0, 2 * reduce(first, end, mWidth));
+    }
+
+    @Override
+    public double getLowestValueX() {
+        return mCount == 0 ? 0 : xAt(0);
+    }
+
+    @Override
+    public double getHighestValueX() {
+        return mCount == 0 ? 0 : xAt(mCount - 1);
+    }
+
+    @Override
+    public double getLowestValueY() {
+        return mMinY;
+    }
+
+    @Override
+    public double getHighestValueY() {
+        return mMaxY;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    private double xAt(int i) {
+        return mX != null ? mX[i] : mX0 + i * mDx;
+    }
+
+    // Index of the first point with an X value above x.
+    private int indexAfter(double x) {
+        if (mX == null) {
+            if (mDx <= 0) {
+                return x < mX0 ? 0 : mCount;
+            }
+            final double i = Math.floor((x - mX0) / mDx) + 1;
+            return (int) Math.max(0, Math.min(mCount, i));
+        }
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mX[mid] <= x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Folds points [first, end) into at most width buckets of equal point count.
+    private int reduce(int first, int end, int width) {
+        if (mBucketX.length < width) {
+            mBucketX = new double[width];
+            mBucketMin = new float[width];
+            mBucketMax = new float[width];
+        }
+        final int span = end - first;
+        int n = 0;
+        for (int b = 0; b < width; b++) {
+            final int lo = first + (int) ((long) span * b / width);
+            final int hi = first + (int) ((long) span * (b + 1) / width);
+            float min = Float.NaN;
+            float max = Float.NaN;
+            for (int i = lo; i < hi; i++) {
+                final float y = mY[i];
+                if (y < min || Float.isNaN(min)) {
+                    min = y;
+                }
+                if (y > max || Float.isNaN(max)) {
+                    max = y;
+                }
+            }
+            mBucketX[n] = xAt(lo);
+            mBucketMin[n] = min;
+            mBucketMax[n] = max;
+            n++;
+        }
+        return n;
+    }
+}
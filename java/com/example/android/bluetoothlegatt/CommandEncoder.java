@@ -0,0 +1,142 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Encodes binary commands for the altimeter's TX characteristic.
+ *
+ * A command frame is laid out as {@code [opcode][request id][arg length][args...]} with
+ * multi-byte arguments in big-endian order, matching the float encoding on the RX side.
+ * Request id 0 is reserved for fire-and-forget commands that the altimeter does not ack.
+ *
+ * The altimeter acknowledges a command with a 3 byte RX payload
+ * {@code [ACK_MARKER][request id][status]}, followed like every RX frame by a {@link FrameCrc}.
+ *
+ * Frames are built in a single preallocated buffer; callers must copy the frame out
+ * (see {@link #copyTo(byte[])}) before starting the next one.
+ */
+public class CommandEncoder {
+
+    // Opcodes
+    public static final int OP_READ = 0x01;
+    public static final int OP_WRITE = 0x02;
+    public static final int OP_LED_ON = 0x03;
+    public static final int OP_LED_OFF = 0x04;
+    // Argument: samples per second to stream on the RX characteristic.
+    public static final int OP_SET_RATE = 0x05;
+    // No arguments: the altimeter sends its flight directory, then acks.
+    public static final int OP_LIST_FLIGHTS = 0x06;
+    // Arguments: flight, first sample, sample count.  The samples are sent, then acked.
+    public static final int OP_READ_RANGE = 0x07;
+
+    // Default ATT payload size, the longest frame we can write without a larger MTU.
+    public static final int MAX_FRAME_LENGTH = 20;
+    public static final int HEADER_LENGTH = 3;
+
+    public static final byte ACK_MARKER = (byte) 0xAC;
+    public static final int ACK_FRAME_LENGTH = 3;
+    public static final int ACK_STATUS_OK = 0;
+
+    private final byte[] mFrame = new byte[MAX_FRAME_LENGTH];
+    private int mLength;
+
+    /**
+     * Starts a new frame, discarding any frame in progress.
+     */
+    public CommandEncoder begin(int opcode, int requestId) {
+        mFrame[0] = (byte) opcode;
+        mFrame[1] = (byte) requestId;
+        mFrame[2] = 0;
+        mLength = HEADER_LENGTH;
+        return this;
+    }
+
+    public CommandEncoder putU8(int value) {
+        ensureCapacity(1);
+        mFrame[mLength++] = (byte) value;
+        return this;
+    }
+
+    public CommandEncoder putU16(int value) {
+        ensureCapacity(2);
+        mFrame[mLength++] = (byte) (value >>> 8);
+        mFrame[mLength++] = (byte) value;
+        return this;
+    }
+
+    public CommandEncoder putI32(int value) {
+        ensureCapacity(4);
+        mFrame[mLength++] = (byte) (value >>> 24);
+        mFrame[mLength++] = (byte) (value >>> 16);
+        mFrame[mLength++] = (byte) (value >>> 8);
+        mFrame[mLength++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Finishes the frame in progress.
+     *
+     * @return The total frame length in bytes.
+     */
+    public int end() {
+        mFrame[2] = (byte) (mLength - HEADER_LENGTH);
+        return mLength;
+    }
+
+    /**
+     * Copies the finished frame into {@code dst}, which must hold at least {@link #length()} bytes.
+     */
+    public void copyTo(byte[] dst) {
+        System.arraycopy(mFrame, 0, dst, 0, mLength);
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public static boolean isAck(byte[] rx) {
+        return rx != null && rx.length == ACK_FRAME_LENGTH + FrameCrc.LENGTH
+                && rx[0] == ACK_MARKER && FrameCrc.verify(rx, rx.length);
+    }
+
+    public static int ackRequestId(byte[] rx) {
+        return rx[1] & 0xFF;
+    }
+
+    public static int ackStatus(byte[] rx) {
+        return rx[2] & 0xFF;
+    }
+
+    /**
+     * @return true if the altimeter answers the command with a stream of frames on the RX
+     *         characteristic before acking it.  Otherwise the link stays quiet.
+     */
+    public static boolean startsStream(int opcode) {
+        return opcode == OP_READ || opcode == OP_LIST_FLIGHTS || opcode == OP_READ_RANGE;
+    }
+
+    public static String opcodeName(int opcode) {
+        switch (opcode) {
+            case OP_READ:
+                return "READ";
+            case OP_WRITE:
+                return "WRITE";
+            case OP_LED_ON:
+                return "LED_ON";
+            case OP_LED_OFF:
+                return "LED_OFF";
+            case OP_SET_RATE:
+                return "SET_RATE";
+            case OP_LIST_FLIGHTS:
+                return "LIST_FLIGHTS";
+            case OP_READ_RANGE:
+                return "READ_RANGE";
+            default:
+                return "OP_" + opcode;
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (mLength + bytes > MAX_FRAME_LENGTH) {
+            throw new IllegalStateException("Command frame exceeds " + MAX_FRAME_LENGTH + " bytes");
+        }
+    }
+}
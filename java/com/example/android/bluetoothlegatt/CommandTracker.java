@@ -0,0 +1,192 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Tracks commands that have been written to the TX characteristic and are waiting for an
+ * ack on the RX characteristic. Up to {@link #MAX_IN_FLIGHT} commands can be outstanding
+ * at once; each is matched to its ack by request id, expires after its own timeout and
+ * contributes its round-trip time to {@link #getRoundTrip()}.
+ *
+ * State is kept in arrays indexed by request id so matching an ack does not allocate.
+ */
+public class CommandTracker {
+
+    public static final int MAX_IN_FLIGHT = 255;
+
+    /**
+     * Receives the outcome of a single command. Called on the thread that delivered the ack
+     * or ran {@link #sweep(long)}.
+     */
+    public interface Callback {
+        void onAck(int opcode, int status, long roundTripNs);
+        void onTimeout(int opcode);
+    }
+
+    private final boolean[] mInFlight = new boolean[MAX_IN_FLIGHT + 1];
+    private final int[] mOpcode = new int[MAX_IN_FLIGHT + 1];
+    private final long[] mTimeoutNs = new long[MAX_IN_FLIGHT + 1];
+    private final long[] mSentNs = new long[MAX_IN_FLIGHT + 1];
+    private final long[] mDeadlineNs = new long[MAX_IN_FLIGHT + 1];
+    private final Callback[] mCallback = new Callback[MAX_IN_FLIGHT + 1];
+
+    private final LatencyStats mRoundTrip = new LatencyStats("Command RTT");
+
+    private int mNextId = 1;
+    private int mInFlightCount;
+    private long mAcked;
+    private long mTimedOut;
+    private long mUnmatched;
+
+    /**
+     * Reserves a request id for a new command.
+     *
+     * @return The request id, or -1 if {@link #MAX_IN_FLIGHT} commands are already outstanding.
+     */
+    public synchronized int begin(int opcode, long timeoutNs, Callback callback) {
+        if (mInFlightCount == MAX_IN_FLIGHT) {
+            return -1;
+        }
+        while (mInFlight[mNextId]) {
+            mNextId = mNextId == MAX_IN_FLIGHT ? 1 : mNextId + 1;
+        }
+        final int id = mNextId;
+        mNextId = mNextId == MAX_IN_FLIGHT ? 1 : mNextId + 1;
+
+        mInFlight[id] = true;
+        mOpcode[id] = opcode;
+        mTimeoutNs[id] = timeoutNs;
+        mSentNs[id] = 0;
+        mDeadlineNs[id] = Long.MAX_VALUE;
+        mCallback[id] = callback;
+        mInFlightCount++;
+        return id;
+    }
+
+    /**
+     * Starts the round-trip and timeout clocks once the frame has been handed to the GATT stack.
+     */
+    public synchronized void markSent(int requestId, long nowNs) {
+        if (mInFlight[requestId]) {
+            mSentNs[requestId] = nowNs;
+            mDeadlineNs[requestId] = nowNs + mTimeoutNs[requestId];
+        }
+    }
+
+    /**
+     * Releases a request id whose frame could not be written.
+     */
+    public synchronized void abort(int requestId) {
+        release(requestId);
+    }
+
+    /**
+     * Matches an ack frame to its outstanding command.
+     *
+     * @return true if the ack matched a command in flight.
+     */
+    public boolean onAck(int requestId, int status, long nowNs) {
+        final Callback callback;
+        final int opcode;
+        final long roundTripNs;
+        synchronized (this) {
+            if (requestId <= 0 || requestId > MAX_IN_FLIGHT || !mInFlight[requestId]) {
+                mUnmatched++;
+                return false;
+            }
+            opcode = mOpcode[requestId];
+            callback = mCallback[requestId];
+            roundTripNs = mSentNs[requestId] == 0 ? 0 : nowNs - mSentNs[requestId];
+            release(requestId);
+            mAcked++;
+        }
+        mRoundTrip.record(roundTripNs);
+        if (callback != null) {
+            callback.onAck(opcode, status, roundTripNs);
+        }
+        return true;
+    }
+
+    /**
+     * Expires every command whose deadline has passed.  Commands still queued for the TX
+     * characteristic have no deadline yet; their clock starts at {@link #markSent}, which is
+     * when the caller should sweep again.
+     *
+     * @return The earliest remaining deadline, or -1 if no sent command is awaiting an ack.
+     */
+    public long sweep(long nowNs) {
+        long nextDeadline = -1;
+        for (int id = 1; id <= MAX_IN_FLIGHT; id++) {
+            final Callback callback;
+            final int opcode;
+            synchronized (this) {
+                if (!mInFlight[id]) {
+                    continue;
+                }
+                if (mDeadlineNs[id] > nowNs) {
+                    if (mDeadlineNs[id] == Long.MAX_VALUE) {
+                        continue;
+                    }
+                    if (nextDeadline == -1 || mDeadlineNs[id] < nextDeadline) {
+                        nextDeadline = mDeadlineNs[id];
+                    }
+                    continue;
+                }
+                opcode = mOpcode[id];
+                callback = mCallback[id];
+                release(id);
+                mTimedOut++;
+            }
+            if (callback != null) {
+                callback.onTimeout(opcode);
+            }
+        }
+        return nextDeadline;
+    }
+
+    public synchronized void clear() {
+        for (int id = 1; id <= MAX_IN_FLIGHT; id++) {
+            release(id);
+        }
+    }
+
+    /**
+     * @return true if a command that makes the altimeter stream has been sent and is still
+     *         waiting for its ack.
+     */
+    public synchronized boolean isStreamPending() {
+        for (int id = 1; id <= MAX_IN_FLIGHT; id++) {
+            if (mInFlight[id] && mSentNs[id] != 0 && CommandEncoder.startsStream(mOpcode[id])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The opcode of an outstanding command, or -1 if the request id is not in flight.
+     */
+    public synchronized int getOpcode(int requestId) {
+        return mInFlight[requestId] ? mOpcode[requestId] : -1;
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlightCount;
+    }
+
+    public LatencyStats getRoundTrip() {
+        return mRoundTrip;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("in flight=%d acked=%d timed out=%d unmatched=%d, %s",
+                mInFlightCount, mAcked, mTimedOut, mUnmatched, mRoundTrip);
+    }
+
+    private void release(int id) {
+        if (mInFlight[id]) {
+            mInFlight[id] = false;
+            mCallback[id] = null;
+            mInFlightCount--;
+        }
+    }
+}
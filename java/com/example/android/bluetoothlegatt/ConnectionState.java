@@ -0,0 +1,167 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The altimeter link's state machine:
+ *
+ * <pre>
+ * DISCONNECTED -> CONNECTING -> DISCOVERING -> SUBSCRIBING -> STREAMING
+ *                      |             ^  |            |            |
+ *                      +------> RECONNECTING <-------+------------+
+ * </pre>
+ *
+ * Any state can also return to DISCONNECTED.  DISCOVERING may go straight to STREAMING when
+ * the altimeter kept notifications enabled across a reconnect.
+ *
+ * The state is a single {@link AtomicInteger}, moved with compare-and-set, so binder callback
+ * threads and the UI can read and change it without locks, and a transition the table does
+ * not allow is refused rather than applied.  Listeners live in a copy-on-write list: the
+ * callback thread notifies them by iterating a snapshot, never taking a lock, and they are
+ * called in order on the thread that made the transition.
+ */
+public class ConnectionState {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_DISCOVERING = 2;
+    public static final int STATE_SUBSCRIBING = 3;
+    public static final int STATE_STREAMING = 4;
+    public static final int STATE_RECONNECTING = 5;
+    public static final int STATE_COUNT = 6;
+
+    // Bit set of the states each state may move to, indexed by the current state.
+    private static final int[] ALLOWED = {
+            // DISCONNECTED
+            1 << STATE_CONNECTING,
+            // CONNECTING
+            1 << STATE_DISCONNECTED | 1 << STATE_DISCOVERING | 1 << STATE_RECONNECTING,
+            // DISCOVERING
+            1 << STATE_DISCONNECTED | 1 << STATE_SUBSCRIBING | 1 << STATE_STREAMING
+                    | 1 << STATE_RECONNECTING,
+            // SUBSCRIBING
+            1 << STATE_DISCONNECTED | 1 << STATE_STREAMING | 1 << STATE_RECONNECTING,
+            // STREAMING
+            1 << STATE_DISCONNECTED | 1 << STATE_RECONNECTING,
+            // RECONNECTING
+            1 << STATE_DISCONNECTED | 1 << STATE_DISCOVERING,
+    };
+
+    /**
+     * Told about every transition, on the thread that made it.  Must not block.
+     */
+    public interface Listener {
+        void onStateChanged(int from, int to);
+    }
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_DISCONNECTED);
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+    private final AtomicInteger mRefused = new AtomicInteger();
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * @return true while a GATT link is up, whether or not samples are flowing yet.
+     */
+    public boolean isLinkUp() {
+        return isLinkUp(mState.get());
+    }
+
+    public static boolean isLinkUp(int state) {
+        return state == STATE_DISCOVERING || state == STATE_SUBSCRIBING
+                || state == STATE_STREAMING;
+    }
+
+    /**
+     * Moves from {@code from} to {@code to} only if the state is still {@code from}.
+     *
+     * @return false if the state had moved on, or the transition is not allowed.
+     */
+    public boolean transition(int from, int to) {
+        if (!allowed(from, to)) {
+            mRefused.incrementAndGet();
+            return false;
+        }
+        if (!mState.compareAndSet(from, to)) {
+            return false;
+        }
+        notifyListeners(from, to);
+        return true;
+    }
+
+    /**
+     * Moves to {@code to} from whatever the current state is, if that transition is allowed.
+     *
+     * @return false if already in {@code to} or the transition is not allowed.
+     */
+    public boolean moveTo(int to) {
+        while (true) {
+            final int from = mState.get();
+            if (from == to) {
+                return false;
+            }
+            if (!allowed(from, to)) {
+                mRefused.incrementAndGet();
+                return false;
+            }
+            if (mState.compareAndSet(from, to)) {
+                notifyListeners(from, to);
+                return true;
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return How many transitions have been refused as not allowed.
+     */
+    public int getRefused() {
+        return mRefused.get();
+    }
+
+    public static boolean allowed(int from, int to) {
+        return from >= 0 && from < STATE_COUNT && to >= 0 && to < STATE_COUNT
+                && (ALLOWED[from] & 1 << to) != 0;
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case STATE_DISCONNECTED:
+                return "disconnected";
+            case STATE_CONNECTING:
+                return "connecting";
+            case STATE_DISCOVERING:
+                return "discovering";
+            case STATE_SUBSCRIBING:
+                return "subscribing";
+            case STATE_STREAMING:
+                return "streaming";
+            case STATE_RECONNECTING:
+                return "reconnecting";
+            default:
+                return "state " + state;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Connection " + stateName(mState.get()) + ", " + mRefused.get() + " refused";
+    }
+
+    private void notifyListeners(int from, int to) {
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(from, to);
+        }
+    }
+}
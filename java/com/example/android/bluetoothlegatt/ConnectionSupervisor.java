@@ -0,0 +1,285 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the altimeter link up while the user wants it connected.
+ *
+ * <ul>
+ *     <li>A dropped link is reconnected at once through the cached {@code BluetoothGatt}, then
+ *         with exponential backoff up to {@link #MAX_BACKOFF_MS}.  After a GATT error, or when
+ *         the cached handle keeps failing, a fresh connection is opened instead.</li>
+ *     <li>The altimeter only sends while it answers a request, so the link is only watched
+ *         while a streaming command awaits its ack.  If it stops delivering samples for
+ *         {@link #SILENCE_TIMEOUT_MS}, or has not delivered the first one
+ *         {@link #FIRST_SAMPLE_TIMEOUT_MS} after the request went out, it is treated as lost
+ *         without waiting out the much longer BLE supervision timeout.  An idle link is left
+ *         alone.</li>
+ *     <li>Every gap from the moment the link dropped to the first sample after reconnecting is
+ *         recorded, so the time to recover can be measured and driven down.</li>
+ * </ul>
+ *
+ * All callbacks to the {@link Link} run on the supervisor's handler thread.
+ */
+public class ConnectionSupervisor {
+    private final static String TAG = ConnectionSupervisor.class.getSimpleName();
+
+    // HCI and GATT disconnect reasons reported to onConnectionStateChange().
+    public static final int STATUS_SUPERVISION_TIMEOUT = 0x08;
+    public static final int STATUS_GATT_ERROR = 0x85;
+
+    public static final long MIN_BACKOFF_MS = 250;
+    public static final long MAX_BACKOFF_MS = 8000;
+    // A connect attempt that has not completed by then is abandoned and retried.
+    public static final long CONNECT_TIMEOUT_MS = 5000;
+    // The slowest streaming rate is 1 Hz, so three missed samples means the link is gone.
+    public static final long SILENCE_TIMEOUT_MS = 3000;
+    // The altimeter may have to seek through its flash first, so the first sample gets longer.
+    public static final long FIRST_SAMPLE_TIMEOUT_MS = 10000;
+    // Cached handle attempts before falling back to a fresh connection.
+    private static final int CACHED_ATTEMPTS = 2;
+
+    /**
+     * The connection being supervised.
+     */
+    public interface Link {
+        /**
+         * Starts connecting.
+         *
+         * @param fresh Discard the cached handle and open a new connection.
+         * @return false if the attempt could not be started.
+         */
+        boolean reconnect(boolean fresh);
+
+        /**
+         * Tears down a link that has gone silent; its disconnect is reported as usual.
+         */
+        void drop();
+
+        /**
+         * @return true while the altimeter owes us samples, i.e. a streaming request has been
+         *         sent and neither acked nor timed out.
+         */
+        boolean isStreamExpected();
+    }
+
+    private final Handler mHandler;
+    private final Link mLink;
+    private final LatencyStats mGaps = new LatencyStats("Reconnect gap");
+
+    private boolean mWanted;
+    private boolean mConnected;
+    private boolean mFreshNeeded;
+    private int mAttempts;
+    private long mBackoffMs = MIN_BACKOFF_MS;
+    // When the current gap started, or -1 when samples are flowing.
+    private long mGapStartNs = -1;
+    private int mGapStatus;
+    // When the latest streaming request went out.
+    private long mStreamStartNs;
+    private long mLastSampleNs = -1;
+    private long mDrops;
+
+    private final Runnable mAttempt = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    private final Runnable mConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectionSupervisor.this) {
+                if (!mWanted || mConnected) {
+                    return;
+                }
+                Log.w(TAG, "Connect attempt " + mAttempts + " timed out");
+                mFreshNeeded = true;
+            }
+            scheduleAttempt();
+        }
+    };
+
+    private final Runnable mWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            // Once the request is acked or has timed out, silence is expected.
+            if (!mLink.isStreamExpected()) {
+                return;
+            }
+            final boolean silent;
+            final long silentMs;
+            synchronized (ConnectionSupervisor.this) {
+                if (!mConnected) {
+                    return;
+                }
+                // Before the first sample, silence counts from the request.
+                final boolean started = mLastSampleNs >= mStreamStartNs;
+                silentMs = (SystemClock.elapsedRealtimeNanos()
+                        - (started ? mLastSampleNs : mStreamStartNs)) / 1000000;
+                silent = silentMs >= (started ? SILENCE_TIMEOUT_MS : FIRST_SAMPLE_TIMEOUT_MS);
+            }
+            if (silent) {
+                Log.w(TAG, "No samples for " + silentMs + " ms, dropping the link");
+                mLink.drop();
+            } else {
+                mHandler.postDelayed(this, SILENCE_TIMEOUT_MS);
+            }
+        }
+    };
+
+    public ConnectionSupervisor(Handler handler, Link link) {
+        mHandler = handler;
+        mLink = link;
+    }
+
+    /**
+     * The user asked to connect: supervise until {@link #onDisconnectRequested()}.
+     */
+    public synchronized void onConnectRequested() {
+        mWanted = true;
+        mAttempts = 0;
+        mBackoffMs = MIN_BACKOFF_MS;
+        mFreshNeeded = false;
+        mGapStartNs = -1;
+    }
+
+    /**
+     * The user asked to disconnect: stop reconnecting.
+     */
+    public synchronized void onDisconnectRequested() {
+        mWanted = false;
+        mGapStartNs = -1;
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.removeCallbacks(mConnectTimeout);
+        mHandler.removeCallbacks(mWatchdog);
+    }
+
+    public synchronized void onConnected() {
+        mConnected = true;
+        mLastSampleNs = -1;
+        mHandler.removeCallbacks(mConnectTimeout);
+        mHandler.removeCallbacks(mWatchdog);
+    }
+
+    /**
+     * A command that makes the altimeter stream has been written: watch the link until it is
+     * acked.
+     */
+    public synchronized void onStreamRequested() {
+        if (!mConnected) {
+            return;
+        }
+        mStreamStartNs = SystemClock.elapsedRealtimeNanos();
+        mHandler.removeCallbacks(mWatchdog);
+        mHandler.postDelayed(mWatchdog, SILENCE_TIMEOUT_MS);
+    }
+
+    /**
+     * Reports a lost link.
+     *
+     * @return true if the supervisor will reconnect, so session state should be kept.
+     */
+    public boolean onDisconnected(int status) {
+        synchronized (this) {
+            mConnected = false;
+            mHandler.removeCallbacks(mWatchdog);
+            mHandler.removeCallbacks(mConnectTimeout);
+            if (!mWanted) {
+                return false;
+            }
+            if (mGapStartNs < 0) {
+                mGapStartNs = SystemClock.elapsedRealtimeNanos();
+                mGapStatus = status;
+                mDrops++;
+                Log.w(TAG, "Link lost (" + statusName(status) + "), reconnecting");
+            }
+            if (status == STATUS_GATT_ERROR) {
+                mFreshNeeded = true;
+            }
+        }
+        scheduleAttempt();
+        return true;
+    }
+
+    /**
+     * Reports a sample or download frame from the altimeter; acks do not count.  Called for
+     * every sample, so it never allocates.
+     */
+    public synchronized void onSample(long rxTimeNs) {
+        mLastSampleNs = rxTimeNs;
+        if (mGapStartNs >= 0) {
+            final long gapNs = rxTimeNs - mGapStartNs;
+            mGaps.record(gapNs);
+            Log.i(TAG, String.format("Recovered from %s after %.0f ms and %d attempts",
+                    statusName(mGapStatus), gapNs / 1e6, mAttempts));
+            mGapStartNs = -1;
+            mAttempts = 0;
+            mBackoffMs = MIN_BACKOFF_MS;
+            mFreshNeeded = false;
+        }
+    }
+
+    /**
+     * @return true between losing the link and the first sample after reconnecting.
+     */
+    public synchronized boolean isRecovering() {
+        return mGapStartNs >= 0;
+    }
+
+    public LatencyStats getGaps() {
+        return mGaps;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Link drops=" + mDrops + ", " + mGaps;
+    }
+
+    public static String statusName(int status) {
+        switch (status) {
+            case STATUS_SUPERVISION_TIMEOUT:
+                return "supervision timeout";
+            case STATUS_GATT_ERROR:
+                return "GATT error";
+            default:
+                return "status " + status;
+        }
+    }
+
+    private void scheduleAttempt() {
+        final long delayMs;
+        synchronized (this) {
+            // The first attempt after a drop goes out immediately.
+            delayMs = mAttempts == 0 ? 0 : mBackoffMs;
+            if (mAttempts > 0) {
+                mBackoffMs = Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+            }
+        }
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.postDelayed(mAttempt, delayMs);
+    }
+
+    private void attempt() {
+        final boolean fresh;
+        synchronized (this) {
+            if (!mWanted || mConnected) {
+                return;
+            }
+            mAttempts++;
+            fresh = mFreshNeeded || mAttempts > CACHED_ATTEMPTS;
+        }
+        Log.i(TAG, "Reconnect attempt " + mAttempts + (fresh ? " (new connection)" : ""));
+        if (mLink.reconnect(fresh)) {
+            mHandler.postDelayed(mConnectTimeout, CONNECT_TIMEOUT_MS);
+        } else {
+            synchronized (this) {
+                mFreshNeeded = true;
+            }
+            scheduleAttempt();
+        }
+    }
+}
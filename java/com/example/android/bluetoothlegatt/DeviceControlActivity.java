@@ -24,7 +24,6 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -37,14 +36,11 @@ import android.widget.ExpandableListView;
 import android.widget.ListView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -63,12 +59,12 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceName;
     private String mDeviceAddress;
     private BluetoothLeService mBluetoothLeService;
-    private boolean mConnected = false;
-    private Map<UUID, BluetoothGattCharacteristic> map = new HashMap<UUID, BluetoothGattCharacteristic>();
 
     private Button mButtonRead;
     private Button mButtonWrite;
     private Button mButtonFlight;
+    // Filtered pressure for mDataField, while resumed and bound.
+    private TelemetrySubscription mReadout;
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -82,43 +78,42 @@ public class DeviceControlActivity extends Activity {
             }
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            subscribeTelemetry();
+            followConnectionState();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mReadout = null;
             mBluetoothLeService = null;
         }
     };
 
+    // Follows the service's link state while resumed and bound.
+    private final ConnectionState.Listener mConnectionListener = new ConnectionState.Listener() {
+        @Override
+        public void onStateChanged(int from, final int to) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    showConnectionState(to);
+                }
+            });
+        }
+    };
+
     // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
+    // The link state arrives through mConnectionListener and samples through mReadout.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-                updateConnectionState(R.string.connected);
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                invalidateOptionsMenu();
-                clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+            if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
 
                 // Show all the supported services and characteristics on the user interface.
                 //displayGattServices(mBluetoothLeService.getSupportedGattServices());
                 getGattService(mBluetoothLeService.getSupportedGattService());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-
-                // Displays the data from the RX Characteristic
-                //displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
-                displayData(intent.getByteArrayExtra(BluetoothLeService.EXTRA_DATA));
             }
         }
     };
@@ -147,20 +142,7 @@ public class DeviceControlActivity extends Activity {
             public void onClick(View view) {
 
                 Log.w(TAG, "Sending READ command");
-                BluetoothGattCharacteristic txChar = map.get(BluetoothLeService.UUID_BLE_TX);
-
-                byte b = 0x00;
-                byte[] temp = "read".getBytes();
-                byte[] tx = new byte[temp.length + 1];
-                tx[0] = b;
-
-                for (int i = 1; i < temp.length + 1; i++) {
-
-                    tx[i] = temp[i - 1];
-                }
-
-                txChar.setValue(tx);
-                mBluetoothLeService.writeCharacteristic(txChar);
+                mBluetoothLeService.sendCommand(CommandEncoder.OP_READ, null);
             }
         });
 
@@ -170,20 +152,7 @@ public class DeviceControlActivity extends Activity {
             public void onClick(View view) {
 
                 Log.w(TAG, "Sending WRITE command");
-                BluetoothGattCharacteristic characteristic = map.get(BluetoothLeService.UUID_BLE_TX);
-
-                byte b = 0x00;
-                byte[] temp = "write".getBytes();
-                byte[] tx = new byte[temp.length + 1];
-                tx[0] = b;
-
-                for (int i = 1; i < temp.length + 1; i++) {
-
-                    tx[i] = temp[i - 1];
-                }
-
-                characteristic.setValue(tx);
-                mBluetoothLeService.writeCharacteristic(characteristic);
+                mBluetoothLeService.sendCommand(CommandEncoder.OP_WRITE, null);
             }
         });
 
@@ -207,10 +176,12 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        registerReceiver(mGattUpdateReceiver, BluetoothLeService.makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
+            subscribeTelemetry();
+            followConnectionState();
         }
     }
 
@@ -218,6 +189,13 @@ public class DeviceControlActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.getConnectionState().removeListener(mConnectionListener);
+            if (mReadout != null) {
+                mBluetoothLeService.unsubscribe(mReadout);
+            }
+        }
+        mReadout = null;
     }
 
     @Override
@@ -230,7 +208,7 @@ public class DeviceControlActivity extends Activity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.gatt_services, menu);
-        if (mConnected) {
+        if (mBluetoothLeService != null && mBluetoothLeService.getConnectionState().isLinkUp()) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
         } else {
@@ -249,6 +227,9 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_replay:
+                replayLatestFlight();
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -256,21 +237,51 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
-    private void updateConnectionState(final int resourceId) {
-        runOnUiThread(new Runnable() {
+    private void followConnectionState() {
+        final ConnectionState state = mBluetoothLeService.getConnectionState();
+        state.addListener(mConnectionListener);
+        showConnectionState(state.get());
+    }
+
+    private void showConnectionState(int state) {
+        final boolean connected = ConnectionState.isLinkUp(state);
+        mConnectionState.setText(connected ? R.string.connected : R.string.disconnected);
+        invalidateOptionsMenu();
+        if (!connected) {
+            clearUI();
+        }
+    }
+
+    private void subscribeTelemetry() {
+        if (mReadout != null) {
+            return;
+        }
+        mReadout = TelemetrySubscription.readout(TAG, new TelemetrySubscription.Listener() {
             @Override
-            public void run() {
-                mConnectionState.setText(resourceId);
+            public void onTelemetry(TelemetrySnapshot snapshot) {
+                displayData((float) snapshot.filtered[TelemetrySchema.CHANNEL_PRESSURE]);
             }
         });
+        mBluetoothLeService.subscribe(mReadout);
     }
 
-    public void displayData(byte[] byteArray) {
+    public void displayData(float value) {
+
+        mDataField.setText(String.format("%.2f", value));
+    }
 
-        if (byteArray != null) {
+    private void replayLatestFlight() {
 
-            float value = ByteBuffer.wrap(byteArray).order(ByteOrder.BIG_ENDIAN).getFloat();
-            mDataField.setText(String.format("%.2f", value));
+        final File log = FlightLog.latest(this);
+        if (log == null) {
+            Toast.makeText(this, "No recorded flight to replay", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (mBluetoothLeService.startReplay(log, 1.0)) {
+            Toast.makeText(this, "Replaying " + log.getName(), Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, "Disconnect from the altimeter to replay a flight",
+                    Toast.LENGTH_LONG).show();
         }
     }
 
@@ -282,9 +293,6 @@ public class DeviceControlActivity extends Activity {
             return;
         }
 
-        BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(BluetoothLeService.UUID_BLE_TX);
-        map.put(characteristic.getUuid(), characteristic);
-
         BluetoothGattCharacteristic characteristicRx = gattService.getCharacteristic(BluetoothLeService.UUID_BLE_RX);
 
         if (characteristicRx == null) {
@@ -296,29 +304,11 @@ public class DeviceControlActivity extends Activity {
         mBluetoothLeService.readCharacteristic(characteristicRx);
     }
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
-
     public void onClickLEDOn(View v) {
 
         if (mBluetoothLeService != null) {
 
-            byte b = 0x00;
-            byte[] temp = "on".getBytes();
-            byte[] data = new byte[temp.length + 1];
-            data[0] = b;
-
-            for (int i = 1; i < temp.length + 1; i++) {
-                data[i] = temp[i - 1];
-            }
-
-            mBluetoothLeService.writeCustomCharacteristic(data);
+            mBluetoothLeService.sendCommand(CommandEncoder.OP_LED_ON, null);
         }
     }
 
@@ -326,16 +316,7 @@ public class DeviceControlActivity extends Activity {
 
         if (mBluetoothLeService != null) {
 
-            byte b = 0x00;
-            byte[] temp = "off".getBytes();
-            byte[] data = new byte[temp.length + 1];
-            data[0] = b;
-
-            for (int i = 1; i < temp.length + 1; i++) {
-                data[i] = temp[i - 1];
-            }
-
-            mBluetoothLeService.writeCustomCharacteristic(data);
+            mBluetoothLeService.sendCommand(CommandEncoder.OP_LED_OFF, null);
         }
     }
 
@@ -0,0 +1,65 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Measures the per-sample cost of each {@link StreamFilter} operator and of the service's
+ * readout chain over a synthetic noisy pressure stream with spikes.
+ *
+ * Each filter runs once to warm up the JIT, then is timed over the whole stream; heap growth
+ * across the timed run shows whether the hot path allocates.
+ */
+public final class FilterBenchmark {
+
+    public static final int DEFAULT_SAMPLES = 1000000;
+
+    private static final float SAMPLE_RATE_HZ = 100f;
+
+    private FilterBenchmark() {
+    }
+
+    /**
+     * @return One line per filter.
+     */
+    public static String run(int samples) {
+        final float[] input = new float[samples];
+        for (int i = 0; i < samples; i++) {
+            // Slow drift, sensor noise and an occasional ejection spike.
+            input[i] = (float) (1013 - 0.5 * Math.sin(i * 1e-4) + 0.05 * Math.sin(i * 1.7)
+                    + (i % 997 == 0 ? 5 : 0));
+        }
+        final StreamFilter[] filters = {
+                new StreamFilter.MovingAverage(16),
+                new StreamFilter.Exponential(0.1f),
+                new StreamFilter.Median(15),
+                StreamFilter.Biquad.lowPass(5f, SAMPLE_RATE_HZ, (float) Math.sqrt(0.5)),
+                new StreamFilter.OutlierRejector(8f, 4),
+                BluetoothLeService.readoutFilter(),
+        };
+        final StringBuilder sb = new StringBuilder().append(samples).append(" samples:");
+        for (StreamFilter filter : filters) {
+            sb.append("\n  ").append(measure(filter, input));
+        }
+        return sb.toString();
+    }
+
+    private static String measure(StreamFilter filter, float[] input) {
+        float sink = run(filter, input);
+        filter.reset();
+        final Runtime runtime = Runtime.getRuntime();
+        final long heap = runtime.totalMemory() - runtime.freeMemory();
+        final long start = System.nanoTime();
+        sink += run(filter, input);
+        final long ns = System.nanoTime() - start;
+        final long grown = runtime.totalMemory() - runtime.freeMemory() - heap;
+        return String.format("%s: %.1f ns/sample, heap %+d KB (checksum %.0f)", filter,
+                (double) ns / input.length, grown / 1024, sink);
+    }
+
+    // Returns a sum of the output so the work cannot be optimized away.
+    private static float run(StreamFilter filter, float[] input) {
+        float sum = 0;
+        for (int i = 0; i < input.length; i++) {
+            sum += filter.process(input[i]);
+        }
+        return sum;
+    }
+}
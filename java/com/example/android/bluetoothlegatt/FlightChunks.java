@@ -0,0 +1,222 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Opens a {@link FlightLog} as independently decodable chunks, decoded in parallel.
+ *
+ * Log records are fixed-size, so the offset table is arithmetic: chunk {@code c} starts at
+ * byte {@code c * CHUNK_SAMPLES * RECORD_SIZE}.  Chunks are {@code FACTOR^CHUNK_LEVELS}
+ * samples, so every chunk's own {@link FlightPyramid} ends on a bucket boundary of each level
+ * below {@link #CHUNK_LEVELS}.  The chunk pyramids and per-chunk summaries are built on a
+ * fork/join pool, one chunk per leaf, then stitched into a single pyramid for the graph.
+ */
+public class FlightChunks {
+    private final static String TAG = FlightChunks.class.getSimpleName();
+
+    public static final int CHUNK_LEVELS = 5;
+    public static final int CHUNK_SAMPLES = pow(FlightPyramid.FACTOR, CHUNK_LEVELS);
+
+    // Offset table and per-chunk summaries, indexed by chunk.
+    private final long[] mOffset;
+    private final int[] mCount;
+    private final long[] mStartNs;
+    private final long[] mEndNs;
+    private final float[] mMin;
+    private final float[] mMax;
+
+    private final FlightPyramid[] mPyramids;
+    private FlightPyramid mPyramid;
+    private IOException mError;
+    private long mOpenNs;
+    private int mParallelism;
+
+    private FlightChunks(long samples) {
+        final int chunks = (int) ((samples + CHUNK_SAMPLES - 1) / CHUNK_SAMPLES);
+        mOffset = new long[chunks];
+        mCount = new int[chunks];
+        mStartNs = new long[chunks];
+        mEndNs = new long[chunks];
+        mMin = new float[chunks];
+        mMax = new float[chunks];
+        mPyramids = new FlightPyramid[chunks];
+        for (int c = 0; c < chunks; c++) {
+            mOffset[c] = (long) c * CHUNK_SAMPLES * FlightLog.RECORD_SIZE;
+            mCount[c] = (int) Math.min(CHUNK_SAMPLES, samples - (long) c * CHUNK_SAMPLES);
+        }
+    }
+
+    /**
+     * Opens {@code log} on the shared pool, one worker per core.
+     *
+     * @param firstLevel Finest pyramid level to keep; see {@link FlightPyramid#FlightPyramid(int)}.
+     */
+    public static FlightChunks open(File log, int firstLevel) throws IOException {
+        return open(log, firstLevel, FlightOverlay.pool());
+    }
+
+    public static FlightChunks open(File log, int firstLevel, ForkJoinPool pool)
+            throws IOException {
+        final long start = System.nanoTime();
+        final FlightChunks chunks = new FlightChunks(FlightLog.sampleCount(log));
+        pool.invoke(new DecodeTask(chunks, log, firstLevel, 0, chunks.mPyramids.length));
+        if (chunks.mError != null) {
+            throw chunks.mError;
+        }
+        chunks.mPyramid = chunks.mPyramids.length == 0 ? new FlightPyramid(firstLevel)
+                : FlightPyramid.stitch(chunks.mPyramids, CHUNK_LEVELS);
+        chunks.mOpenNs = System.nanoTime() - start;
+        chunks.mParallelism = pool.getParallelism();
+        Log.i(TAG, chunks.toString());
+        return chunks;
+    }
+
+    /**
+     * Times {@link #open} of {@code log} with 1, 2, 4... workers up to one per core.
+     *
+     * @return One line per worker count.
+     */
+    public static String benchmark(File log, int firstLevel) throws IOException {
+        final StringBuilder sb = new StringBuilder("Open ").append(log.getName());
+        final int cores = Runtime.getRuntime().availableProcessors();
+        double single = 0;
+        for (int workers = 1; ; workers = Math.min(cores, workers * 2)) {
+            final ForkJoinPool pool = new ForkJoinPool(workers);
+            try {
+                // The first run warms the page cache and the JIT.
+                open(log, firstLevel, pool);
+                final FlightChunks chunks = open(log, firstLevel, pool);
+                final double ms = chunks.mOpenNs / 1e6;
+                if (workers == 1) {
+                    single = ms;
+                }
+                sb.append(String.format("\n  %d workers: %.1f ms, %.2fx", workers, ms,
+                        single / ms));
+            } finally {
+                pool.shutdown();
+            }
+            if (workers == cores) {
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    public FlightPyramid getPyramid() {
+        return mPyramid;
+    }
+
+    public int getChunkCount() {
+        return mOffset.length;
+    }
+
+    public long getOffset(int chunk) {
+        return mOffset[chunk];
+    }
+
+    public int getSampleCount(int chunk) {
+        return mCount[chunk];
+    }
+
+    public long getStartTime(int chunk) {
+        return mStartNs[chunk];
+    }
+
+    public long getEndTime(int chunk) {
+        return mEndNs[chunk];
+    }
+
+    /**
+     * @return The chunk's lowest value, or NaN if it holds no values.
+     */
+    public float getMin(int chunk) {
+        return mMin[chunk];
+    }
+
+    public float getMax(int chunk) {
+        return mMax[chunk];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Decoded %d samples in %d chunks on %d workers in %.1f ms",
+                mPyramid == null ? 0 : mPyramid.getSampleCount(), mOffset.length,
+                mParallelism, mOpenNs / 1e6);
+    }
+
+    private void decode(File log, int firstLevel, int chunk) throws IOException {
+        final long[] times = new long[mCount[chunk]];
+        final float[] values = new float[mCount[chunk]];
+        final int n = FlightLog.read(log, (long) chunk * CHUNK_SAMPLES, times.length, times,
+                values);
+        if (n < times.length) {
+            throw new IOException("Chunk " + chunk + " of " + log + " is truncated");
+        }
+        final FlightPyramid pyramid = new FlightPyramid(firstLevel);
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (int i = 0; i < n; i++) {
+            final float v = values[i];
+            pyramid.add(times[i], v);
+            if (v < min || Float.isNaN(min)) {
+                min = v;
+            }
+            if (v > max || Float.isNaN(max)) {
+                max = v;
+            }
+        }
+        mPyramids[chunk] = pyramid;
+        mStartNs[chunk] = times[0];
+        mEndNs[chunk] = times[n - 1];
+        mMin[chunk] = min;
+        mMax[chunk] = max;
+    }
+
+    private static int pow(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    private static class DecodeTask extends RecursiveAction {
+        final FlightChunks mChunks;
+        final File mLog;
+        final int mFirstLevel;
+        final int mFrom;
+        final int mTo;
+
+        DecodeTask(FlightChunks chunks, File log, int firstLevel, int from, int to) {
+            mChunks = chunks;
+            mLog = log;
+            mFirstLevel = firstLevel;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= 1) {
+                if (mTo > mFrom) {
+                    try {
+                        mChunks.decode(mLog, mFirstLevel, mFrom);
+                    } catch (IOException e) {
+                        synchronized (mChunks) {
+                            mChunks.mError = e;
+                        }
+                    }
+                }
+                return;
+            }
+            final int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new DecodeTask(mChunks, mLog, mFirstLevel, mFrom, mid),
+                    new DecodeTask(mChunks, mLog, mFirstLevel, mid, mTo));
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fetches flights from the altimeter's on-board memory a range at a time.
+ *
+ * {@link #requestDirectory()} asks for the list of stored flights.  Each flight is then fetched
+ * by sample range, time range or a window around apogee; only the parts not already stored
+ * locally are requested, in pieces of at most {@link #MAX_REQUEST_SAMPLES}, and pieces that
+ * come back incomplete are asked for again.  Fetched samples are written in place into a
+ * {@link FlightLog} named after when it was first fetched, the altimeter and the flight, and
+ * the stored ranges are kept next to it, so a flight can be completed over several sessions.
+ * Samples before a stored range that have not been fetched yet are held in the log as NaN,
+ * which the graphs show as a gap.
+ *
+ * RX frames, each followed by a {@link FrameCrc}:
+ * <pre>
+ * directory entry: [DIRECTORY_MARKER][index][entry count][flight]
+ *                  [sample count u32][sample interval us u32][apogee sample u32]
+ * memory:          [MEMORY_MARKER][flight][first sample u32] then 1 to 3 samples [f32]
+ * </pre>
+ * The markers are the leading bytes of floats below -3e10, which no pressure or altitude sample
+ * can be.  Both commands are acked once their last frame has been sent.
+ */
+public class FlightDownloader {
+    private final static String TAG = FlightDownloader.class.getSimpleName();
+
+    public static final byte DIRECTORY_MARKER = (byte) 0xD1;
+    public static final byte MEMORY_MARKER = (byte) 0xDA;
+    public static final int DIRECTORY_FRAME_LENGTH = 16;
+    public static final int MEMORY_HEADER_LENGTH = 6;
+    public static final String RANGES_EXTENSION = ".rng";
+
+    // About a second of notifications at a 7.5 ms connection interval.
+    public static final int MAX_REQUEST_SAMPLES = 1536;
+    private static final long REQUEST_TIMEOUT_NS = 2000000000L;
+    private static final long TIMEOUT_PER_SAMPLE_NS = 2000000L;
+    private static final int MAX_RETRIES = 3;
+    private static final int BATCH_SAMPLES = FlightLog.BATCH_RECORDS;
+
+    /**
+     * A flight stored on the altimeter.
+     */
+    public static final class Entry {
+        public final int flight;
+        public final long samples;
+        public final long intervalNs;
+        public final long apogeeSample;
+
+        public Entry(int flight, long samples, long intervalNs, long apogeeSample) {
+            this.flight = flight;
+            this.samples = samples;
+            this.intervalNs = intervalNs;
+            this.apogeeSample = apogeeSample;
+        }
+
+        /**
+         * @return The sample taken at {@code timeNs} after the start of the flight.
+         */
+        public long sampleAt(long timeNs) {
+            return intervalNs <= 0 ? 0 : Math.max(0, Math.min(samples, timeNs / intervalNs));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Flight %d: %d samples at %.1f ms, apogee at sample %d",
+                    flight, samples, intervalNs / 1e6, apogeeSample);
+        }
+    }
+
+    /**
+     * Sends a command to the altimeter, as {@code BluetoothLeService.sendCommand}.
+     */
+    public interface Transport {
+        int send(int opcode, long timeoutNs, CommandTracker.Callback callback, int... args);
+    }
+
+    /**
+     * Receives results on the downloader's thread.
+     */
+    public interface Listener {
+        void onDirectory(List<Entry> flights);
+
+        /**
+         * @param complete true if every sample of the requested range is now stored.
+         */
+        void onDownloadFinished(Entry flight, File log, RangeSet stored, boolean complete);
+    }
+
+    private static final class Download {
+        final Entry entry;
+        final long first;
+        final long end;
+
+        Download(Entry entry, long first, long end) {
+            this.entry = entry;
+            this.first = first;
+            this.end = end;
+        }
+    }
+
+    private static final class Batch {
+        final Entry entry;
+        final long[] times = new long[BATCH_SAMPLES];
+        final float[] values = new float[BATCH_SAMPLES];
+        long first;
+        int count;
+
+        Batch(Entry entry, long first) {
+            this.entry = entry;
+            this.first = first;
+        }
+    }
+
+    private final File mDirectory;
+    private final String mDeviceTag;
+    private final Transport mTransport;
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Filled on the GATT callback thread, under this.
+    private Entry[] mListing = new Entry[0];
+    private Entry mReceiving;
+    private Batch mPending;
+
+    // Owned by the downloader thread.
+    private final ArrayDeque<Download> mQueue = new ArrayDeque<Download>();
+    private final ArrayDeque<long[]> mPieces = new ArrayDeque<long[]>();
+    private Download mCurrent;
+    private File mLog;
+    private RangeSet mStored;
+    private long[] mPiece;
+    private int mRetries;
+    private long mFetched;
+    private long mSkipped;
+
+    /**
+     * @param directory Where fetched flights are stored.
+     * @param deviceTag Identifies the altimeter in local file names.
+     */
+    public FlightDownloader(File directory, String deviceTag, Transport transport,
+                            Listener listener) {
+        mDirectory = directory;
+        mDeviceTag = deviceTag.replaceAll("[^A-Za-z0-9]", "");
+        mTransport = transport;
+        mListener = listener;
+        mThread = new HandlerThread("FlightDownloader", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void requestDirectory() {
+        synchronized (this) {
+            mListing = new Entry[0];
+        }
+        mTransport.send(CommandEncoder.OP_LIST_FLIGHTS, REQUEST_TIMEOUT_NS,
+                new CommandTracker.Callback() {
+                    @Override
+                    public void onAck(int opcode, int status, long roundTripNs) {
+                        mHandler.post(mDeliverDirectory);
+                    }
+
+                    @Override
+                    public void onTimeout(int opcode) {
+                        Log.w(TAG, "Flight directory timed out");
+                        mHandler.post(mDeliverDirectory);
+                    }
+                });
+    }
+
+    /**
+     * Fetches samples {@code [first, end)} of a flight, skipping those already stored.
+     */
+    public void download(final Entry entry, long first, long end) {
+        final Download download = new Download(entry, Math.max(0, first),
+                Math.min(entry.samples, end));
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.add(download);
+                if (mCurrent == null) {
+                    startNext();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches the samples taken between {@code fromNs} and {@code toNs} into the flight.
+     */
+    public void downloadTime(Entry entry, long fromNs, long toNs) {
+        download(entry, entry.sampleAt(fromNs), entry.sampleAt(toNs) + 1);
+    }
+
+    /**
+     * Fetches {@code windowNs} of samples centred on apogee.
+     */
+    public void downloadApogee(Entry entry, long windowNs) {
+        final long half = entry.intervalNs <= 0 ? 0 : windowNs / 2 / entry.intervalNs;
+        download(entry, entry.apogeeSample - half, entry.apogeeSample + half + 1);
+    }
+
+    public void downloadAll(Entry entry) {
+        download(entry, 0, entry.samples);
+    }
+
+    /**
+     * @return The local log a flight is fetched into: the one it was first fetched into, or a
+     *         new one named after the current time, so that it sorts among recorded logs by
+     *         when it was created.
+     */
+    public File localLog(Entry entry) {
+        final String suffix = String.format("-%s-%03d%s", mDeviceTag, entry.flight,
+                FlightLog.EXTENSION);
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(suffix)) {
+                    return f;
+                }
+            }
+        }
+        return new File(mDirectory, FlightLog.timestamp() + suffix);
+    }
+
+    /**
+     * Abandons queued and running downloads; what has been stored so far is kept.
+     */
+    public void cancel() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.clear();
+                mPieces.clear();
+                if (mCurrent != null) {
+                    finish(false);
+                }
+            }
+        });
+    }
+
+    public void close() {
+        cancel();
+        mThread.quitSafely();
+    }
+
+    /**
+     * Offers an RX frame; called on the GATT callback thread for every frame.
+     *
+     * @return true if the frame belonged to a download and was consumed.
+     */
+    public boolean onFrame(byte[] rx) {
+        if (rx.length < 2 || (rx[0] != DIRECTORY_MARKER && rx[0] != MEMORY_MARKER)) {
+            return false;
+        }
+        final int length = rx.length - FrameCrc.LENGTH;
+        if (rx[0] == DIRECTORY_MARKER) {
+            if (length != DIRECTORY_FRAME_LENGTH || !FrameCrc.verify(rx, rx.length)) {
+                return false;
+            }
+            onDirectoryEntry(rx);
+            return true;
+        }
+        if (length <= MEMORY_HEADER_LENGTH || (length - MEMORY_HEADER_LENGTH) % 4 != 0
+                || !FrameCrc.verify(rx, rx.length)) {
+            return false;
+        }
+        onMemory(rx, length);
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Downloaded " + mFetched + " samples, " + mSkipped + " already stored";
+    }
+
+    private synchronized void onDirectoryEntry(byte[] rx) {
+        final int index = rx[1] & 0xFF;
+        final int count = rx[2] & 0xFF;
+        if (mListing.length != count) {
+            mListing = Arrays.copyOf(mListing, count);
+        }
+        if (index < count) {
+            mListing[index] = new Entry(rx[3] & 0xFF, u32(rx, 4), u32(rx, 8) * 1000, u32(rx, 12));
+        }
+    }
+
+    private synchronized void onMemory(byte[] rx, int length) {
+        if (mReceiving == null || (rx[1] & 0xFF) != mReceiving.flight) {
+            return;
+        }
+        long sample = u32(rx, 2);
+        for (int offset = MEMORY_HEADER_LENGTH; offset < length; offset += 4, sample++) {
+            if (sample >= mReceiving.samples) {
+                break;
+            }
+            if (mPending != null && (mPending.first + mPending.count != sample
+                    || mPending.count == BATCH_SAMPLES)) {
+                flushLater(mPending);
+                mPending = null;
+            }
+            if (mPending == null) {
+                mPending = new Batch(mReceiving, sample);
+            }
+            final int bits = (rx[offset] & 0xFF) << 24 | (rx[offset + 1] & 0xFF) << 16
+                    | (rx[offset + 2] & 0xFF) << 8 | (rx[offset + 3] & 0xFF);
+            mPending.times[mPending.count] = sample * mReceiving.intervalNs;
+            mPending.values[mPending.count] = Float.intBitsToFloat(bits);
+            mPending.count++;
+        }
+    }
+
+    private void flushLater(final Batch batch) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                store(batch);
+            }
+        });
+    }
+
+    private final Runnable mDeliverDirectory = new Runnable() {
+        @Override
+        public void run() {
+            final List<Entry> flights = new ArrayList<Entry>();
+            synchronized (FlightDownloader.this) {
+                for (Entry entry : mListing) {
+                    if (entry != null) {
+                        flights.add(entry);
+                    }
+                }
+            }
+            Log.i(TAG, flights.size() + " flights on the altimeter");
+            mListener.onDirectory(flights);
+        }
+    };
+
+    private void startNext() {
+        mCurrent = mQueue.poll();
+        if (mCurrent == null) {
+            return;
+        }
+        mLog = localLog(mCurrent.entry);
+        try {
+            mStored = RangeSet.load(FlightLog.sibling(mLog, RANGES_EXTENSION));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read stored ranges of " + mLog + ", fetching everything", e);
+            mStored = new RangeSet();
+        }
+        final RangeSet missing = mStored.missing(mCurrent.first, mCurrent.end);
+        synchronized (this) {
+            mSkipped += (mCurrent.end - mCurrent.first) - missing.length();
+            mReceiving = mCurrent.entry;
+        }
+        for (int i = 0; i < missing.size(); i++) {
+            for (long first = missing.getStart(i); first < missing.getEnd(i);
+                 first += MAX_REQUEST_SAMPLES) {
+                mPieces.add(new long[] {
+                        first, Math.min(missing.getEnd(i), first + MAX_REQUEST_SAMPLES) });
+            }
+        }
+        Log.i(TAG, String.format("%s: fetching %d of %d samples", mCurrent.entry,
+                missing.length(), mCurrent.end - mCurrent.first));
+        mRetries = 0;
+        requestNext();
+    }
+
+    private void requestNext() {
+        mPiece = mPieces.poll();
+        if (mPiece == null) {
+            finish(true);
+            return;
+        }
+        final int count = (int) (mPiece[1] - mPiece[0]);
+        final int requestId = mTransport.send(CommandEncoder.OP_READ_RANGE,
+                REQUEST_TIMEOUT_NS + count * TIMEOUT_PER_SAMPLE_NS, mPieceCallback,
+                mCurrent.entry.flight, (int) mPiece[0], count);
+        if (requestId == -1) {
+            finish(false);
+        }
+    }
+
+    private final CommandTracker.Callback mPieceCallback = new CommandTracker.Callback() {
+        @Override
+        public void onAck(int opcode, int status, long roundTripNs) {
+            mHandler.post(mPieceDone);
+        }
+
+        @Override
+        public void onTimeout(int opcode) {
+            mHandler.post(mPieceDone);
+        }
+    };
+
+    // Frames arrive in order on the RX characteristic, so by the time a piece is acked all of
+    // its samples are stored or pending.
+    private final Runnable mPieceDone = new Runnable() {
+        @Override
+        public void run() {
+            if (mCurrent == null || mPiece == null) {
+                return;
+            }
+            storePending();
+            final RangeSet missing = mStored.missing(mPiece[0], mPiece[1]);
+            if (missing.size() > 0) {
+                if (mRetries == MAX_RETRIES) {
+                    Log.w(TAG, "Giving up on " + missing + " of " + mCurrent.entry);
+                    finish(false);
+                    return;
+                }
+                mRetries++;
+                for (int i = missing.size() - 1; i >= 0; i--) {
+                    mPieces.addFirst(new long[] { missing.getStart(i), missing.getEnd(i) });
+                }
+            } else {
+                mRetries = 0;
+            }
+            saveRanges();
+            requestNext();
+        }
+    };
+
+    private void storePending() {
+        final Batch batch;
+        synchronized (this) {
+            batch = mPending;
+            mPending = null;
+        }
+        if (batch != null) {
+            store(batch);
+        }
+    }
+
+    private void store(Batch batch) {
+        // Late samples of an abandoned download are dropped.
+        if (mCurrent == null || batch.entry != mCurrent.entry) {
+            return;
+        }
+        try {
+            if (batch.first < FlightLog.sampleCount(mLog)) {
+                // Filling in records the caches may already have been built from.
+                invalidateCaches();
+            }
+            fillTo(batch.first);
+            FlightLog.write(mLog, batch.first, batch.count, batch.times, batch.values);
+            mStored.add(batch.first, batch.first + batch.count);
+            synchronized (this) {
+                mFetched += batch.count;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to store samples of " + mCurrent.entry, e);
+        }
+    }
+
+    // Grows the log up to sample end with NaN placeholders at their proper times, so samples
+    // stay addressable by index.
+    private void fillTo(long end) throws IOException {
+        final long[] times = new long[BATCH_SAMPLES];
+        final float[] values = new float[BATCH_SAMPLES];
+        Arrays.fill(values, Float.NaN);
+        for (long first = FlightLog.sampleCount(mLog); first < end; first += BATCH_SAMPLES) {
+            final int n = (int) Math.min(BATCH_SAMPLES, end - first);
+            for (int i = 0; i < n; i++) {
+                times[i] = (first + i) * mCurrent.entry.intervalNs;
+            }
+            FlightLog.write(mLog, first, n, times, values);
+        }
+    }
+
+    private void saveRanges() {
+        try {
+            mStored.save(FlightLog.sibling(mLog, RANGES_EXTENSION));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save stored ranges of " + mLog, e);
+        }
+    }
+
+    // The pyramid only notices appended samples and the summary only a newer modification
+    // time, so neither can be trusted once records are rewritten in place.
+    private void invalidateCaches() {
+        FlightLog.sibling(mLog, FlightPyramid.EXTENSION).delete();
+        FlightLog.sibling(mLog, FlightSummary.EXTENSION).delete();
+    }
+
+    private void finish(boolean complete) {
+        storePending();
+        synchronized (this) {
+            mReceiving = null;
+        }
+        saveRanges();
+        // Caches built while the download ran may predate its last samples.
+        invalidateCaches();
+        final Download done = mCurrent;
+        mCurrent = null;
+        mPiece = null;
+        Log.i(TAG, done.entry + ": stored " + mStored + ", " + this);
+        mListener.onDownloadFinished(done.entry, mLog, mStored,
+                complete && mStored.contains(done.first, done.end));
+        startNext();
+    }
+
+    private static long u32(byte[] b, int offset) {
+        return ((b[offset] & 0xFFL) << 24) | (b[offset + 1] & 0xFF) << 16
+                | (b[offset + 2] & 0xFF) << 8 | (b[offset + 3] & 0xFF);
+    }
+}
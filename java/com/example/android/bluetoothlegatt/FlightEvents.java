@@ -0,0 +1,99 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Detects flight events in a recorded series of barometric pressure samples.
+ */
+public class FlightEvents {
+
+    // Height above the pad that counts as having launched.
+    public static final float LAUNCH_ALTITUDE_M = 10f;
+
+    // Leading samples a stored flight falls back to for its ground pressure when no launch
+    // fixed one.  Fewer are used if that is all there is.
+    public static final int PAD_SAMPLES = 32;
+
+    /**
+     * Converts barometric pressure to height above the level where the pressure is
+     * {@code groundPressure}, using the international standard atmosphere.  Both pressures
+     * must be in the same unit.
+     */
+    public static float altitude(float pressure, float groundPressure) {
+        return (float) (44330.0 * (1.0 - Math.pow(pressure / groundPressure, 1.0 / 5.255)));
+    }
+
+    /**
+     * Estimates ground pressure the way the live {@link FlightPhaseDetector} does, so stored
+     * flights measure altitude from the same reference they were flown with: the running
+     * median of the pad samples, frozen once a launch is suspected.  Non-finite pressures,
+     * such as the placeholders of samples not downloaded yet, are skipped.
+     *
+     * @return The ground pressure, or NaN only if there are no finite samples.
+     * @see #groundPressure(FlightPhaseDetector, RunningMedian)
+     */
+    public static float groundPressure(long[] times, float[] pressure, int count) {
+        final FlightPhaseDetector detector = new FlightPhaseDetector();
+        final RunningMedian pad = new RunningMedian(PAD_SAMPLES);
+        for (int i = 0; i < count && !detector.isGroundFrozen(); i++) {
+            if (!Float.isNaN(pressure[i]) && !Float.isInfinite(pressure[i])) {
+                detector.update(times[i], pressure[i]);
+                if (pad.size() < PAD_SAMPLES) {
+                    pad.add(pressure[i]);
+                }
+            }
+        }
+        return groundPressure(detector, pad);
+    }
+
+    /**
+     * Picks the ground pressure for a stored flight that was run through {@code detector}.
+     * If a launch froze the detector's ground, that is the one the flight was flown with.
+     * Otherwise the detector's running median would end up on whatever the log ends with,
+     * often descent or landing data, so the median of the leading samples in {@code pad} is
+     * used instead, however few there are.
+     *
+     * @param pad The first {@link #PAD_SAMPLES} finite pressures, or as many as there were.
+     * @return The ground pressure, or NaN if {@code pad} is empty.
+     */
+    public static float groundPressure(FlightPhaseDetector detector, RunningMedian pad) {
+        if (detector.isGroundFrozen()) {
+            return detector.getGroundPressure();
+        }
+        return pad.size() == 0 ? Float.NaN : pad.median();
+    }
+
+    /**
+     * Converts pressures to altitudes above {@code groundPressure} in place.
+     */
+    public static void toAltitude(float[] values, int count, float groundPressure) {
+        for (int i = 0; i < count; i++) {
+            values[i] = altitude(values[i], groundPressure);
+        }
+    }
+
+    /**
+     * @return Index of the first sample at least {@link #LAUNCH_ALTITUDE_M} above the pad, or -1.
+     */
+    public static int launchIndex(float[] altitude, int count) {
+        for (int i = 0; i < count; i++) {
+            if (altitude[i] >= LAUNCH_ALTITUDE_M) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Index of the highest sample, or -1 for an empty series.
+     */
+    public static int apogeeIndex(float[] altitude, int count) {
+        int best = -1;
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (altitude[i] > max) {
+                max = altitude[i];
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Append-only flight log on internal storage.  Each sample is a fixed size big-endian record
+ * {@code [sample time ns (long)][value (float)]}, so any sample can be located by index
+ * without scanning.  Derived files (such as the {@link FlightPyramid}) live next to the log
+ * with the same base name.
+ *
+ * Samples are written through a {@link GroupCommitWriter}, in batches of up to
+ * {@link #BATCH_RECORDS} records or {@link #BATCH_DELAY_NS}, with the caller's durability policy.
+ */
+public class FlightLog {
+
+    public static final String DIRECTORY = "flights";
+    public static final String EXTENSION = ".flt";
+    public static final int RECORD_SIZE = 12;
+
+    public static final int BATCH_RECORDS = 341;
+    public static final long BATCH_DELAY_NS = 250000000L;
+    public static final long SYNC_INTERVAL_NS = 1000000000L;
+
+    private final File mFile;
+    private final GroupCommitWriter mWriter;
+    private long mCount;
+
+    private FlightLog(File file, boolean append, int durability) throws IOException {
+        mFile = file;
+        mCount = append ? sampleCount(file) : 0;
+        mWriter = new GroupCommitWriter(file, append, BATCH_RECORDS * RECORD_SIZE,
+                BATCH_DELAY_NS, durability, SYNC_INTERVAL_NS);
+    }
+
+    /**
+     * Creates a new, empty log named after the current time.  A second log started within the
+     * same second gets a {@code -2}, {@code -3}, ... suffix; an existing log is never reused.
+     *
+     * @param durability One of the {@code GroupCommitWriter.DURABILITY_*} policies.
+     */
+    public static FlightLog create(Context context, int durability) throws IOException {
+        return create(directory(context), durability);
+    }
+
+    /**
+     * As {@link #create(Context, int)}, in {@code directory}.
+     */
+    public static FlightLog create(File directory, int durability) throws IOException {
+        return new FlightLog(createFile(directory), false, durability);
+    }
+
+    // Claims a fresh, timestamp-named file in dir; createNewFile() is atomic, so two sessions
+    // can never share one.
+    static File createFile(File dir) throws IOException {
+        final String name = timestamp();
+        File file = new File(dir, name + EXTENSION);
+        for (int n = 2; !file.createNewFile(); n++) {
+            file = new File(dir, name + "-" + n + EXTENSION);
+        }
+        return file;
+    }
+
+    /**
+     * @return The current time as log names start with it, so that they sort by creation.
+     */
+    static String timestamp() {
+        return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+    }
+
+    /**
+     * Reopens an existing log to append to, first cutting off a record left half written when
+     * the process died.
+     */
+    public static FlightLog reopen(File log, int durability) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            final long whole = raf.length() / RECORD_SIZE * RECORD_SIZE;
+            if (raf.length() != whole) {
+                raf.setLength(whole);
+            }
+        } finally {
+            raf.close();
+        }
+        return new FlightLog(log, true, durability);
+    }
+
+    public static File directory(Context context) {
+        final File dir = new File(context.getFilesDir(), DIRECTORY);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Unable to create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Lists stored logs, oldest first.
+     */
+    public static File[] list(Context context) {
+        File[] files = directory(context).listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int n = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(EXTENSION)) {
+                files[n++] = f;
+            }
+        }
+        files = Arrays.copyOf(files, n);
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                // Without the extension, so "x.flt" sorts before "x-2.flt".
+                return baseName(a).compareTo(baseName(b));
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return The most recently created log, or null if none are stored.
+     */
+    public static File latest(Context context) {
+        final File[] files = list(context);
+        return files.length == 0 ? null : files[files.length - 1];
+    }
+
+    /**
+     * @return A file next to {@code log} sharing its base name, e.g. {@code sibling(log, ".pyr")}.
+     */
+    public static File sibling(File log, String extension) {
+        return new File(log.getParentFile(), baseName(log) + extension);
+    }
+
+    private static String baseName(File log) {
+        final String name = log.getName();
+        return name.endsWith(EXTENSION)
+                ? name.substring(0, name.length() - EXTENSION.length()) : name;
+    }
+
+    public static long sampleCount(File log) {
+        return log.length() / RECORD_SIZE;
+    }
+
+    /**
+     * Reads up to {@code count} samples starting at sample {@code first}.
+     *
+     * @return The number of samples read.
+     */
+    public static int read(File log, long first, int count, long[] times, float[] values)
+            throws IOException {
+        final long available = sampleCount(log) - first;
+        final int n = (int) Math.max(0, Math.min(count, available));
+        if (n == 0) {
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(n * RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+        final RandomAccessFile raf = new RandomAccessFile(log, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            long position = first * RECORD_SIZE;
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+        } finally {
+            raf.close();
+        }
+        buffer.flip();
+        for (int i = 0; i < n; i++) {
+            times[i] = buffer.getLong();
+            values[i] = buffer.getFloat();
+        }
+        return n;
+    }
+
+    /**
+     * Writes {@code count} samples in place, starting at sample {@code first}, growing the log
+     * if they run past its end.  For logs filled out of order; use {@link #append} when
+     * recording.
+     */
+    public static void write(File log, long first, int count, long[] times, float[] values)
+            throws IOException {
+        final ByteBuffer buffer =
+                ByteBuffer.allocate(count * RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(times[i]).putFloat(values[i]);
+        }
+        buffer.flip();
+        final RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            long position = first * RECORD_SIZE;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void append(long sampleTimeNs, float value) throws IOException {
+        mWriter.beginRecord(RECORD_SIZE).putLong(sampleTimeNs).putFloat(value);
+        mWriter.endRecord();
+        mCount++;
+    }
+
+    /**
+     * Commits a batch that has waited long enough; call when samples stop arriving.
+     */
+    public void tick(long nowNs) throws IOException {
+        mWriter.tick(nowNs);
+    }
+
+    public void flush() throws IOException {
+        mWriter.commit();
+    }
+
+    public void close() throws IOException {
+        mWriter.close();
+    }
+
+    public GroupCommitWriter getWriter() {
+        return mWriter;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+}
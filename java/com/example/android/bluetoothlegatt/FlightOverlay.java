@@ -0,0 +1,265 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads several stored flights in parallel, aligns them on a common event and resamples
+ * their altitude onto one shared time grid so they can be drawn on top of each other.
+ *
+ * Loading, decoding and resampling are split per flight across a {@link ForkJoinPool} with
+ * one worker per core.
+ */
+public class FlightOverlay {
+    private final static String TAG = FlightOverlay.class.getSimpleName();
+
+    public static final int ALIGN_LAUNCH = 0;
+    public static final int ALIGN_APOGEE = 1;
+
+    private static ForkJoinPool sPool;
+
+    public final String[] names;
+    // Grid time of column 0, in seconds relative to the alignment event.
+    public final double gridStart;
+    public final double gridStep;
+    // Altitude in meters per flight and grid column, NaN where a flight has no data.
+    public final float[][] altitude;
+
+    private FlightOverlay(String[] names, double gridStart, double gridStep, float[][] altitude) {
+        this.names = names;
+        this.gridStart = gridStart;
+        this.gridStep = gridStep;
+        this.altitude = altitude;
+    }
+
+    static synchronized ForkJoinPool pool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    /**
+     * Builds an overlay of {@code logs}.  Flights without a detectable alignment event are
+     * aligned on their first sample.
+     *
+     * @param alignment {@link #ALIGN_LAUNCH} or {@link #ALIGN_APOGEE}.
+     * @param gridPoints Number of columns in the shared time grid.
+     */
+    public static FlightOverlay build(File[] logs, int alignment, int gridPoints)
+            throws IOException {
+        return build(logs, alignment, gridPoints, pool());
+    }
+
+    public static FlightOverlay build(File[] logs, int alignment, int gridPoints,
+                                      ForkJoinPool pool) throws IOException {
+        if (logs.length == 0) {
+            return new FlightOverlay(new String[0], 0, 0, new float[0][gridPoints]);
+        }
+        final long start = System.nanoTime();
+        final Flight[] flights = new Flight[logs.length];
+        for (int i = 0; i < logs.length; i++) {
+            flights[i] = new Flight(logs[i], alignment);
+        }
+
+        final LoadTask load = new LoadTask(flights, 0, flights.length);
+        pool.invoke(load);
+        if (load.mError != null) {
+            throw load.mError;
+        }
+
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (Flight flight : flights) {
+            if (flight.count > 0) {
+                min = Math.min(min, flight.seconds[0]);
+                max = Math.max(max, flight.seconds[flight.count - 1]);
+            }
+        }
+        if (min > max) {
+            min = max = 0;
+        }
+        final double step = gridPoints > 1 ? (max - min) / (gridPoints - 1) : 0;
+
+        final float[][] altitude = new float[flights.length][gridPoints];
+        pool.invoke(new ResampleTask(flights, altitude, min, step, 0, flights.length));
+
+        final String[] names = new String[flights.length];
+        for (int i = 0; i < flights.length; i++) {
+            names[i] = flights[i].log.getName();
+        }
+        Platform.log().i(TAG, String.format("Overlaid %d flights on %d cores in %.1fms",
+                flights.length, pool.getParallelism(), (System.nanoTime() - start) / 1e6));
+        return new FlightOverlay(names, min, step, altitude);
+    }
+
+    /**
+     * Times {@link #build} of {@code logs} with 1, 2, 4... workers up to one per core.
+     *
+     * @return One line per worker count.
+     */
+    public static String benchmark(File[] logs, int alignment, int gridPoints)
+            throws IOException {
+        long samples = 0;
+        for (File log : logs) {
+            samples += FlightLog.sampleCount(log);
+        }
+        final StringBuilder sb = new StringBuilder(String.format("Overlay %d flights, %d samples",
+                logs.length, samples));
+        final int cores = Runtime.getRuntime().availableProcessors();
+        double single = 0;
+        for (int workers = 1; ; workers = Math.min(cores, workers * 2)) {
+            final ForkJoinPool pool = new ForkJoinPool(workers);
+            try {
+                // The first run warms the page cache and the JIT.
+                build(logs, alignment, gridPoints, pool);
+                final long start = System.nanoTime();
+                build(logs, alignment, gridPoints, pool);
+                final double ms = (System.nanoTime() - start) / 1e6;
+                if (workers == 1) {
+                    single = ms;
+                }
+                sb.append(String.format("\n  %d workers: %.1f ms, %.2fx", workers, ms,
+                        single / ms));
+            } finally {
+                pool.shutdown();
+            }
+            if (workers == cores) {
+                break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class Flight {
+        final File log;
+        final int alignment;
+        double[] seconds;
+        float[] altitude;
+        int count;
+
+        Flight(File log, int alignment) {
+            this.log = log;
+            this.alignment = alignment;
+        }
+
+        void load() throws IOException {
+            final long samples = FlightLog.sampleCount(log);
+            if (samples > Integer.MAX_VALUE) {
+                throw new IOException(log + " is too large to overlay");
+            }
+            final long[] times = new long[(int) samples];
+            altitude = new float[(int) samples];
+            final int read = FlightLog.read(log, 0, (int) samples, times, altitude);
+            // Drop the NaN placeholders of samples not downloaded yet.
+            count = 0;
+            for (int i = 0; i < read; i++) {
+                if (!Float.isNaN(altitude[i]) && !Float.isInfinite(altitude[i])) {
+                    times[count] = times[i];
+                    altitude[count++] = altitude[i];
+                }
+            }
+            if (count == 0) {
+                seconds = new double[0];
+                return;
+            }
+
+            FlightEvents.toAltitude(altitude, count,
+                    FlightEvents.groundPressure(times, altitude, count));
+            int event = alignment == ALIGN_APOGEE
+                    ? FlightEvents.apogeeIndex(altitude, count)
+                    : FlightEvents.launchIndex(altitude, count);
+            if (event < 0) {
+                event = 0;
+            }
+            final long origin = times[event];
+            seconds = new double[count];
+            for (int i = 0; i < count; i++) {
+                seconds[i] = (times[i] - origin) / 1e9;
+            }
+        }
+
+        /**
+         * Linearly interpolates onto {@code out}, walking grid and samples together.
+         */
+        void resample(float[] out, double gridStart, double gridStep) {
+            int j = 0;
+            for (int i = 0; i < out.length; i++) {
+                final double t = gridStart + i * gridStep;
+                if (count == 0 || t < seconds[0] || t > seconds[count - 1]) {
+                    out[i] = Float.NaN;
+                    continue;
+                }
+                while (j < count - 2 && seconds[j + 1] < t) {
+                    j++;
+                }
+                final int k = Math.min(j + 1, count - 1);
+                final double span = seconds[k] - seconds[j];
+                final double f = span > 0 ? (t - seconds[j]) / span : 0;
+                out[i] = (float) (altitude[j] + f * (altitude[k] - altitude[j]));
+            }
+        }
+    }
+
+    private static class LoadTask extends RecursiveAction {
+        final Flight[] mFlights;
+        final int mFrom;
+        final int mTo;
+        IOException mError;
+
+        LoadTask(Flight[] flights, int from, int to) {
+            mFlights = flights;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                try {
+                    mFlights[mFrom].load();
+                } catch (IOException e) {
+                    mError = e;
+                }
+                return;
+            }
+            final int mid = (mFrom + mTo) >>> 1;
+            final LoadTask left = new LoadTask(mFlights, mFrom, mid);
+            final LoadTask right = new LoadTask(mFlights, mid, mTo);
+            invokeAll(left, right);
+            mError = left.mError != null ? left.mError : right.mError;
+        }
+    }
+
+    private static class ResampleTask extends RecursiveAction {
+        final Flight[] mFlights;
+        final float[][] mOut;
+        final double mGridStart;
+        final double mGridStep;
+        final int mFrom;
+        final int mTo;
+
+        ResampleTask(Flight[] flights, float[][] out, double gridStart, double gridStep,
+                     int from, int to) {
+            mFlights = flights;
+            mOut = out;
+            mGridStart = gridStart;
+            mGridStep = gridStep;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                mFlights[mFrom].resample(mOut[mFrom], mGridStart, mGridStep);
+                return;
+            }
+            final int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new ResampleTask(mFlights, mOut, mGridStart, mGridStep, mFrom, mid),
+                    new ResampleTask(mFlights, mOut, mGridStart, mGridStep, mid, mTo));
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads a {@link FlightLog} in fixed-size chunks of samples, so a viewport over a flight far
+ * larger than the heap only ever loads the chunks it covers.  Decoded chunks are kept in an
+ * LRU cache bounded by a memory budget, and after every query the next chunk in the direction
+ * the viewport is panning is loaded in the background.  {@link #queryCached} never reads the
+ * log on the calling thread, for callers drawing on the UI thread.
+ *
+ * The first timestamp of every chunk is indexed when the pager opens, which costs 8 bytes per
+ * chunk and lets a time be mapped to a chunk without touching the rest of the log.
+ */
+public class FlightPager {
+    private final static String TAG = FlightPager.class.getSimpleName();
+
+    public static final int DEFAULT_CHUNK_SAMPLES = 4096;
+
+    // Array headers and map entry, roughly.
+    private static final int CHUNK_OVERHEAD_BYTES = 96;
+
+    private static final class Chunk {
+        final long[] times;
+        final float[] values;
+        final int count;
+
+        Chunk(long[] times, float[] values, int count) {
+            this.times = times;
+            this.values = values;
+            this.count = count;
+        }
+
+        long bytes() {
+            return times.length * 8L + values.length * 4L + CHUNK_OVERHEAD_BYTES;
+        }
+    }
+
+    private final File mLog;
+    private final int mChunkSamples;
+    private final long mBudgetBytes;
+    private final long mSampleCount;
+    private final long[] mChunkStart;
+    private long mEndTime;
+
+    // Access-ordered, so iteration starts at the least recently used chunk.
+    private final LinkedHashMap<Integer, Chunk> mCache =
+            new LinkedHashMap<Integer, Chunk>(16, 0.75f, true);
+    private long mCachedBytes;
+    private long mHits;
+    private long mMisses;
+    private long mPrefetched;
+    private long mEvicted;
+
+    private final ExecutorService mPrefetcher = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "FlightPager");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+    private long mLastFromNs = Long.MIN_VALUE;
+
+    /**
+     * @param budgetBytes Memory the chunk cache may use; at least one chunk is always kept.
+     */
+    public FlightPager(File log, int chunkSamples, long budgetBytes) throws IOException {
+        mLog = log;
+        mChunkSamples = chunkSamples;
+        mBudgetBytes = budgetBytes;
+        mSampleCount = FlightLog.sampleCount(log);
+        mChunkStart = new long[(int) ((mSampleCount + chunkSamples - 1) / chunkSamples)];
+
+        final ByteBuffer time = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        final RandomAccessFile raf = new RandomAccessFile(log, "r");
+        try {
+            for (int c = 0; c < mChunkStart.length; c++) {
+                time.clear();
+                final long position = (long) c * chunkSamples * FlightLog.RECORD_SIZE;
+                while (time.hasRemaining()) {
+                    if (raf.getChannel().read(time, position + time.position()) < 0) {
+                        throw new IOException("Truncated flight log " + log);
+                    }
+                }
+                mChunkStart[c] = time.getLong(0);
+            }
+            if (mSampleCount > 0) {
+                // Indexed too, so the end is known without loading the last chunk.
+                time.clear();
+                final long position = (mSampleCount - 1) * FlightLog.RECORD_SIZE;
+                while (time.hasRemaining()) {
+                    if (raf.getChannel().read(time, position + time.position()) < 0) {
+                        throw new IOException("Truncated flight log " + log);
+                    }
+                }
+                mEndTime = time.getLong(0);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public long getStartTime() {
+        return mChunkStart.length == 0 ? 0 : mChunkStart[0];
+    }
+
+    /**
+     * @return Time of the last sample.
+     */
+    public long getEndTime() throws IOException {
+        return mEndTime;
+    }
+
+    /**
+     * @return Approximate number of samples between two times, from the chunk index alone.
+     */
+    public long estimateSamples(long fromNs, long toNs) {
+        return (long) (chunkOf(toNs) - chunkOf(fromNs) + 1) * mChunkSamples;
+    }
+
+    /**
+     * Summarizes the samples in {@code [fromNs, toNs]}, plus one on each side so lines run to
+     * the viewport edges.  Ranges with no more than {@code maxBuckets} samples come back
+     * sample by sample, with min equal to max; longer ranges are split into equal-count buckets.
+     *
+     * @return The number of points or buckets written.
+     */
+    public int query(long fromNs, long toNs, int maxBuckets,
+                     long[] start, float[] min, float[] max) throws IOException {
+        return query(fromNs, toNs, maxBuckets, start, min, max, null, 0);
+    }
+
+    /**
+     * @param pinned Chunks {@code pinnedFrom} onwards, already covering the range, so that
+     *               nothing is read from the log; or null to load chunks as needed.
+     */
+    private int query(long fromNs, long toNs, int maxBuckets, long[] start, float[] min,
+                      float[] max, Chunk[] pinned, int pinnedFrom) throws IOException {
+        if (mSampleCount == 0 || maxBuckets <= 0) {
+            return 0;
+        }
+        final long first = Math.max(0, indexOf(fromNs, pinned, pinnedFrom));
+        final long last = Math.min(mSampleCount - 1, indexOf(toNs, pinned, pinnedFrom) + 1);
+        final long samples = last - first + 1;
+        final long perBucket = Math.max(1, (samples + maxBuckets - 1) / maxBuckets);
+
+        int n = 0;
+        long bucketEnd = first;
+        Chunk chunk = null;
+        int chunkIndex = -1;
+        for (long i = first; i <= last && n < start.length; i++) {
+            final int c = (int) (i / mChunkSamples);
+            if (c != chunkIndex) {
+                chunk = chunk(c, pinned, pinnedFrom);
+                chunkIndex = c;
+            }
+            final int j = (int) (i - (long) c * mChunkSamples);
+            final float v = chunk.values[j];
+            if (i == bucketEnd) {
+                start[n] = chunk.times[j];
+                min[n] = v;
+                max[n] = v;
+                n++;
+                bucketEnd += perBucket;
+            } else {
+                if (v < min[n - 1] || Float.isNaN(min[n - 1])) {
+                    min[n - 1] = v;
+                }
+                if (v > max[n - 1] || Float.isNaN(max[n - 1])) {
+                    max[n - 1] = v;
+                }
+            }
+        }
+
+        prefetch(fromNs, (int) (first / mChunkSamples), (int) (last / mChunkSamples));
+        return n;
+    }
+
+    /**
+     * As {@link #query}, but only from chunks already cached.  If the range needs a chunk that
+     * is not, the missing chunks are loaded in the background, {@code onLoaded} runs on the
+     * loading thread once they are, and -1 is returned so the caller can draw something
+     * coarser meanwhile.  Also -1, without loading, for ranges the cache budget cannot hold.
+     *
+     * The range's chunks are pinned while it is summarized, so a prefetch or background load
+     * evicting one of them cannot send this thread to the log.
+     */
+    public int queryCached(long fromNs, long toNs, int maxBuckets, long[] start, float[] min,
+                           float[] max, final Runnable onLoaded) throws IOException {
+        if (mSampleCount == 0) {
+            return 0;
+        }
+        // One chunk past the end of the range, for the sample after it.
+        final int firstChunk = Math.max(0, chunkOf(fromNs));
+        final int lastChunk = Math.min(mChunkStart.length - 1,
+                Math.max(firstChunk, chunkOf(toNs) + 1));
+        final long chunkBytes = mChunkSamples * (long) FlightLog.RECORD_SIZE
+                + CHUNK_OVERHEAD_BYTES;
+        if ((lastChunk - firstChunk + 1) * chunkBytes > mBudgetBytes) {
+            return -1;
+        }
+        final Chunk[] pinned = new Chunk[lastChunk - firstChunk + 1];
+        boolean missing = false;
+        synchronized (this) {
+            for (int c = firstChunk; c <= lastChunk && !missing; c++) {
+                pinned[c - firstChunk] = mCache.get(c);
+                missing = pinned[c - firstChunk] == null;
+            }
+            if (!missing) {
+                mHits += pinned.length;
+            }
+        }
+        if (!missing) {
+            return query(fromNs, toNs, maxBuckets, start, min, max, pinned, firstChunk);
+        }
+        try {
+            mPrefetcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int c = firstChunk; c <= lastChunk; c++) {
+                            synchronized (FlightPager.this) {
+                                if (mCache.containsKey(c)) {
+                                    continue;
+                                }
+                            }
+                            load(c);
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to page in chunks " + firstChunk + "-" + lastChunk, e);
+                        return;
+                    }
+                    onLoaded.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed.
+        }
+        return -1;
+    }
+
+    public synchronized double getHitRate() {
+        final long lookups = mHits + mMisses;
+        return lookups == 0 ? 0 : (double) mHits / lookups;
+    }
+
+    public synchronized long getCachedBytes() {
+        return mCachedBytes;
+    }
+
+    public void close() {
+        mPrefetcher.shutdownNow();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d chunks, hit rate %.1f%% (%d/%d), prefetched %d, "
+                        + "evicted %d, cache %d/%d KB", mLog.getName(), mChunkStart.length,
+                getHitRate() * 100, mHits, mHits + mMisses, mPrefetched, mEvicted,
+                mCachedBytes / 1024, mBudgetBytes / 1024);
+    }
+
+    /**
+     * @return Index of the last sample at or before {@code timeNs}, or -1 if none.
+     */
+    private long indexOf(long timeNs, Chunk[] pinned, int pinnedFrom) throws IOException {
+        final int c = chunkOf(timeNs);
+        if (c < 0) {
+            return -1;
+        }
+        final Chunk chunk = chunk(c, pinned, pinnedFrom);
+        int lo = 0;
+        int hi = chunk.count - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (chunk.times[mid] <= timeNs) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return (long) c * mChunkSamples + lo;
+    }
+
+    /**
+     * @return The last chunk starting at or before {@code timeNs}, or -1 if none.
+     */
+    private int chunkOf(long timeNs) {
+        int lo = -1;
+        int hi = mChunkStart.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (mChunkStart[mid] <= timeNs) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private Chunk chunk(int c, Chunk[] pinned, int pinnedFrom) throws IOException {
+        return pinned != null ? pinned[c - pinnedFrom] : chunk(c);
+    }
+
+    private Chunk chunk(int c) throws IOException {
+        synchronized (this) {
+            final Chunk cached = mCache.get(c);
+            if (cached != null) {
+                mHits++;
+                return cached;
+            }
+            mMisses++;
+        }
+        return load(c);
+    }
+
+    private Chunk load(int c) throws IOException {
+        final long first = (long) c * mChunkSamples;
+        final int n = (int) Math.min(mChunkSamples, mSampleCount - first);
+        final long[] times = new long[n];
+        final float[] values = new float[n];
+        FlightLog.read(mLog, first, n, times, values);
+        final Chunk chunk = new Chunk(times, values, n);
+
+        synchronized (this) {
+            final Chunk previous = mCache.put(c, chunk);
+            if (previous != null) {
+                mCachedBytes -= previous.bytes();
+            }
+            mCachedBytes += chunk.bytes();
+            final Iterator<Map.Entry<Integer, Chunk>> lru = mCache.entrySet().iterator();
+            while (mCachedBytes > mBudgetBytes && mCache.size() > 1) {
+                final Map.Entry<Integer, Chunk> eldest = lru.next();
+                if (eldest.getKey() == c) {
+                    continue;
+                }
+                mCachedBytes -= eldest.getValue().bytes();
+                lru.remove();
+                mEvicted++;
+            }
+        }
+        return chunk;
+    }
+
+    private void prefetch(long fromNs, int firstChunk, int lastChunk) {
+        final int direction;
+        synchronized (this) {
+            direction = mLastFromNs == Long.MIN_VALUE || fromNs == mLastFromNs ? 0
+                    : fromNs > mLastFromNs ? 1 : -1;
+            mLastFromNs = fromNs;
+        }
+        if (direction == 0) {
+            return;
+        }
+        final int c = direction > 0 ? lastChunk + 1 : firstChunk - 1;
+        if (c < 0 || c >= mChunkStart.length) {
+            return;
+        }
+        synchronized (this) {
+            if (mCache.containsKey(c)) {
+                return;
+            }
+        }
+        try {
+            mPrefetcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FlightPager.this) {
+                        if (mCache.containsKey(c)) {
+                            return;
+                        }
+                        mPrefetched++;
+                    }
+                    try {
+                        load(c);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Prefetch of chunk " + c + " failed", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed.
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tracks the flight phase from a stream of pressure samples.
+ *
+ * <ul>
+ *     <li>IDLE - no ground reference yet, or landed and taking a new one</li>
+ *     <li>ARMED - ground reference established, waiting on the pad</li>
+ *     <li>BOOST - climbing fast</li>
+ *     <li>COAST - still climbing, but decelerating after burnout</li>
+ *     <li>DESCENT - falling</li>
+ * </ul>
+ *
+ * Every transition has to hold for {@link #HOLD_NS}, however fast the altimeter is streaming,
+ * and entry and exit use separate thresholds, so sensor noise near a threshold cannot make the
+ * phase flap.
+ *
+ * Ground pressure is the running median of the last {@link #GROUND_WINDOW} pad samples, so
+ * gusts, or someone carrying the altimeter past, only move it while they dominate the window.
+ * It is frozen once a launch is suspected and stays the altitude reference for the flight.
+ * After landing a new one is taken where the rocket came down, so the detector arms again for
+ * the next flight.
+ */
+public class FlightPhaseDetector {
+
+    public static final int PHASE_IDLE = 0;
+    public static final int PHASE_ARMED = 1;
+    public static final int PHASE_BOOST = 2;
+    public static final int PHASE_COAST = 3;
+    public static final int PHASE_DESCENT = 4;
+    public static final int PHASE_COUNT = 5;
+
+    // Pad samples needed before the ground reference is trusted, and the median window.
+    private static final int GROUND_SAMPLES = 32;
+    private static final int GROUND_WINDOW = 1024;
+    // Ten samples at the boost rate, two at the slowest.
+    private static final long HOLD_NS = 100000000L;
+    private static final float BOOST_ENTER_MPS = 15f;
+    private static final float BOOST_MIN_ALTITUDE_M = 5f;
+    // Burnout: climb rate has dropped this far below its peak.
+    private static final float COAST_FRACTION = 0.95f;
+    private static final float DESCENT_ENTER_MPS = -3f;
+    private static final float LANDED_MPS = 1f;
+    private static final float LANDED_ALTITUDE_M = 30f;
+    private static final long LANDED_HOLD_NS = 5000000000L;
+    // Altitude is low-pass filtered with this time constant before differentiating.
+    private static final float ALTITUDE_TAU_S = 0.05f;
+    // Climb rate is measured over at least this much time, then smoothed.
+    private static final long VELOCITY_WINDOW_NS = 100000000L;
+    private static final float VELOCITY_ALPHA = 0.5f;
+
+    private int mPhase = PHASE_IDLE;
+    private int mCandidate = PHASE_IDLE;
+    // When the candidate was first proposed.
+    private long mCandidateSinceNs;
+
+    private final RunningMedian mGround = new RunningMedian(GROUND_WINDOW);
+    private boolean mGroundFrozen;
+    private float mGroundPressure = Float.NaN;
+
+    private boolean mHavePrevious;
+    private long mPreviousTimeNs;
+    private long mReferenceTimeNs;
+    private float mReferenceAltitude;
+    private float mAltitude;
+    private float mVelocity;
+    private float mPeakVelocity;
+    private long mStillSinceNs = -1;
+
+    /**
+     * Adds one sample.
+     *
+     * @return true if the phase changed.
+     */
+    public boolean update(long timeNs, float pressure) {
+        if (Float.isNaN(pressure)) {
+            return false;
+        }
+        // A suspected launch stops the baseline, so the climb never feeds into it.
+        if (!mGroundFrozen && mCandidate != PHASE_BOOST) {
+            mGround.add(pressure);
+            if (mGround.size() < GROUND_SAMPLES) {
+                return setPhase(PHASE_IDLE);
+            }
+            mGroundPressure = mGround.median();
+            if (mPhase == PHASE_IDLE) {
+                return setPhase(PHASE_ARMED);
+            }
+        }
+
+        final float altitude = FlightEvents.altitude(pressure, mGroundPressure);
+        if (!mHavePrevious) {
+            mHavePrevious = true;
+            mAltitude = mReferenceAltitude = altitude;
+            mPreviousTimeNs = mReferenceTimeNs = timeNs;
+        } else if (timeNs > mPreviousTimeNs) {
+            final float dt = (timeNs - mPreviousTimeNs) / 1e9f;
+            mAltitude += dt / (ALTITUDE_TAU_S + dt) * (altitude - mAltitude);
+            mPreviousTimeNs = timeNs;
+            if (timeNs - mReferenceTimeNs >= VELOCITY_WINDOW_NS) {
+                final float instant = (mAltitude - mReferenceAltitude)
+                        / ((timeNs - mReferenceTimeNs) / 1e9f);
+                mVelocity += VELOCITY_ALPHA * (instant - mVelocity);
+                mReferenceTimeNs = timeNs;
+                mReferenceAltitude = mAltitude;
+            }
+        }
+
+        return propose(next(timeNs), timeNs);
+    }
+
+    public int getPhase() {
+        return mPhase;
+    }
+
+    public float getAltitude() {
+        return mAltitude;
+    }
+
+    public float getVelocity() {
+        return mVelocity;
+    }
+
+    /**
+     * @return The pressure altitudes are measured from, or NaN before there is one.
+     */
+    public float getGroundPressure() {
+        return mGroundPressure;
+    }
+
+    /**
+     * @return true once launch has fixed the ground pressure for the rest of the flight.
+     */
+    public boolean isGroundFrozen() {
+        return mGroundFrozen;
+    }
+
+    public void reset() {
+        mPhase = mCandidate = PHASE_IDLE;
+        mGroundPressure = Float.NaN;
+        rearm();
+    }
+
+    /**
+     * Appends the detector's state to {@code out}, for {@link #restoreState}.  The ground
+     * window is summarised by its median.
+     */
+    public void saveState(ByteBuffer out) {
+        out.putInt(mPhase).putInt(mCandidate).putLong(mCandidateSinceNs);
+        out.put((byte) (mGroundFrozen ? 1 : 0)).putFloat(mGroundPressure);
+        out.put((byte) (mHavePrevious ? 1 : 0)).putLong(mPreviousTimeNs).putLong(mReferenceTimeNs);
+        out.putFloat(mReferenceAltitude).putFloat(mAltitude).putFloat(mVelocity)
+                .putFloat(mPeakVelocity).putLong(mStillSinceNs);
+    }
+
+    /**
+     * Picks up where {@link #saveState} left off.  On the pad, the ground window restarts
+     * filled with the saved ground pressure, so later samples move it as before.
+     */
+    public void restoreState(ByteBuffer in) {
+        reset();
+        mPhase = in.getInt();
+        mCandidate = in.getInt();
+        mCandidateSinceNs = in.getLong();
+        mGroundFrozen = in.get() != 0;
+        mGroundPressure = in.getFloat();
+        mHavePrevious = in.get() != 0;
+        mPreviousTimeNs = in.getLong();
+        mReferenceTimeNs = in.getLong();
+        mReferenceAltitude = in.getFloat();
+        mAltitude = in.getFloat();
+        mVelocity = in.getFloat();
+        mPeakVelocity = in.getFloat();
+        mStillSinceNs = in.getLong();
+        if (!mGroundFrozen && !Float.isNaN(mGroundPressure)) {
+            for (int i = 0; i < GROUND_SAMPLES; i++) {
+                mGround.add(mGroundPressure);
+            }
+        }
+    }
+
+    public static String phaseName(int phase) {
+        switch (phase) {
+            case PHASE_IDLE:
+                return "idle";
+            case PHASE_ARMED:
+                return "armed";
+            case PHASE_BOOST:
+                return "boost";
+            case PHASE_COAST:
+                return "coast";
+            case PHASE_DESCENT:
+                return "descent";
+            default:
+                return "phase " + phase;
+        }
+    }
+
+    private int next(long timeNs) {
+        switch (mPhase) {
+            case PHASE_ARMED:
+                if (mVelocity > BOOST_ENTER_MPS && mAltitude > BOOST_MIN_ALTITUDE_M) {
+                    return PHASE_BOOST;
+                }
+                return PHASE_ARMED;
+            case PHASE_BOOST:
+                mPeakVelocity = Math.max(mPeakVelocity, mVelocity);
+                if (mVelocity < mPeakVelocity * COAST_FRACTION) {
+                    return PHASE_COAST;
+                }
+                return PHASE_BOOST;
+            case PHASE_COAST:
+                if (mVelocity < DESCENT_ENTER_MPS) {
+                    return PHASE_DESCENT;
+                }
+                return PHASE_COAST;
+            case PHASE_DESCENT:
+                if (Math.abs(mVelocity) < LANDED_MPS && mAltitude < LANDED_ALTITUDE_M) {
+                    if (mStillSinceNs < 0) {
+                        mStillSinceNs = timeNs;
+                    } else if (timeNs - mStillSinceNs > LANDED_HOLD_NS) {
+                        return PHASE_IDLE;
+                    }
+                } else {
+                    mStillSinceNs = -1;
+                }
+                return PHASE_DESCENT;
+            default:
+                return PHASE_IDLE;
+        }
+    }
+
+    private boolean propose(int phase, long timeNs) {
+        if (phase == mPhase) {
+            mCandidate = mPhase;
+            return false;
+        }
+        if (phase != mCandidate) {
+            mCandidate = phase;
+            mCandidateSinceNs = timeNs;
+            return false;
+        }
+        if (timeNs - mCandidateSinceNs < HOLD_NS) {
+            return false;
+        }
+        return setPhase(phase);
+    }
+
+    private boolean setPhase(int phase) {
+        if (phase == mPhase) {
+            return false;
+        }
+        mPhase = phase;
+        mCandidate = phase;
+        if (phase == PHASE_BOOST) {
+            mPeakVelocity = mVelocity;
+            mGroundFrozen = true;
+        } else if (phase == PHASE_IDLE && mGroundFrozen) {
+            // Landed.  The old ground stays the reference until the new one is established.
+            rearm();
+        }
+        return true;
+    }
+
+    // Starts a new ground reference and forgets the flight.
+    private void rearm() {
+        mGround.reset();
+        mGroundFrozen = false;
+        mHavePrevious = false;
+        mVelocity = 0;
+        mPeakVelocity = 0;
+        mStillSinceNs = -1;
+    }
+}
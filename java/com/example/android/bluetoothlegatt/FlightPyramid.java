@@ -0,0 +1,523 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Multi-resolution min/max/mean summary of a flight, built incrementally while samples
+ * arrive.  Level 0 buckets each summarize {@link #FACTOR} raw samples, and every higher level
+ * summarizes {@link #FACTOR} buckets of the level below, so a query for any time range can be
+ * answered from the coarsest level that still has enough buckets to fill the screen.
+ *
+ * Levels below a chosen first level can be left unstored, so a very long flight can be
+ * browsed with only its coarse levels in memory and its fine detail paged in from the log
+ * (see {@link FlightPager}).
+ *
+ * The pyramid is saved next to its flight log as {@code <name>.pyr}.
+ */
+public class FlightPyramid {
+
+    public static final String EXTENSION = ".pyr";
+    public static final int FACTOR = 8;
+    public static final int MAX_LEVELS = 10;
+
+    private static final int MAGIC = 0x50595232; // "PYR2"
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Level[] mLevels = new Level[MAX_LEVELS];
+    private final int mFirstLevel;
+    private long mSampleCount;
+
+    // Running min/max/sum of the buckets merged into it.
+    private static class Bucket {
+        long start;
+        float min;
+        float max;
+        double sum;
+        long weight;
+
+        void clear() {
+            weight = 0;
+        }
+
+        boolean isEmpty() {
+            return weight == 0;
+        }
+
+        void add(long start, float min, float max, double sum, long weight) {
+            if (this.weight == 0) {
+                this.start = start;
+                this.min = min;
+                this.max = max;
+            } else {
+                if (min < this.min || Float.isNaN(this.min)) {
+                    this.min = min;
+                }
+                if (max > this.max || Float.isNaN(this.max)) {
+                    this.max = max;
+                }
+            }
+            this.sum = this.weight == 0 ? sum : this.sum + sum;
+            this.weight += weight;
+        }
+    }
+
+    private static class Level {
+        // Levels below the pyramid's first level only carry their partial bucket upwards.
+        boolean stored = true;
+        int count;
+        long[] start = new long[INITIAL_CAPACITY];
+        float[] min = new float[INITIAL_CAPACITY];
+        float[] max = new float[INITIAL_CAPACITY];
+        float[] mean = new float[INITIAL_CAPACITY];
+
+        // Bucket currently being filled.
+        int partialChildren;
+        long partialStart;
+        float partialMin;
+        float partialMax;
+        double partialSum;
+        long partialWeight;
+
+        void add(long start, float min, float max, double sum, long weight) {
+            if (partialChildren == 0) {
+                partialStart = start;
+                partialMin = min;
+                partialMax = max;
+                partialSum = 0;
+                partialWeight = 0;
+            } else {
+                // Samples not yet downloaded are NaN; they only count if nothing else has.
+                if (min < partialMin || Float.isNaN(partialMin)) {
+                    partialMin = min;
+                }
+                if (max > partialMax || Float.isNaN(partialMax)) {
+                    partialMax = max;
+                }
+            }
+            partialSum += sum;
+            partialWeight += weight;
+            partialChildren++;
+        }
+
+        void commit() {
+            if (!stored) {
+                partialChildren = 0;
+                return;
+            }
+            if (count == start.length) {
+                final int capacity = count * 2;
+                start = Arrays.copyOf(start, capacity);
+                min = Arrays.copyOf(min, capacity);
+                max = Arrays.copyOf(max, capacity);
+                mean = Arrays.copyOf(mean, capacity);
+            }
+            start[count] = partialStart;
+            min[count] = partialMin;
+            max[count] = partialMax;
+            mean[count] = (float) (partialSum / partialWeight);
+            count++;
+            partialChildren = 0;
+        }
+
+        /**
+         * @return Index of the last bucket starting at or before {@code time}, or 0.
+         */
+        int floor(long time) {
+            int lo = 0;
+            int hi = count - 1;
+            while (lo < hi) {
+                final int mid = (lo + hi + 1) >>> 1;
+                if (start[mid] <= time) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+    }
+
+    public FlightPyramid() {
+        this(0);
+    }
+
+    /**
+     * @param firstLevel Finest level to keep; each level up divides memory by {@link #FACTOR}.
+     */
+    public FlightPyramid(int firstLevel) {
+        mFirstLevel = firstLevel;
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            mLevels[i] = new Level();
+            mLevels[i].stored = i >= firstLevel;
+        }
+    }
+
+    public int getFirstLevel() {
+        return mFirstLevel;
+    }
+
+    /**
+     * @return Raw samples summarized by one bucket of the finest stored level.
+     */
+    public long getBucketSamples() {
+        return FACTOR * bucketSamples(mFirstLevel);
+    }
+
+    /**
+     * Adds one raw sample.  Samples must arrive in time order.
+     */
+    public void add(long timeNs, float value) {
+        mSampleCount++;
+        carry(0, timeNs, value, value, value, 1);
+    }
+
+    /**
+     * Joins pyramids built over consecutive chunks of one flight, in order.  Every chunk but
+     * the last must hold exactly {@code FACTOR^chunkLevels} samples, so that its buckets on
+     * levels below {@code chunkLevels} are complete and stand as they are.
+     */
+    public static FlightPyramid stitch(FlightPyramid[] chunks, int chunkLevels) {
+        final FlightPyramid result = new FlightPyramid(chunks[0].mFirstLevel);
+        final FlightPyramid last = chunks[chunks.length - 1];
+        for (int l = 0; l < chunkLevels; l++) {
+            int total = 0;
+            for (FlightPyramid chunk : chunks) {
+                total += chunk.mLevels[l].count;
+            }
+            final Level out = result.mLevels[l];
+            final int capacity = Math.max(INITIAL_CAPACITY, total);
+            out.start = new long[capacity];
+            out.min = new float[capacity];
+            out.max = new float[capacity];
+            out.mean = new float[capacity];
+            for (FlightPyramid chunk : chunks) {
+                final Level in = chunk.mLevels[l];
+                System.arraycopy(in.start, 0, out.start, out.count, in.count);
+                System.arraycopy(in.min, 0, out.min, out.count, in.count);
+                System.arraycopy(in.max, 0, out.max, out.count, in.count);
+                System.arraycopy(in.mean, 0, out.mean, out.count, in.count);
+                out.count += in.count;
+            }
+            final Level partial = last.mLevels[l];
+            out.partialChildren = partial.partialChildren;
+            out.partialStart = partial.partialStart;
+            out.partialMin = partial.partialMin;
+            out.partialMax = partial.partialMax;
+            out.partialSum = partial.partialSum;
+            out.partialWeight = partial.partialWeight;
+        }
+        // A full chunk is a single child of the first level above the chunk.
+        for (FlightPyramid chunk : chunks) {
+            result.mSampleCount += chunk.mSampleCount;
+            final Level top = chunk.mLevels[chunkLevels];
+            if (top.partialChildren > 0) {
+                result.carry(chunkLevels, top.partialStart, top.partialMin, top.partialMax,
+                        top.partialSum, top.partialWeight);
+            }
+        }
+        return result;
+    }
+
+    // Adds a child to a level's partial bucket, committing full buckets upwards.
+    private void carry(int index, long start, float min, float max, double sum, long weight) {
+        Level level = mLevels[index];
+        level.add(start, min, max, sum, weight);
+        int i = index;
+        while (level.partialChildren == FACTOR) {
+            final long bucketStart = level.partialStart;
+            final float bucketMin = level.partialMin;
+            final float bucketMax = level.partialMax;
+            final double bucketSum = level.partialSum;
+            final long bucketWeight = level.partialWeight;
+            level.commit();
+            if (++i == MAX_LEVELS) {
+                break;
+            }
+            level = mLevels[i];
+            level.add(bucketStart, bucketMin, bucketMax, bucketSum, bucketWeight);
+        }
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Summarizes {@code [fromNs, toNs]} with at most {@code maxBuckets} buckets, using the
+     * finest level that fits.  Each level ends with the samples not yet in a complete bucket of
+     * it, as one partial bucket.  Where even the coarsest level has too many buckets, adjacent
+     * ones are merged until they fit {@code maxBuckets} and the output arrays.
+     *
+     * @return The number of buckets written, or 0 if the pyramid is empty.
+     */
+    public int query(long fromNs, long toNs, int maxBuckets,
+                     long[] start, float[] min, float[] max, float[] mean) {
+        final int limit = Math.max(1, Math.min(maxBuckets, start.length));
+        final Bucket tail = new Bucket();
+        final Bucket merged = new Bucket();
+        for (int i = mFirstLevel; i < MAX_LEVELS; i++) {
+            final Level level = mLevels[i];
+            tail(i, tail);
+            if (level.count == 0 && tail.isEmpty()) {
+                return 0;
+            }
+            final int first = floor(level, tail, fromNs);
+            final int last = floor(level, tail, toNs);
+            final int n = last - first + 1;
+            final boolean coarsest = i == MAX_LEVELS - 1 || bucketCount(i + 1) < 2;
+            if (n > limit && !coarsest) {
+                continue;
+            }
+            final long weight = FACTOR * bucketSamples(i);
+            final int group = (n + limit - 1) / limit;
+            int written = 0;
+            for (int from = first; from <= last; from += group) {
+                merged.clear();
+                for (int j = from; j <= last && j < from + group; j++) {
+                    if (j < level.count) {
+                        merged.add(level.start[j], level.min[j], level.max[j],
+                                (double) level.mean[j] * weight, weight);
+                    } else {
+                        merged.add(tail.start, tail.min, tail.max, tail.sum, tail.weight);
+                    }
+                }
+                start[written] = merged.start;
+                min[written] = merged.min;
+                max[written] = merged.max;
+                mean[written] = (float) (merged.sum / merged.weight);
+                written++;
+            }
+            return written;
+        }
+        return 0;
+    }
+
+    // Merges the partial buckets of level index and every level below it into out: everything
+    // added since the level's last complete bucket.
+    private void tail(int index, Bucket out) {
+        out.clear();
+        for (int i = index; i >= 0; i--) {
+            final Level level = mLevels[i];
+            if (level.partialChildren > 0) {
+                out.add(level.partialStart, level.partialMin, level.partialMax,
+                        level.partialSum, level.partialWeight);
+            }
+        }
+    }
+
+    // Complete buckets on a level, plus its partial one.
+    private int bucketCount(int index) {
+        final Bucket tail = new Bucket();
+        tail(index, tail);
+        return mLevels[index].count + (tail.isEmpty() ? 0 : 1);
+    }
+
+    // As Level.floor, counting the tail as the bucket after the level's complete ones.
+    private static int floor(Level level, Bucket tail, long time) {
+        if (!tail.isEmpty() && (level.count == 0 || tail.start <= time)) {
+            return level.count;
+        }
+        return level.floor(time);
+    }
+
+    // Raw samples summarized by one child of a bucket on level index.
+    private static long bucketSamples(int index) {
+        long samples = 1;
+        for (int i = 0; i < index; i++) {
+            samples *= FACTOR;
+        }
+        return samples;
+    }
+
+    public float getMin() {
+        final Level top = topLevel();
+        final Bucket tail = new Bucket();
+        tail(MAX_LEVELS - 1, tail);
+        float min = tail.isEmpty() || Float.isNaN(tail.min) ? Float.MAX_VALUE : tail.min;
+        for (int i = 0; i < top.count; i++) {
+            if (top.min[i] < min) {
+                min = top.min[i];
+            }
+        }
+        return min;
+    }
+
+    public float getMax() {
+        final Level top = topLevel();
+        final Bucket tail = new Bucket();
+        tail(MAX_LEVELS - 1, tail);
+        float max = tail.isEmpty() || Float.isNaN(tail.max) ? -Float.MAX_VALUE : tail.max;
+        for (int i = 0; i < top.count; i++) {
+            if (top.max[i] > max) {
+                max = top.max[i];
+            }
+        }
+        return max;
+    }
+
+    public long getStartTime() {
+        final Level level = mLevels[mFirstLevel];
+        if (level.count > 0) {
+            return level.start[0];
+        }
+        final Bucket tail = new Bucket();
+        tail(MAX_LEVELS - 1, tail);
+        return tail.isEmpty() ? 0 : tail.start;
+    }
+
+    /**
+     * @return When the last bucket, complete or not, of the finest stored level starts.
+     */
+    public long getEndTime() {
+        final Level level = mLevels[mFirstLevel];
+        final Bucket tail = new Bucket();
+        tail(mFirstLevel, tail);
+        if (!tail.isEmpty()) {
+            return tail.start;
+        }
+        return level.count == 0 ? 0 : level.start[level.count - 1];
+    }
+
+    public void save(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FACTOR);
+            out.writeInt(mFirstLevel);
+            out.writeLong(mSampleCount);
+            for (Level level : mLevels) {
+                out.writeInt(level.count);
+                for (int j = 0; j < level.count; j++) {
+                    out.writeLong(level.start[j]);
+                    out.writeFloat(level.min[j]);
+                    out.writeFloat(level.max[j]);
+                    out.writeFloat(level.mean[j]);
+                }
+                out.writeInt(level.partialChildren);
+                out.writeLong(level.partialStart);
+                out.writeFloat(level.partialMin);
+                out.writeFloat(level.partialMax);
+                out.writeDouble(level.partialSum);
+                out.writeLong(level.partialWeight);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static FlightPyramid load(File file) throws IOException {
+        return load(file, 0);
+    }
+
+    /**
+     * Loads a saved pyramid, skipping levels below {@code firstLevel}.
+     *
+     * @throws IOException if the file was saved without some of the requested levels.
+     */
+    public static FlightPyramid load(File file, int firstLevel) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FACTOR) {
+                throw new IOException("Not a pyramid file: " + file);
+            }
+            if (in.readInt() > firstLevel) {
+                throw new IOException("Pyramid " + file + " lacks level " + firstLevel);
+            }
+            final FlightPyramid pyramid = new FlightPyramid(firstLevel);
+            pyramid.mSampleCount = in.readLong();
+            for (Level level : pyramid.mLevels) {
+                final int count = in.readInt();
+                if (!level.stored) {
+                    // start, min, max, mean per bucket
+                    final long skip = count * 20L;
+                    for (long skipped = 0; skipped < skip; ) {
+                        final int n = in.skipBytes((int) Math.min(skip - skipped, 1 << 20));
+                        if (n <= 0) {
+                            throw new IOException("Truncated pyramid: " + file);
+                        }
+                        skipped += n;
+                    }
+                    level.count = 0;
+                    level.partialChildren = in.readInt();
+                    level.partialStart = in.readLong();
+                    level.partialMin = in.readFloat();
+                    level.partialMax = in.readFloat();
+                    level.partialSum = in.readDouble();
+                    level.partialWeight = in.readLong();
+                    continue;
+                }
+                final int capacity = Math.max(INITIAL_CAPACITY, count);
+                level.start = new long[capacity];
+                level.min = new float[capacity];
+                level.max = new float[capacity];
+                level.mean = new float[capacity];
+                for (int j = 0; j < count; j++) {
+                    level.start[j] = in.readLong();
+                    level.min[j] = in.readFloat();
+                    level.max[j] = in.readFloat();
+                    level.mean[j] = in.readFloat();
+                }
+                level.count = count;
+                level.partialChildren = in.readInt();
+                level.partialStart = in.readLong();
+                level.partialMin = in.readFloat();
+                level.partialMax = in.readFloat();
+                level.partialSum = in.readDouble();
+                level.partialWeight = in.readLong();
+            }
+            return pyramid;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads the pyramid saved next to {@code log}, rebuilding it from the log if it is missing
+     * or older than the log's contents.  Rebuilds decode the log in parallel on every core.
+     */
+    public static FlightPyramid loadOrBuild(File log) throws IOException {
+        return loadOrBuild(log, 0);
+    }
+
+    /**
+     * As {@link #loadOrBuild(File)}, keeping only levels from {@code firstLevel} up.
+     */
+    public static FlightPyramid loadOrBuild(File log, int firstLevel) throws IOException {
+        final File file = FlightLog.sibling(log, EXTENSION);
+        final long samples = FlightLog.sampleCount(log);
+        if (file.exists()) {
+            try {
+                final FlightPyramid pyramid = load(file, firstLevel);
+                if (pyramid.mSampleCount == samples) {
+                    return pyramid;
+                }
+            } catch (IOException e) {
+                // Fall through and rebuild.
+            }
+        }
+
+        final FlightPyramid pyramid = FlightChunks.open(log, firstLevel).getPyramid();
+        pyramid.save(file);
+        return pyramid;
+    }
+
+    private Level topLevel() {
+        Level top = mLevels[0];
+        for (Level level : mLevels) {
+            if (level.count > 0) {
+                top = level;
+            }
+        }
+        return top;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records one session of samples to a new {@link FlightLog}, maintaining its
+ * {@link FlightPyramid} as samples arrive so the flight can be graphed at any zoom level
+ * without rescanning the log.  The pyramid is saved when the session closes; if the process
+ * dies first, {@link FlightPyramid#loadOrBuild(File)} rebuilds it from the log, and
+ * {@link #resume(File, int)} carries on recording to it.
+ */
+public class FlightRecorder {
+    private final static String TAG = FlightRecorder.class.getSimpleName();
+
+    private final FlightLog mLog;
+    private final FlightPyramid mPyramid;
+
+    /**
+     * Records to a new log in {@code directory}, e.g. {@code FlightLog.directory(context)}.
+     *
+     * @param durability One of the {@code GroupCommitWriter.DURABILITY_*} policies.
+     */
+    public FlightRecorder(File directory, int durability) throws IOException {
+        this(FlightLog.create(directory, durability), new FlightPyramid());
+        Platform.log().i(TAG, "Recording to " + mLog.getFile() + " with "
+                + GroupCommitWriter.durabilityName(durability));
+    }
+
+    private FlightRecorder(FlightLog log, FlightPyramid pyramid) {
+        mLog = log;
+        mPyramid = pyramid;
+    }
+
+    /**
+     * Carries on recording to {@code log}, left open when the process died, appending after
+     * its last whole record.
+     */
+    public static FlightRecorder resume(File log, int durability) throws IOException {
+        final FlightLog flightLog = FlightLog.reopen(log, durability);
+        final FlightRecorder recorder =
+                new FlightRecorder(flightLog, FlightPyramid.loadOrBuild(log));
+        Platform.log().i(TAG, "Resuming " + log + " after " + flightLog.getCount()
+                + " samples with " + GroupCommitWriter.durabilityName(durability));
+        return recorder;
+    }
+
+    public void onSample(long sampleTimeNs, float value) throws IOException {
+        mLog.append(sampleTimeNs, value);
+        mPyramid.add(sampleTimeNs, value);
+    }
+
+    public void tick(long nowNs) throws IOException {
+        mLog.tick(nowNs);
+    }
+
+    public void close() throws IOException {
+        mLog.close();
+        mPyramid.save(FlightLog.sibling(mLog.getFile(), FlightPyramid.EXTENSION));
+        Platform.log().i(TAG, "Recorded " + mLog.getCount() + " samples to " + mLog.getFile());
+        Platform.log().i(TAG, mLog.getWriter().toString());
+    }
+
+    public FlightLog getLog() {
+        return mLog;
+    }
+
+    public FlightPyramid getPyramid() {
+        return mPyramid;
+    }
+}
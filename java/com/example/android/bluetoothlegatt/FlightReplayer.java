@@ -0,0 +1,121 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Replays a stored {@link FlightLog} as RX frames, through the same path live notifications
+ * take.  Frames carry the altimeter's microsecond sample clock and are stamped with a
+ * {@link VirtualClock} that advances exactly with the log, so a replay is deterministic at any
+ * speed: 1x paces frames in real time, Nx compresses the wait N times, and
+ * {@link #SPEED_UNLIMITED} pushes frames as fast as the consumer accepts them.
+ */
+public class FlightReplayer implements Runnable {
+    private final static String TAG = FlightReplayer.class.getSimpleName();
+
+    public static final double SPEED_UNLIMITED = Double.POSITIVE_INFINITY;
+
+    // Fixed delay between a sample being taken and "received" during replay.
+    private static final long LINK_DELAY_NS = 5000000L;
+    private static final int READ_BLOCK = 4096;
+
+    private final File mLog;
+    private final double mSpeed;
+    private final FrameSink mSink;
+    private final VirtualClock mClock;
+    private final byte[] mFrame =
+            new byte[TelemetrySchema.TIMED_SAMPLE_FRAME_LENGTH + FrameCrc.LENGTH];
+
+    private volatile boolean mCancelled;
+    private volatile long mReplayed;
+    private volatile long mElapsedNs;
+
+    /**
+     * @param speed Replay speed relative to the recording, or {@link #SPEED_UNLIMITED}.
+     * @param epochNs Virtual receive time of the first frame.
+     */
+    public FlightReplayer(File log, double speed, long epochNs, FrameSink sink) {
+        mLog = log;
+        mSpeed = speed;
+        mSink = sink;
+        mClock = new VirtualClock(epochNs);
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    @Override
+    public void run() {
+        final long samples = FlightLog.sampleCount(mLog);
+        final long[] times = new long[READ_BLOCK];
+        final float[] values = new float[READ_BLOCK];
+        final ByteBuffer frame = ByteBuffer.wrap(mFrame).order(ByteOrder.BIG_ENDIAN);
+        final long epochNs = mClock.nowNs();
+        final long wallStart = System.nanoTime();
+        long origin = 0;
+
+        try {
+            for (long first = 0; first < samples && !mCancelled; first += READ_BLOCK) {
+                final int n = FlightLog.read(mLog, first, READ_BLOCK, times, values);
+                if (first == 0 && n > 0) {
+                    origin = times[0];
+                }
+                for (int i = 0; i < n && !mCancelled; i++) {
+                    final long offsetNs = times[i] - origin;
+                    mClock.advanceTo(epochNs + offsetNs + LINK_DELAY_NS);
+                    pace(offsetNs, wallStart);
+
+                    frame.putFloat(0, values[i]);
+                    frame.putInt(TelemetrySchema.SAMPLE_FRAME_LENGTH, (int) (offsetNs / 1000));
+                    FrameCrc.append(mFrame, TelemetrySchema.TIMED_SAMPLE_FRAME_LENGTH);
+                    while (!mSink.submit(mFrame, mClock.nowNs())) {
+                        if (mCancelled) {
+                            return;
+                        }
+                    }
+                    mReplayed++;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to replay " + mLog, e);
+        } catch (InterruptedException e) {
+            mCancelled = true;
+        } finally {
+            mElapsedNs = System.nanoTime() - wallStart;
+            Log.i(TAG, toString());
+        }
+    }
+
+    public long getReplayed() {
+        return mReplayed;
+    }
+
+    public VirtualClock getClock() {
+        return mClock;
+    }
+
+    @Override
+    public String toString() {
+        final double seconds = mElapsedNs / 1e9;
+        return String.format("Replayed %d samples of %s at %s in %.2fs (%.0f samples/s)%s",
+                mReplayed, mLog.getName(),
+                Double.isInfinite(mSpeed) ? "max speed" : mSpeed + "x",
+                seconds, seconds > 0 ? mReplayed / seconds : 0, mCancelled ? ", cancelled" : "");
+    }
+
+    private void pace(long offsetNs, long wallStart) throws InterruptedException {
+        if (Double.isInfinite(mSpeed)) {
+            return;
+        }
+        final long dueNs = (long) (offsetNs / mSpeed);
+        final long waitNs = dueNs - (System.nanoTime() - wallStart);
+        if (waitNs > 0) {
+            Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per-flight metrics derived from a {@link FlightLog}: apogee, time to apogee, mean ascent
+ * rate and the descent rates under drogue and main.  Summaries are cached next to the log as
+ * {@code <name>.sum} and reused as long as the log has neither grown nor been modified.
+ *
+ * The log is streamed in blocks and reduced to {@link #BIN_NS} pressure bins, so summarizing
+ * a long flight needs memory proportional to its duration, not its sample count.  Each
+ * stretch runs its samples through a {@link FlightPhaseDetector} alongside, and its bins are
+ * turned into altitudes above the ground pressure the detector settled on, the same reference
+ * the live display used; a stretch without a launch uses its leading samples instead.  Short
+ * gaps carry the last bin forward; a gap longer than {@link #MAX_GAP_NS} splits the log into
+ * separate stretches, and the one with the highest flight is summarized.  Samples whose time
+ * goes backwards are skipped.
+ */
+public class FlightSummary {
+
+    public static final String EXTENSION = ".sum";
+
+    private static final int MAGIC = 0x53554D34; // "SUM4"
+    private static final long BIN_NS = 100000000L;
+    private static final long MAX_GAP_NS = 60000000000L;
+    private static final int READ_BLOCK = 4096;
+    // Descent speeds are compared over windows of this many bins.
+    private static final int DESCENT_WINDOW = 20;
+    // A main deployment must slow the descent by at least this factor.
+    private static final float MAIN_SLOWDOWN = 1.3f;
+
+    public final String name;
+    public final long sampleCount;
+    // The log's modification time when summarized.
+    public final long logModified;
+    public final boolean launched;
+    public final float apogeeM;
+    public final float timeToApogeeS;
+    public final float ascentRateMps;
+    public final float drogueRateMps;
+    public final float mainRateMps;
+
+    private FlightSummary(String name, long sampleCount, long logModified, boolean launched,
+                          float apogeeM, float timeToApogeeS, float ascentRateMps,
+                          float drogueRateMps, float mainRateMps) {
+        this.name = name;
+        this.sampleCount = sampleCount;
+        this.logModified = logModified;
+        this.launched = launched;
+        this.apogeeM = apogeeM;
+        this.timeToApogeeS = timeToApogeeS;
+        this.ascentRateMps = ascentRateMps;
+        this.drogueRateMps = drogueRateMps;
+        this.mainRateMps = mainRateMps;
+    }
+
+    /**
+     * Returns the cached summary for {@code log}, computing and caching it if it is missing
+     * or stale.
+     */
+    public static FlightSummary loadOrCompute(File log) throws IOException {
+        final File file = FlightLog.sibling(log, EXTENSION);
+        final long samples = FlightLog.sampleCount(log);
+        if (file.exists()) {
+            try {
+                final FlightSummary cached = load(file, log.getName());
+                if (cached.sampleCount == samples && cached.logModified == log.lastModified()) {
+                    return cached;
+                }
+            } catch (IOException e) {
+                // Recompute below.
+            }
+        }
+        final FlightSummary summary = compute(log);
+        summary.save(file);
+        return summary;
+    }
+
+    public static FlightSummary compute(File log) throws IOException {
+        final long samples = FlightLog.sampleCount(log);
+        final long modified = log.lastModified();
+        final long[] times = new long[READ_BLOCK];
+        final float[] values = new float[READ_BLOCK];
+
+        FlightSummary best = null;
+        Bins bins = new Bins();
+        long origin = 0;
+        long last = Long.MIN_VALUE;
+
+        for (long first = 0; first < samples; first += READ_BLOCK) {
+            final int n = FlightLog.read(log, first, READ_BLOCK, times, values);
+            for (int i = 0; i < n; i++) {
+                // NaN holds the place of a sample not downloaded yet.
+                if (times[i] < last || Float.isNaN(values[i]) || Float.isInfinite(values[i])) {
+                    continue;
+                }
+                if (last == Long.MIN_VALUE) {
+                    origin = times[i];
+                } else if (times[i] - last > MAX_GAP_NS) {
+                    best = higher(best, bins.summarize(log.getName(), samples, modified));
+                    bins = new Bins();
+                    origin = times[i];
+                }
+                last = times[i];
+                bins.add(times[i], (times[i] - origin) / BIN_NS, values[i]);
+            }
+        }
+        return higher(best, bins.summarize(log.getName(), samples, modified));
+    }
+
+    // The summary of the stretch with the highest flight.
+    private static FlightSummary higher(FlightSummary a, FlightSummary b) {
+        if (a == null) {
+            return b;
+        }
+        return b.launched && (!a.launched || b.apogeeM > a.apogeeM) ? b : a;
+    }
+
+    // One unbroken stretch of the log, reduced to BIN_NS pressure bins.
+    private static final class Bins {
+        private final FlightPhaseDetector mDetector = new FlightPhaseDetector();
+        private final RunningMedian mPad = new RunningMedian(FlightEvents.PAD_SAMPLES);
+        private float[] mValues = new float[256];
+        private int mCount;
+        private long mIndex;
+        private double mSum;
+        private int mSamples;
+
+        void add(long timeNs, long bin, float pressure) {
+            if (!mDetector.isGroundFrozen()) {
+                mDetector.update(timeNs, pressure);
+            }
+            if (mPad.size() < FlightEvents.PAD_SAMPLES) {
+                mPad.add(pressure);
+            }
+            if (bin != mIndex && mSamples > 0) {
+                // Close the current bin, carrying it forward over any empty bins.
+                final float mean = (float) (mSum / mSamples);
+                for (long g = Math.max(1, bin - mIndex); g > 0; g--) {
+                    append(mean);
+                }
+                mSum = 0;
+                mSamples = 0;
+            }
+            mIndex = bin;
+            mSum += pressure;
+            mSamples++;
+        }
+
+        FlightSummary summarize(String name, long samples, long modified) {
+            if (mSamples > 0) {
+                append((float) (mSum / mSamples));
+                mSamples = 0;
+            }
+            FlightEvents.toAltitude(mValues, mCount,
+                    FlightEvents.groundPressure(mDetector, mPad));
+            return FlightSummary.summarize(name, samples, modified, mValues, mCount);
+        }
+
+        private void append(float value) {
+            if (mCount == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mValues.length * 2);
+            }
+            mValues[mCount++] = value;
+        }
+    }
+
+    private static FlightSummary summarize(String name, long samples, long modified,
+                                           float[] altitude, int count) {
+        final int launch = FlightEvents.launchIndex(altitude, count);
+        final int apogee = FlightEvents.apogeeIndex(altitude, count);
+        if (launch < 0 || apogee < launch) {
+            return new FlightSummary(name, samples, modified, false, 0, Float.NaN, Float.NaN,
+                    Float.NaN, Float.NaN);
+        }
+
+        final float binS = BIN_NS / 1e9f;
+        final float apogeeM = altitude[apogee];
+        final float timeToApogee = Math.max(binS, (apogee - launch) * binS);
+
+        int landing = count - 1;
+        for (int i = apogee; i < count; i++) {
+            if (altitude[i] < FlightEvents.LAUNCH_ALTITUDE_M) {
+                landing = i;
+                break;
+            }
+        }
+
+        // Look for the window boundary where the descent slows down the most.
+        int split = -1;
+        float bestRatio = MAIN_SLOWDOWN;
+        for (int i = apogee + DESCENT_WINDOW; i + DESCENT_WINDOW <= landing; i++) {
+            final float before = descentRate(altitude, i - DESCENT_WINDOW, i, binS);
+            final float after = descentRate(altitude, i, i + DESCENT_WINDOW, binS);
+            if (after > 0 && before / after > bestRatio) {
+                bestRatio = before / after;
+                split = i;
+            }
+        }
+
+        final float drogue;
+        final float main;
+        if (split < 0) {
+            drogue = descentRate(altitude, apogee, landing, binS);
+            main = Float.NaN;
+        } else {
+            drogue = descentRate(altitude, apogee, split, binS);
+            main = descentRate(altitude, split, landing, binS);
+        }
+        return new FlightSummary(name, samples, modified, true, apogeeM, timeToApogee,
+                (apogeeM - altitude[launch]) / timeToApogee, drogue, main);
+    }
+
+    private static float descentRate(float[] altitude, int from, int to, float binS) {
+        if (to <= from) {
+            return Float.NaN;
+        }
+        return (altitude[from] - altitude[to]) / ((to - from) * binS);
+    }
+
+    public void save(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(sampleCount);
+            out.writeLong(logModified);
+            out.writeBoolean(launched);
+            out.writeFloat(apogeeM);
+            out.writeFloat(timeToApogeeS);
+            out.writeFloat(ascentRateMps);
+            out.writeFloat(drogueRateMps);
+            out.writeFloat(mainRateMps);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static FlightSummary load(File file, String name) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a summary file: " + file);
+            }
+            return new FlightSummary(name, in.readLong(), in.readLong(), in.readBoolean(),
+                    in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat(),
+                    in.readFloat());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: apogee=%.1fm t=%.1fs ascent=%.1fm/s drogue=%.1fm/s main=%.1fm/s",
+                name, apogeeM, timeToApogeeS, ascentRateMps, drogueRateMps, mainRateMps);
+    }
+}
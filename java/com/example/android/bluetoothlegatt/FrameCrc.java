@@ -0,0 +1,85 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * CRC-16/MCRF4XX (reflected polynomial 0x8408, initial value 0xFFFF, no final XOR) over RX
+ * frames.  Every RX frame ends in the CRC of everything before it, big-endian.
+ *
+ * The CRC is computed slice-by-8: eight 256-entry tables let each step fold eight input bytes
+ * with eight independent lookups, instead of eight dependent ones, so a 20 byte frame costs a
+ * few nanoseconds.
+ */
+public final class FrameCrc {
+
+    public static final int LENGTH = 2;
+
+    private static final int POLY = 0x8408;
+    private static final int INIT = 0xFFFF;
+
+    // TABLE[k * 256 + b] is the CRC contribution of byte b followed by k zero bytes.
+    private static final int[] TABLE = new int[8 * 256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[b] = crc;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int b = 0; b < 256; b++) {
+                final int previous = TABLE[(k - 1) * 256 + b];
+                TABLE[k * 256 + b] = (previous >>> 8) ^ TABLE[previous & 0xFF];
+            }
+        }
+    }
+
+    private FrameCrc() {
+    }
+
+    public static int compute(byte[] data, int offset, int length) {
+        int crc = INIT;
+        int i = offset;
+        final int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            final int c = crc ^ ((data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8);
+            crc = TABLE[7 * 256 + (c & 0xFF)]
+                    ^ TABLE[6 * 256 + (c >>> 8)]
+                    ^ TABLE[5 * 256 + (data[i + 2] & 0xFF)]
+                    ^ TABLE[4 * 256 + (data[i + 3] & 0xFF)]
+                    ^ TABLE[3 * 256 + (data[i + 4] & 0xFF)]
+                    ^ TABLE[2 * 256 + (data[i + 5] & 0xFF)]
+                    ^ TABLE[256 + (data[i + 6] & 0xFF)]
+                    ^ TABLE[data[i + 7] & 0xFF];
+        }
+        for (; i < end; i++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * @return true if the last {@link #LENGTH} bytes of the first {@code length} bytes of
+     *         {@code frame} are the CRC of the bytes before them.
+     */
+    public static boolean verify(byte[] frame, int length) {
+        if (frame == null || length <= LENGTH || length > frame.length) {
+            return false;
+        }
+        final int payload = length - LENGTH;
+        final int expected = (frame[payload] & 0xFF) << 8 | (frame[payload + 1] & 0xFF);
+        return compute(frame, 0, payload) == expected;
+    }
+
+    /**
+     * Writes the CRC of {@code frame[0, payloadLength)} after the payload.
+     *
+     * @return The full frame length.
+     */
+    public static int append(byte[] frame, int payloadLength) {
+        final int crc = compute(frame, 0, payloadLength);
+        frame[payloadLength] = (byte) (crc >>> 8);
+        frame[payloadLength + 1] = (byte) crc;
+        return payloadLength + LENGTH;
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Accepts RX frames from a source other than the live link, such as a {@link FlightReplayer}
+ * or a {@link SyntheticFlight}.  May block while the consumer is full; returning false means
+ * it is still full after waiting, and the source offers the same frame again rather than
+ * dropping it, so every run sees every sample.
+ */
+public interface FrameSink {
+    boolean submit(byte[] frame, long rxTimeNs) throws InterruptedException;
+}
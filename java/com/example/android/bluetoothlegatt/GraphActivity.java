@@ -2,19 +2,23 @@ package com.example.android.bluetoothlegatt;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.graphics.Color;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.jjoe64.graphview.GraphView;
+import com.jjoe64.graphview.Viewport;
 import com.jjoe64.graphview.series.DataPoint;
 import com.jjoe64.graphview.series.LineGraphSeries;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Created by eduardo on 4/15/16.
@@ -24,34 +28,58 @@ public class GraphActivity extends Activity {
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    // File names of stored flights to overlay instead of showing the latest flight.
+    public static final String EXTRAS_OVERLAY_FLIGHTS = "OVERLAY_FLIGHTS";
+    public static final String EXTRAS_OVERLAY_ALIGNMENT = "OVERLAY_ALIGNMENT";
+    // Point count for a series and filter benchmark run in place of showing a flight, e.g.
+    // adb shell am start -n .../.GraphActivity --ei BENCHMARK_POINTS 1000000
+    public static final String EXTRAS_BENCHMARK_POINTS = "BENCHMARK_POINTS";
+    // Logs how opening the latest flight scales with worker count before showing it.
+    public static final String EXTRAS_BENCHMARK_OPEN = "BENCHMARK_OPEN";
+    // Logs how building the overlay scales with worker count before showing it.
+    public static final String EXTRAS_BENCHMARK_OVERLAY = "BENCHMARK_OVERLAY";
+
+    private static final int OVERLAY_GRID_POINTS = 1000;
 
     private TextView mDataField;
     private String mDeviceName;
     private String mDeviceAddress;
     private BluetoothLeService mBluetoothLeService;
     private boolean mConnected = false;
+    private GraphView mGraph;
+    private FlightPager mPager;
+    // When the activity was created, for time-to-first-graph.
+    private long mCreateNs;
+
+    // The graph keeps pyramid levels from 64 sample buckets up in memory and pages finer
+    // detail in from the log, through a chunk cache of at most PAGE_CACHE_BYTES.
+    private static final int PAGED_PYRAMID_LEVEL = 1;
+    private static final long PAGE_CACHE_BYTES = 16 * 1024 * 1024;
 
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateNs = SystemClock.elapsedRealtimeNanos();
         setContentView(R.layout.data_graph);
 
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
 
-        GraphView graph = (GraphView) findViewById(R.id.graph_points);
-
-        LineGraphSeries<DataPoint> series = new LineGraphSeries<DataPoint>(new DataPoint[] {
-                new DataPoint(0, 1),
-                new DataPoint(1, 5),
-                new DataPoint(2, 3),
-                new DataPoint(3, 2),
-                new DataPoint(4, 6)
-        });
+        mGraph = (GraphView) findViewById(R.id.graph_points);
 
-        graph.addSeries(series);
+        final String[] overlay = intent.getStringArrayExtra(EXTRAS_OVERLAY_FLIGHTS);
+        final int benchmarkPoints = intent.getIntExtra(EXTRAS_BENCHMARK_POINTS, 0);
+        if (benchmarkPoints > 0) {
+            runBenchmark(benchmarkPoints);
+        } else if (overlay != null) {
+            loadOverlay(overlay, intent.getIntExtra(EXTRAS_OVERLAY_ALIGNMENT,
+                    FlightOverlay.ALIGN_LAUNCH),
+                    intent.getBooleanExtra(EXTRAS_BENCHMARK_OVERLAY, false));
+        } else {
+            loadLatestFlight(intent.getBooleanExtra(EXTRAS_BENCHMARK_OPEN, false));
+        }
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -78,6 +106,10 @@ public class GraphActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mPager != null) {
+            Log.i(TAG, mPager.toString());
+            mPager.close();
+        }
 
         mBluetoothLeService = null;
     }
@@ -92,12 +124,133 @@ public class GraphActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
-    public void displayData(byte[] byteArray) {
+    // Loads the most recent flight's pyramid off the main thread; it is rebuilt from the log
+    // only if the session did not close cleanly.
+    private void loadLatestFlight(final boolean benchmark) {
+        final File log = FlightLog.latest(this);
+        if (log == null) {
+            Log.w(TAG, "No recorded flights, showing sample data");
+            mGraph.addSeries(new LineGraphSeries<DataPoint>(new DataPoint[] {
+                    new DataPoint(0, 1),
+                    new DataPoint(1, 5),
+                    new DataPoint(2, 3),
+                    new DataPoint(3, 2),
+                    new DataPoint(4, 6)
+            }));
+            return;
+        }
 
-        if (byteArray != null) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (benchmark) {
+                        Log.i(TAG, FlightChunks.benchmark(log, PAGED_PYRAMID_LEVEL));
+                    }
+                    final FlightPyramid pyramid =
+                            FlightPyramid.loadOrBuild(log, PAGED_PYRAMID_LEVEL);
+                    final FlightPager pager = new FlightPager(log,
+                            FlightPager.DEFAULT_CHUNK_SAMPLES,
+                            Math.min(PAGE_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 8));
+                    // Warms the cache with the last chunk, which the series reads on creation.
+                    pager.getEndTime();
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isDestroyed()) {
+                                pager.close();
+                                return;
+                            }
+                            mPager = pager;
+                            showPyramid(pyramid, pager);
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to load " + log, e);
+                }
+            }
+        }, "GraphLoader").start();
+    }
 
-            float value = ByteBuffer.wrap(byteArray).order(ByteOrder.BIG_ENDIAN).getFloat();
-            mDataField.setText(String.format("%.2f", value));
+    private void loadOverlay(final String[] names, final int alignment,
+                             final boolean benchmark) {
+        final File dir = FlightLog.directory(this);
+        final File[] logs = new File[names.length];
+        for (int i = 0; i < names.length; i++) {
+            logs[i] = new File(dir, names[i]);
         }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (benchmark) {
+                        Log.i(TAG, FlightOverlay.benchmark(logs, alignment,
+                                OVERLAY_GRID_POINTS));
+                    }
+                    final FlightOverlay overlay =
+                            FlightOverlay.build(logs, alignment, OVERLAY_GRID_POINTS);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            showOverlay(overlay);
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to overlay flights", e);
+                }
+            }
+        }, "OverlayLoader").start();
+    }
+
+    // Runs once the graph has been laid out, since the benchmark draws it at its real size.
+    private void runBenchmark(final int points) {
+        mGraph.post(new Runnable() {
+            @Override
+            public void run() {
+                final String report = SeriesBenchmark.run(mGraph, points);
+                Log.i(TAG, report);
+                Log.i(TAG, "Filters over " + FilterBenchmark.run(points));
+                Toast.makeText(GraphActivity.this, report, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private void showOverlay(FlightOverlay overlay) {
+        final int columns = overlay.altitude.length == 0 ? 0 : overlay.altitude[0].length;
+        for (int f = 0; f < overlay.altitude.length; f++) {
+            // Grid columns outside a flight are NaN, which the series leaves unplotted.
+            final ColumnSeries series = new ColumnSeries(overlay.gridStart, overlay.gridStep,
+                    overlay.altitude[f], columns);
+            series.setTitle(overlay.names[f]);
+            series.setColor(Color.HSVToColor(
+                    new float[] { 360f * f / overlay.altitude.length, 0.8f, 0.8f }));
+            mGraph.addSeries(series);
+        }
+
+        final Viewport viewport = mGraph.getViewport();
+        viewport.setXAxisBoundsManual(true);
+        viewport.setMinX(overlay.gridStart);
+        viewport.setMaxX(overlay.gridStart + (columns - 1) * overlay.gridStep);
+        viewport.setScalable(true);
+        viewport.setScrollable(true);
+    }
+
+    private void showPyramid(FlightPyramid pyramid, FlightPager pager) {
+        final PyramidSeries series = new PyramidSeries(pyramid, pager);
+        final Viewport viewport = mGraph.getViewport();
+        viewport.setXAxisBoundsManual(true);
+        viewport.setMinX(series.getLowestValueX());
+        viewport.setMaxX(series.getHighestValueX());
+        viewport.setScalable(true);
+        viewport.setScrollable(true);
+        mGraph.addSeries(series);
+        Log.i(TAG, String.format("First graph of %d samples after %.1f ms",
+                pyramid.getSampleCount(), (SystemClock.elapsedRealtimeNanos() - mCreateNs) / 1e6));
+    }
+
+    public void displayData(float value) {
+
+        mDataField.setText(String.format("%.2f", value));
     }
 }
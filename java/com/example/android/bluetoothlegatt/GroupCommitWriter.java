@@ -0,0 +1,194 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends fixed-layout records to a file in group commits.  Records collect in one direct
+ * buffer and are written together once the batch reaches {@code maxBatchBytes} or its oldest
+ * record is {@code maxDelayNs} old, whichever comes first.  When written data is forced to
+ * flash depends on the durability policy:
+ *
+ * <ul>
+ *     <li>{@link #DURABILITY_BATCH} - fsync after every commit</li>
+ *     <li>{@link #DURABILITY_PERIODIC} - fsync at most every {@code syncIntervalNs}</li>
+ *     <li>{@link #DURABILITY_SESSION} - fsync only on {@link #close()}</li>
+ * </ul>
+ *
+ * Commit latency, estimated write amplification and the data at risk (appended but not yet
+ * forced to flash) are tracked so the policy can be tuned per flight.
+ */
+public class GroupCommitWriter {
+
+    public static final int DURABILITY_BATCH = 0;
+    public static final int DURABILITY_PERIODIC = 1;
+    public static final int DURABILITY_SESSION = 2;
+
+    // Flash is programmed in pages; a sync that dirties part of a page rewrites all of it.
+    private static final int FLASH_PAGE = 4096;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBatch;
+    private final long mMaxDelayNs;
+    private final int mDurability;
+    private final long mSyncIntervalNs;
+
+    private final LatencyStats mCommitLatency = new LatencyStats("Commit");
+    private final LatencyStats mSyncLatency = new LatencyStats("Sync");
+
+    private long mBatchStartNs;
+    private int mBatchRecords;
+    private long mLastSyncNs;
+
+    private long mPosition;
+    private long mSyncedPosition;
+    private long mRecords;
+    private long mUnsyncedRecords;
+    private long mMaxUnsyncedRecords;
+    private long mPayloadBytes;
+    private long mFlashBytes;
+
+    public GroupCommitWriter(File file, boolean append, int maxBatchBytes, long maxDelayNs,
+                             int durability, long syncIntervalNs) throws IOException {
+        mChannel = new FileOutputStream(file, append).getChannel();
+        mPosition = mSyncedPosition = mChannel.size();
+        mBatch = ByteBuffer.allocateDirect(maxBatchBytes).order(ByteOrder.BIG_ENDIAN);
+        mMaxDelayNs = maxDelayNs;
+        mDurability = durability;
+        mSyncIntervalNs = syncIntervalNs;
+        mLastSyncNs = Platform.clock().elapsedRealtimeNanos();
+    }
+
+    public static String durabilityName(int durability) {
+        switch (durability) {
+            case DURABILITY_BATCH:
+                return "fsync per batch";
+            case DURABILITY_PERIODIC:
+                return "periodic fsync";
+            case DURABILITY_SESSION:
+                return "fsync at session end";
+            default:
+                return "durability " + durability;
+        }
+    }
+
+    /**
+     * Reserves room for one record in the current batch, committing first if it is full.
+     * Write the record into the returned buffer, then call {@link #endRecord()}.
+     */
+    public synchronized ByteBuffer beginRecord(int size) throws IOException {
+        if (mBatch.remaining() < size) {
+            commit();
+        }
+        if (mBatchRecords == 0) {
+            mBatchStartNs = Platform.clock().elapsedRealtimeNanos();
+        }
+        return mBatch;
+    }
+
+    public synchronized void endRecord() throws IOException {
+        mBatchRecords++;
+        mRecords++;
+        mUnsyncedRecords++;
+        mMaxUnsyncedRecords = Math.max(mMaxUnsyncedRecords, mUnsyncedRecords);
+        if (mBatch.remaining() == 0) {
+            commit();
+        } else {
+            tick(Platform.clock().elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * Commits the batch if it has waited {@code maxDelayNs}, and syncs if the periodic
+     * interval has elapsed.  Call this when no records have arrived for a while.
+     */
+    public synchronized void tick(long nowNs) throws IOException {
+        if (mBatchRecords > 0 && nowNs - mBatchStartNs >= mMaxDelayNs) {
+            commit();
+        } else if (mDurability == DURABILITY_PERIODIC && mPosition > mSyncedPosition
+                && nowNs - mLastSyncNs >= mSyncIntervalNs) {
+            sync();
+        }
+    }
+
+    /**
+     * Writes the current batch, then syncs as the durability policy requires.
+     */
+    public synchronized void commit() throws IOException {
+        if (mBatchRecords > 0) {
+            final long start = Platform.clock().elapsedRealtimeNanos();
+            mBatch.flip();
+            mPayloadBytes += mBatch.remaining();
+            while (mBatch.hasRemaining()) {
+                mPosition += mChannel.write(mBatch);
+            }
+            mBatch.clear();
+            mBatchRecords = 0;
+            mCommitLatency.record(Platform.clock().elapsedRealtimeNanos() - start);
+        }
+
+        final long now = Platform.clock().elapsedRealtimeNanos();
+        if (mDurability == DURABILITY_BATCH
+                || (mDurability == DURABILITY_PERIODIC && now - mLastSyncNs >= mSyncIntervalNs)) {
+            sync();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        try {
+            commit();
+            sync();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecords;
+    }
+
+    /**
+     * @return Records appended but not yet forced to flash.
+     */
+    public synchronized long getRecordsAtRisk() {
+        return mUnsyncedRecords;
+    }
+
+    /**
+     * @return Estimated bytes programmed to flash per byte of payload.
+     */
+    public synchronized double getWriteAmplification() {
+        return mPayloadBytes == 0 ? 0 : (double) mFlashBytes / mPayloadBytes;
+    }
+
+    public LatencyStats getCommitLatency() {
+        return mCommitLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: records=%d write amplification=%.2f at risk=%d (max %d), %s, %s",
+                durabilityName(mDurability), mRecords, getWriteAmplification(),
+                mUnsyncedRecords, mMaxUnsyncedRecords, mCommitLatency, mSyncLatency);
+    }
+
+    private void sync() throws IOException {
+        if (mPosition == mSyncedPosition) {
+            return;
+        }
+        final long start = Platform.clock().elapsedRealtimeNanos();
+        mChannel.force(false);
+        mLastSyncNs = Platform.clock().elapsedRealtimeNanos();
+        mSyncLatency.record(mLastSyncNs - start);
+
+        final long firstPage = mSyncedPosition / FLASH_PAGE;
+        final long lastPage = (mPosition - 1) / FLASH_PAGE;
+        mFlashBytes += (lastPage - firstPage + 1) * FLASH_PAGE;
+        mSyncedPosition = mPosition;
+        mUnsyncedRecords = 0;
+    }
+}
@@ -0,0 +1,726 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Staged ingest of RX frames on dedicated worker threads:
+ *
+ * <ol>
+ *     <li>decode - check the frame's {@link FrameCrc} and parse it into per-channel columns
+ *         with the {@link TelemetryDecoder} compiled for its layout</li>
+ *     <li>estimate - map device time onto the phone clock via {@link ClockSync} and track
+ *         the flight phase, reporting changes to {@link Sink#phaseChanged(int, int)}</li>
+ *     <li>persist - hand the sample to {@link Sink#persist(Sample)}, or with resampling on,
+ *         feed it to a {@link Resampler} whose grid goes to {@link Sink#persistGrid}.
+ *         Replayed samples are never persisted or checkpointed.</li>
+ *     <li>publish - run the per-channel {@link StreamFilter}s, replace the
+ *         {@link TelemetrySnapshot} the UI reads and notify
+ *         {@link Sink#publish(Sample, TelemetrySnapshot)}</li>
+ * </ol>
+ *
+ * Samples come from a fixed pool and move between stages through bounded queues, so the GATT
+ * callback thread only copies the frame and never waits on storage or the UI.  When the pool
+ * is exhausted the newest frame is dropped.  Frames that are dropped, corrupt or malformed
+ * never reach the data stream; they are counted in {@link #getLoss()}.
+ *
+ * With a {@link SessionCheckpoint} set, the estimate stage saves the detector and clock state
+ * about once per {@link #CHECKPOINT_INTERVAL_NS} and marks the sample; the publish stage adds
+ * the filter state when that sample reaches it and commits.  Each stage saves only what it
+ * owns, so the checkpoint never takes a lock on the sample path.
+ */
+public class IngestPipeline {
+    private final static String TAG = IngestPipeline.class.getSimpleName();
+
+    public static final int CAPACITY = 256;
+    public static final long PERSIST_IDLE_NS = FlightLog.BATCH_DELAY_NS;
+    // Samples further apart than this many intervals at the current rate are a gap in the grid.
+    private static final int RESAMPLE_GAP_INTERVALS = 3;
+    public static final long CHECKPOINT_INTERVAL_NS = 1000000000L;
+    // Resets that may be on their way down the stages at once.
+    private static final int MAX_RESETS = 4;
+    // How long shutdown() waits for the stages to work through what was submitted.
+    private static final long SHUTDOWN_WAIT_MS = 1000;
+    // How long a replayed frame waits for a free sample before its source checks for cancel.
+    public static final long REPLAY_WAIT_MS = 100;
+
+    /**
+     * A pooled, mutable sample travelling through the pipeline.  Only the stage currently
+     * holding it may touch it.
+     */
+    public static final class Sample {
+        // This sample's row in the pipeline's channel columns.
+        final int row;
+        final double[][] columns;
+
+        public final byte[] raw = new byte[CommandEncoder.MAX_FRAME_LENGTH];
+        public int rawLength;
+        public long rxTimeNs;
+        public long sequence;
+        // Submitted by submitReplayed() rather than received from the altimeter.
+        public boolean replayed;
+
+        public boolean valid;
+        public float value;
+        public boolean hasDeviceTime;
+        public long deviceMicros;
+        public long deviceTimeNs;
+        public long sampleTimeNs;
+        public int phase;
+
+        long stageEnterNs;
+        // Carries checkpoint state from the estimate stage to the publish stage.
+        boolean checkpoint;
+        // Set only on reset markers, which carry no frame.
+        boolean reset;
+        // Run by the persist stage when the reset marker reaches it.
+        Runnable onPersisted;
+        // Each stage stops once it has passed this reset marker on.
+        boolean stop;
+
+        Sample(int row, double[][] columns) {
+            this.row = row;
+            this.columns = columns;
+        }
+
+        /**
+         * @return The decoded value of a {@code TelemetrySchema.CHANNEL_*}, or NaN if the frame
+         *         did not carry it.
+         */
+        public double channel(int channel) {
+            return columns[channel][row];
+        }
+    }
+
+    /**
+     * Receives samples from the persist and publish stages and phase changes from the
+     * estimate stage, each on its own worker thread.
+     */
+    public interface Sink {
+        void phaseChanged(int phase, int rateHz);
+        void persist(Sample sample) throws IOException;
+        // Called on the persist thread instead of persist() while resampling is on.
+        void persistGrid(long firstNs, long periodNs, float[] values, int count)
+                throws IOException;
+        // Called on the persist thread when no sample has arrived for PERSIST_IDLE_NS.
+        void persistIdle(long nowNs) throws IOException;
+        void publish(Sample sample, TelemetrySnapshot snapshot);
+    }
+
+    private final Sink mSink;
+    private final ClockSync mClockSync = new ClockSync();
+    private final LatencyStats mSampleLatency = new LatencyStats("Sample latency");
+    private final FlightPhaseDetector mPhaseDetector = new FlightPhaseDetector();
+    private final SampleRateController mRateController = new SampleRateController(
+            TelemetrySchema.TIMED_SAMPLE_FRAME_LENGTH + FrameCrc.LENGTH);
+    private final LossAccounting mLoss = new LossAccounting();
+    private final LatencyStats mEndToEnd = new LatencyStats("RX to publish");
+
+    private final BlockingQueue<Sample> mFree = new ArrayBlockingQueue<Sample>(CAPACITY);
+    // Decoded channels, indexed [channel][sample row].
+    private final double[][] mColumns = new double[TelemetrySchema.CHANNEL_COUNT][CAPACITY];
+    // Decoder for each RX payload length (frame less CRC); null where no layout fits.
+    private final TelemetryDecoder[] mDecoders =
+            new TelemetryDecoder[CommandEncoder.MAX_FRAME_LENGTH + 1];
+    private final Stage[] mStages;
+
+    private volatile TelemetrySnapshot mLatest;
+    // Requested by setResampling(); the persist stage switches over between samples.
+    private volatile Resampler mResampler;
+    // Per-channel filters run by the publish stage; replaced whole by setFilter().
+    private volatile StreamFilter[] mFilters = new StreamFilter[TelemetrySchema.CHANNEL_COUNT];
+    private long mSequence;
+    // Reset markers on their way down the stages.
+    private final AtomicInteger mResets = new AtomicInteger();
+
+    private volatile SessionCheckpoint mCheckpoint;
+    // Filled by the estimate stage, completed and committed by the publish stage.
+    private final ByteBuffer mCheckpointState = ByteBuffer.allocate(SessionCheckpoint.MAX_STATE);
+    private volatile boolean mCheckpointPending;
+    // Only touched by the estimate stage.
+    private long mLastCheckpointNs;
+    // Samples up to this time were stored before a restart; see restore().
+    private volatile long mResumeAfterNs = Long.MIN_VALUE;
+
+    public IngestPipeline(Sink sink) {
+        mSink = sink;
+        for (int i = 0; i < CAPACITY; i++) {
+            mFree.add(new Sample(i, mColumns));
+        }
+        // Longer frames than a layout expects decode with the longest layout that fits.
+        for (TelemetrySchema schema : new TelemetrySchema[] {
+                TelemetrySchema.PRESSURE, TelemetrySchema.TIMED, TelemetrySchema.SENSORS }) {
+            final TelemetryDecoder decoder = schema.compile();
+            for (int length = decoder.getFrameLength(); length < mDecoders.length; length++) {
+                mDecoders[length] = decoder;
+            }
+        }
+
+        final Stage publish = new Stage("publish", null) {
+            @Override
+            void onReset(Sample marker) {
+                for (StreamFilter filter : mFilters) {
+                    if (filter != null) {
+                        filter.reset();
+                    }
+                }
+                mResets.decrementAndGet();
+            }
+
+            @Override
+            boolean process(Sample sample) {
+                final long now = Platform.clock().elapsedRealtimeNanos();
+                final double[] channels = new double[TelemetrySchema.CHANNEL_COUNT];
+                final double[] filtered = new double[TelemetrySchema.CHANNEL_COUNT];
+                final StreamFilter[] filters = mFilters;
+                for (int channel = 0; channel < channels.length; channel++) {
+                    channels[channel] = sample.channel(channel);
+                    final StreamFilter filter = filters[channel];
+                    filtered[channel] = filter == null ? channels[channel]
+                            : filter.process((float) channels[channel]);
+                }
+                final TelemetrySnapshot snapshot = new TelemetrySnapshot(sample.sequence,
+                        Arrays.copyOf(sample.raw, sample.rawLength), sample.value, channels,
+                        filtered, sample.sampleTimeNs, sample.rxTimeNs, now);
+                mLatest = snapshot;
+                if (sample.checkpoint) {
+                    sample.checkpoint = false;
+                    commitCheckpoint(sample, filters);
+                }
+                if (!sample.replayed) {
+                    // Replayed receive times are virtual, so there is no link to measure.
+                    mEndToEnd.record(now - sample.rxTimeNs);
+                }
+                mSink.publish(sample, snapshot);
+                return true;
+            }
+        };
+        final Stage persist = new Stage("persist", publish) {
+            private Resampler mActive;
+
+            @Override
+            void onReset(Sample marker) {
+                // The stream has ended: hand over the grid points still held back.
+                if (mActive != null) {
+                    try {
+                        mActive.flush();
+                    } catch (IOException e) {
+                        Platform.log().e(TAG, "Unable to persist held grid points", e);
+                    }
+                }
+                if (marker.onPersisted != null) {
+                    marker.onPersisted.run();
+                }
+            }
+
+            @Override
+            boolean process(Sample sample) {
+                if (sample.replayed) {
+                    // Replays come from a log that is already stored.
+                    return true;
+                }
+                try {
+                    if (mActive != mResampler) {
+                        // Grid points still held back belong to the old grid.
+                        if (mActive != null) {
+                            mActive.flush();
+                        }
+                        mActive = mResampler;
+                    }
+                    if (mActive == null) {
+                        mSink.persist(sample);
+                    } else {
+                        mActive.setMaxGapNs(RESAMPLE_GAP_INTERVALS * 1000000000L
+                                / SampleRateController.rateFor(sample.phase));
+                        mActive.add(sample.sampleTimeNs, sample.value);
+                    }
+                } catch (IOException e) {
+                    Platform.log().e(TAG, "Unable to persist sample " + sample.sequence, e);
+                }
+                return true;
+            }
+
+            @Override
+            long idleTimeoutNs() {
+                return PERSIST_IDLE_NS;
+            }
+
+            @Override
+            void idle() {
+                try {
+                    mSink.persistIdle(Platform.clock().elapsedRealtimeNanos());
+                } catch (IOException e) {
+                    Platform.log().e(TAG, "Unable to commit samples", e);
+                }
+            }
+        };
+        final Stage estimate = new Stage("estimate", persist) {
+            @Override
+            void onReset(Sample marker) {
+                mResumeAfterNs = Long.MIN_VALUE;
+                mClockSync.reset();
+                mLoss.resetClock();
+                mPhaseDetector.reset();
+                mRateController.reset();
+            }
+
+            @Override
+            boolean process(Sample sample) {
+                if (sample.hasDeviceTime) {
+                    sample.deviceTimeNs = mClockSync.unwrapMicros(sample.deviceMicros);
+                    if (!sample.replayed) {
+                        mLoss.onDeviceTime(sample.deviceTimeNs);
+                    }
+                    mClockSync.update(sample.deviceTimeNs, sample.rxTimeNs);
+                    sample.sampleTimeNs = mClockSync.toPhoneTime(sample.deviceTimeNs);
+                    mSampleLatency.record(sample.rxTimeNs - sample.sampleTimeNs);
+                } else {
+                    sample.sampleTimeNs = sample.rxTimeNs;
+                }
+                if (sample.sampleTimeNs <= mResumeAfterNs) {
+                    // Already in the log from before the restart.
+                    return false;
+                }
+
+                mRateController.onSample(sample.sampleTimeNs);
+                if (mPhaseDetector.update(sample.sampleTimeNs, sample.value)) {
+                    final int phase = mPhaseDetector.getPhase();
+                    mSink.phaseChanged(phase,
+                            mRateController.onPhaseChanged(phase, sample.sampleTimeNs));
+                }
+                sample.phase = mPhaseDetector.getPhase();
+                saveCheckpoint(sample);
+                return true;
+            }
+        };
+        final Stage decode = new Stage("decode", estimate) {
+            @Override
+            boolean process(Sample sample) {
+                if (!FrameCrc.verify(sample.raw, sample.rawLength)) {
+                    mLoss.onCorrupt();
+                    return false;
+                }
+                decode(sample, mDecoders[sample.rawLength - FrameCrc.LENGTH]);
+                if (sample.valid) {
+                    mLoss.onAccepted();
+                } else {
+                    mLoss.onMalformed();
+                }
+                return sample.valid;
+            }
+        };
+        mStages = new Stage[] { decode, estimate, persist, publish };
+    }
+
+    public void start() {
+        for (Stage stage : mStages) {
+            stage.start();
+        }
+    }
+
+    /**
+     * Stops the stages once they have worked through every sample already submitted, waiting
+     * up to {@link #SHUTDOWN_WAIT_MS} for that; stages still busy then are interrupted.  When
+     * it returns, nothing more reaches the sink, so the log can be closed.
+     */
+    public void shutdown() {
+        final Sample marker = new Sample(0, mColumns);
+        marker.reset = true;
+        marker.stop = true;
+        mStages[0].enqueue(marker);
+        final long deadline = elapsedRealtime() + SHUTDOWN_WAIT_MS;
+        try {
+            for (Stage stage : mStages) {
+                stage.join(Math.max(1, deadline - elapsedRealtime()));
+                if (stage.isAlive()) {
+                    Platform.log().w(TAG, stage.getName() + " still busy after "
+                            + SHUTDOWN_WAIT_MS + " ms; interrupting", null);
+                    stage.interrupt();
+                    stage.join(SHUTDOWN_WAIT_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies an RX frame into the pipeline.  Called on the GATT callback thread; never blocks.
+     *
+     * @return false if the pipeline is full and the frame was dropped.
+     */
+    public boolean submit(byte[] rx, long rxTimeNs) {
+        mLoss.onReceived();
+        final Sample sample = mFree.poll();
+        if (sample == null) {
+            mLoss.onOverrun();
+            return false;
+        }
+        enqueue(sample, rx, rxTimeNs, false);
+        return true;
+    }
+
+    /**
+     * As {@link #submit(byte[], long)}, for frames replayed from a stored log: they are
+     * estimated and published like live frames but never persisted or checkpointed.  Waits up
+     * to {@link #REPLAY_WAIT_MS} for room rather than dropping, and counts nothing towards
+     * link loss, since a replay can be retried without losing anything.
+     *
+     * @return false if the pipeline was still full after waiting.
+     */
+    public boolean submitReplayed(byte[] rx, long rxTimeNs) throws InterruptedException {
+        final Sample sample = mFree.poll(REPLAY_WAIT_MS, TimeUnit.MILLISECONDS);
+        if (sample == null) {
+            return false;
+        }
+        enqueue(sample, rx, rxTimeNs, true);
+        return true;
+    }
+
+    private void enqueue(Sample sample, byte[] rx, long rxTimeNs, boolean replayed) {
+        final int length = Math.min(rx.length, sample.raw.length);
+        System.arraycopy(rx, 0, sample.raw, 0, length);
+        sample.rawLength = length;
+        sample.rxTimeNs = rxTimeNs;
+        sample.replayed = replayed;
+        sample.checkpoint = false;
+        synchronized (this) {
+            sample.sequence = mSequence++;
+        }
+        mStages[0].enqueue(sample);
+    }
+
+    /**
+     * Stores samples on a uniform grid instead of as they arrive, or as they arrive again.
+     * Does nothing if that is already how they are stored, so the grid carries on unbroken.
+     *
+     * @param periodNs Grid period, or 0 to stop resampling.
+     * @param interpolation {@code Resampler.INTERPOLATION_LINEAR} or {@code _CUBIC}.
+     */
+    public synchronized void setResampling(long periodNs, int interpolation) {
+        final Resampler current = mResampler;
+        if (current == null ? periodNs <= 0 : (current.getPeriodNs() == periodNs
+                && current.getInterpolation() == interpolation)) {
+            return;
+        }
+        mResampler = periodNs <= 0 ? null : new Resampler(periodNs, interpolation,
+                RESAMPLE_GAP_INTERVALS * periodNs, new Resampler.Output() {
+                    @Override
+                    public void onGrid(long firstNs, long periodNs, float[] values, int count)
+                            throws IOException {
+                        mSink.persistGrid(firstNs, periodNs, values, count);
+                    }
+                });
+    }
+
+    /**
+     * Filters {@code channel} for {@link TelemetrySnapshot#filtered}, or stops filtering it if
+     * {@code filter} is null.  The pipeline owns the filter from then on; it runs on the
+     * publish thread and never touches stored samples.
+     */
+    public synchronized void setFilter(int channel, StreamFilter filter) {
+        final StreamFilter[] filters = mFilters.clone();
+        filters[channel] = filter;
+        mFilters = filters;
+    }
+
+    /**
+     * Checkpoints the session to {@code checkpoint} from now on, or stops if it is null.
+     */
+    public void setCheckpoint(SessionCheckpoint checkpoint) {
+        mCheckpoint = checkpoint;
+    }
+
+    /**
+     * Picks up the session {@code checkpoint} was taken from after the process died: sequence
+     * numbers carry on, the phase detector, clock and filters get their saved state back, and
+     * samples up to {@code resumeAfterNs} are dropped as already stored.  Call before any
+     * sample is submitted.
+     */
+    public synchronized void restore(SessionCheckpoint checkpoint, long resumeAfterNs) {
+        mSequence = checkpoint.getSequence() + 1;
+        mResumeAfterNs = resumeAfterNs;
+        final ByteBuffer state = checkpoint.getState();
+        if (!state.hasRemaining()) {
+            return;
+        }
+        try {
+            mPhaseDetector.restoreState(state);
+            mClockSync.restoreState(state);
+        } catch (BufferUnderflowException e) {
+            Platform.log().w(TAG, "Checkpoint estimator state is truncated; starting afresh",
+                    null);
+            mPhaseDetector.reset();
+            mClockSync.reset();
+            return;
+        }
+        while (state.remaining() >= 3) {
+            final int channel = state.get();
+            final int length = state.getShort();
+            final ByteBuffer slice = state.slice();
+            slice.limit(Math.min(length, slice.limit()));
+            state.position(state.position() + slice.limit());
+            final StreamFilter filter = channel >= 0 && channel < mFilters.length
+                    ? mFilters[channel] : null;
+            if (filter == null) {
+                continue;
+            }
+            try {
+                filter.restoreState(slice);
+                if (!slice.hasRemaining()) {
+                    continue;
+                }
+            } catch (BufferUnderflowException e) {
+                // Fall through.
+            }
+            // Saved by a differently built filter.
+            filter.reset();
+        }
+    }
+
+    public StreamFilter getFilter(int channel) {
+        return mFilters[channel];
+    }
+
+    public Resampler getResampler() {
+        return mResampler;
+    }
+
+    /**
+     * Resets per-connection estimator and filter state behind the samples already submitted,
+     * without waiting for them.  A marker follows them down the stages and each stage resets
+     * what it owns as the marker passes; the persist stage first hands over any resampled grid
+     * points held back, then runs {@code onPersisted} on its own thread, e.g. to close the log
+     * once nothing more can reach it.
+     *
+     * @param onPersisted Run after the last sample before the reset is persisted, or null.
+     * @return false if too many resets were already on their way and this one was dropped.
+     */
+    public boolean reset(Runnable onPersisted) {
+        if (mResets.incrementAndGet() > MAX_RESETS) {
+            mResets.decrementAndGet();
+            Platform.log().w(TAG, "Too many resets in flight; dropped", null);
+            return false;
+        }
+        final Sample marker = new Sample(0, mColumns);
+        marker.reset = true;
+        marker.onPersisted = onPersisted;
+        mStages[0].enqueue(marker);
+        return true;
+    }
+
+    public TelemetrySnapshot getLatest() {
+        return mLatest;
+    }
+
+    public ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    public FlightPhaseDetector getPhaseDetector() {
+        return mPhaseDetector;
+    }
+
+    public SampleRateController getRateController() {
+        return mRateController;
+    }
+
+    public LossAccounting getLoss() {
+        return mLoss;
+    }
+
+    public LatencyStats getSampleLatency() {
+        return mSampleLatency;
+    }
+
+    public LatencyStats getEndToEndLatency() {
+        return mEndToEnd;
+    }
+
+    public LatencyStats getStageLatency(int stage) {
+        return mStages[stage].mLatency;
+    }
+
+    public int getStageCount() {
+        return mStages.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(mLoss);
+        for (Stage stage : mStages) {
+            sb.append("\n  ").append(stage.mLatency);
+        }
+        sb.append("\n  ").append(mEndToEnd);
+        return sb.toString();
+    }
+
+    // Estimate stage: starts a checkpoint on this sample if one is due.
+    private void saveCheckpoint(Sample sample) {
+        if (mCheckpoint == null || mCheckpointPending || sample.replayed) {
+            return;
+        }
+        final long now = Platform.clock().elapsedRealtimeNanos();
+        if (now - mLastCheckpointNs < CHECKPOINT_INTERVAL_NS) {
+            return;
+        }
+        mLastCheckpointNs = now;
+        mCheckpointState.clear();
+        mPhaseDetector.saveState(mCheckpointState);
+        mClockSync.saveState(mCheckpointState);
+        mCheckpointPending = true;
+        sample.checkpoint = true;
+    }
+
+    // Publish stage: adds the filter state and commits the checkpoint started on sample.
+    private void commitCheckpoint(Sample sample, StreamFilter[] filters) {
+        final ByteBuffer state = mCheckpointState;
+        try {
+            for (int channel = 0; channel < filters.length; channel++) {
+                if (filters[channel] == null) {
+                    continue;
+                }
+                state.put((byte) channel);
+                final int lengthAt = state.position();
+                state.putShort((short) 0);
+                filters[channel].saveState(state);
+                state.putShort(lengthAt, (short) (state.position() - lengthAt - 2));
+            }
+            state.flip();
+            final SessionCheckpoint checkpoint = mCheckpoint;
+            if (checkpoint != null) {
+                checkpoint.commit(sample.sequence, sample.sampleTimeNs, sample.phase, state);
+            }
+        } catch (BufferOverflowException e) {
+            Platform.log().w(TAG, "Filter state does not fit a checkpoint; skipped", null);
+        } finally {
+            mCheckpointPending = false;
+        }
+    }
+
+    private static long elapsedRealtime() {
+        return Platform.clock().elapsedRealtimeNanos() / 1000000;
+    }
+
+    private static void decode(Sample sample, TelemetryDecoder decoder) {
+        sample.valid = decoder != null
+                && decoder.decode(sample.raw, sample.rawLength, sample.columns, sample.row);
+        if (!sample.valid) {
+            return;
+        }
+        sample.value = (float) sample.channel(TelemetrySchema.CHANNEL_PRESSURE);
+        final double deviceMicros = sample.channel(TelemetrySchema.CHANNEL_DEVICE_MICROS);
+        sample.hasDeviceTime = !Double.isNaN(deviceMicros);
+        if (sample.hasDeviceTime) {
+            // The device clock is unwrapped in the estimate stage's ClockSync.
+            sample.deviceMicros = (long) deviceMicros;
+        }
+    }
+
+    private abstract class Stage extends Thread {
+        // Room for the whole pool and every reset marker.
+        final BlockingQueue<Sample> mQueue =
+                new ArrayBlockingQueue<Sample>(CAPACITY + MAX_RESETS);
+        final Stage mNext;
+        final LatencyStats mLatency;
+
+        Stage(String name, Stage next) {
+            super("Ingest-" + name);
+            mNext = next;
+            mLatency = new LatencyStats(name);
+        }
+
+        /**
+         * @return true to pass the sample on, false to return it to the pool.
+         */
+        abstract boolean process(Sample sample);
+
+        /**
+         * @return How long to wait for a sample before calling {@link #idle()}, or 0 to wait
+         *         indefinitely.
+         */
+        long idleTimeoutNs() {
+            return 0;
+        }
+
+        void idle() {
+        }
+
+        /**
+         * Called when a reset marker reaches this stage, after every sample ahead of it.
+         */
+        void onReset(Sample marker) {
+        }
+
+        void enqueue(Sample sample) {
+            sample.stageEnterNs = Platform.clock().elapsedRealtimeNanos();
+            // Never fails: the queue can hold the whole pool and every marker.
+            mQueue.offer(sample);
+        }
+
+        @Override
+        public void run() {
+            Platform.threads().setBackgroundPriority();
+            try {
+                final long idleTimeoutNs = idleTimeoutNs();
+                while (!isInterrupted()) {
+                    final Sample sample = idleTimeoutNs > 0
+                            ? mQueue.poll(idleTimeoutNs, TimeUnit.NANOSECONDS) : mQueue.take();
+                    if (sample == null) {
+                        try {
+                            idle();
+                        } catch (RuntimeException e) {
+                            Platform.log().e(TAG, getName() + " failed while idle", e);
+                        }
+                        continue;
+                    }
+                    if (sample.reset) {
+                        try {
+                            onReset(sample);
+                        } catch (RuntimeException e) {
+                            Platform.log().e(TAG, getName() + " failed to reset", e);
+                        }
+                        if (mNext != null) {
+                            mNext.enqueue(sample);
+                        }
+                        if (sample.stop) {
+                            return;
+                        }
+                        continue;
+                    }
+                    boolean forward;
+                    try {
+                        forward = process(sample);
+                    } catch (RuntimeException e) {
+                        // A faulty sink, filter or subscriber costs this sample, never the
+                        // stage: a dead stage would hold on to the pool until ingest stalls.
+                        Platform.log().e(TAG, getName() + " failed on sample "
+                                + sample.sequence, e);
+                        forward = false;
+                        if (sample.checkpoint) {
+                            // The checkpoint started on it will never be committed.
+                            sample.checkpoint = false;
+                            mCheckpointPending = false;
+                        }
+                    }
+                    mLatency.record(Platform.clock().elapsedRealtimeNanos() - sample.stageEnterNs);
+                    if (forward && mNext != null) {
+                        mNext.enqueue(sample);
+                    } else {
+                        mFree.offer(sample);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Shutting down.
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Soaks the ingest and storage path without hardware: a {@link SyntheticFlight} is paced into
+ * an {@link IngestPipeline} the way the GATT callback feeds it, recorded by a
+ * {@link FlightRecorder}, and the stored flight is checked against the simulation's ground
+ * truth.  Runs on any JVM:
+ *
+ * <pre>
+ * java com.example.android.bluetoothlegatt.IngestSoak RATE_HZ SECONDS [SPEED] [SEED] [DIR]
+ * </pre>
+ *
+ * With a speed above 1 the {@link Platform} clock runs that much faster than real time, so
+ * a long flight soaks in minutes; frames still arrive at the rate the clock says, and every
+ * time reported is on that clock.  Overruns show where the pipeline can no longer keep up.
+ */
+public final class IngestSoak {
+
+    // From sampling to the GATT callback, roughly one connection interval.
+    private static final long LINK_DELAY_NS = 7500000L;
+
+    private IngestSoak() {
+    }
+
+    /**
+     * Runs one flight through the pipeline in real time on the {@link Platform} clock and
+     * records it to a new log in {@code directory}.
+     *
+     * @return A report: the simulated flight, the pipeline's loss and latencies, the storage
+     *         stats and the stored flight's summary.
+     */
+    public static String run(File directory, int rateHz, double seconds, long seed)
+            throws IOException, InterruptedException {
+        final SyntheticFlight flight = new SyntheticFlight(rateHz, seconds, seed);
+        final FlightRecorder recorder = new FlightRecorder(directory,
+                GroupCommitWriter.DURABILITY_PERIODIC);
+        final AtomicLong published = new AtomicLong();
+        final StringBuilder phases = new StringBuilder();
+        final long epochNs = Platform.clock().elapsedRealtimeNanos();
+
+        final IngestPipeline pipeline = new IngestPipeline(new IngestPipeline.Sink() {
+            @Override
+            public void phaseChanged(int phase, int rateHz) {
+                synchronized (phases) {
+                    phases.append(String.format(" %s@%.1fs", FlightPhaseDetector.phaseName(phase),
+                            (Platform.clock().elapsedRealtimeNanos() - epochNs) / 1e9));
+                }
+            }
+
+            @Override
+            public void persist(IngestPipeline.Sample sample) throws IOException {
+                recorder.onSample(sample.sampleTimeNs, sample.value);
+            }
+
+            @Override
+            public void persistGrid(long firstNs, long periodNs, float[] values, int count)
+                    throws IOException {
+                for (int i = 0; i < count; i++) {
+                    recorder.onSample(firstNs + i * periodNs, values[i]);
+                }
+            }
+
+            @Override
+            public void persistIdle(long nowNs) throws IOException {
+                recorder.tick(nowNs);
+            }
+
+            @Override
+            public void publish(IngestPipeline.Sample sample, TelemetrySnapshot snapshot) {
+                published.incrementAndGet();
+            }
+        });
+        pipeline.start();
+
+        final long start = System.nanoTime();
+        final long frames;
+        try {
+            frames = flight.run(new FrameSink() {
+                @Override
+                public boolean submit(byte[] frame, long rxTimeNs) {
+                    // Hold each frame until the clock reaches its arrival, like a live link.
+                    long waitNs;
+                    while ((waitNs = rxTimeNs - Platform.clock().elapsedRealtimeNanos()) > 0) {
+                        LockSupport.parkNanos(Math.min(waitNs, 1000000L));
+                    }
+                    // A full pipeline drops the frame and counts it, as it does for the link.
+                    pipeline.submit(frame, rxTimeNs);
+                    return true;
+                }
+            }, epochNs, LINK_DELAY_NS);
+        } finally {
+            pipeline.shutdown();
+            recorder.close();
+        }
+        final double wallS = (System.nanoTime() - start) / 1e9;
+
+        final File log = recorder.getLog().getFile();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(flight).append(String.format(", %d frames in %.1f s wall", frames, wallS));
+        synchronized (phases) {
+            sb.append("\nPhases:").append(phases);
+        }
+        sb.append("\nPublished ").append(published.get()).append(", stored ")
+                .append(recorder.getLog().getCount());
+        sb.append('\n').append(pipeline);
+        sb.append('\n').append(recorder.getLog().getWriter());
+        sb.append('\n').append(FlightSummary.compute(log));
+        sb.append(String.format(" (simulated apogee %.1fm)", flight.getApogee()));
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: IngestSoak RATE_HZ SECONDS [SPEED] [SEED] [DIR]");
+            System.exit(2);
+        }
+        final double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        final long origin = System.nanoTime();
+        Platform.useJvm(new Platform.Clock() {
+            @Override
+            public long elapsedRealtimeNanos() {
+                return (long) ((System.nanoTime() - origin) * speed);
+            }
+        });
+        final File directory = args.length > 4 ? new File(args[4])
+                : new File(System.getProperty("java.io.tmpdir"), "soak");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        System.out.println(run(directory, Integer.parseInt(args[0]),
+                Double.parseDouble(args[1]), args.length > 3 ? Long.parseLong(args[3]) : 1));
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Running latency statistics (count, min, max, mean and last value) in nanoseconds.
+ * Recording is allocation-free so it can be used from BLE callback and worker threads.
+ */
+public class LatencyStats {
+
+    private final String mName;
+
+    private long mCount;
+    private long mTotalNs;
+    private long mMinNs = Long.MAX_VALUE;
+    private long mMaxNs;
+    private long mLastNs;
+
+    public LatencyStats(String name) {
+        mName = name;
+    }
+
+    public synchronized void record(long latencyNs) {
+        mCount++;
+        mTotalNs += latencyNs;
+        mLastNs = latencyNs;
+        if (latencyNs < mMinNs) {
+            mMinNs = latencyNs;
+        }
+        if (latencyNs > mMaxNs) {
+            mMaxNs = latencyNs;
+        }
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mTotalNs = 0;
+        mMinNs = Long.MAX_VALUE;
+        mMaxNs = 0;
+        mLastNs = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMeanNs() {
+        return mCount == 0 ? 0 : mTotalNs / mCount;
+    }
+
+    public synchronized long getMinNs() {
+        return mCount == 0 ? 0 : mMinNs;
+    }
+
+    public synchronized long getMaxNs() {
+        return mMaxNs;
+    }
+
+    public synchronized long getLastNs() {
+        return mLastNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: n=%d mean=%.3fms min=%.3fms max=%.3fms last=%.3fms",
+                mName, mCount, getMeanNs() / 1e6, getMinNs() / 1e6, mMaxNs / 1e6, mLastNs / 1e6);
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Counts RX frames that never made it into the data stream, by cause:
+ *
+ * <ul>
+ *     <li>corrupt - failed the {@link FrameCrc} check</li>
+ *     <li>malformed - passed the CRC but matched no frame layout</li>
+ *     <li>overrun - arrived while the ingest pipeline was full</li>
+ *     <li>missing - never arrived, estimated from jumps in the device sample clock</li>
+ * </ul>
+ *
+ * The sample interval jumps are measured against is the median of the recent device clock
+ * steps, so it follows whatever rate the altimeter actually streams at rather than the rate
+ * it was asked for.  A jump only counts once the step after it is back to that interval;
+ * otherwise the altimeter has slowed down, and the jump was its first sample at the new rate.
+ */
+public class LossAccounting {
+
+    // A device clock jump longer than this many sample intervals counts as missed samples.
+    private static final double GAP_INTERVALS = 1.5;
+    // Recent device clock steps the interval is the median of, and how many it needs.
+    private static final int INTERVAL_WINDOW = 15;
+    private static final int MIN_STEPS = 4;
+
+    private long mReceived;
+    private long mAccepted;
+    private long mCorrupt;
+    private long mMalformed;
+    private long mOverrun;
+    private long mMissing;
+    private long mLastDeviceNs = -1;
+    private final RunningMedian mSteps = new RunningMedian(INTERVAL_WINDOW);
+    // A jump waiting for the next step to tell loss from a slower rate, or 0.
+    private long mPendingGapNs;
+    private long mPendingIntervalNs;
+
+    public synchronized void onReceived() {
+        mReceived++;
+    }
+
+    public synchronized void onAccepted() {
+        mAccepted++;
+    }
+
+    public synchronized void onCorrupt() {
+        mCorrupt++;
+    }
+
+    public synchronized void onMalformed() {
+        mMalformed++;
+    }
+
+    public synchronized void onOverrun() {
+        mOverrun++;
+    }
+
+    /**
+     * Checks the device sample clock for samples that should have arrived in between.  Only
+     * for samples received live; replayed ones say nothing about the link.
+     */
+    public synchronized void onDeviceTime(long deviceTimeNs) {
+        final long stepNs = mLastDeviceNs < 0 ? 0 : deviceTimeNs - mLastDeviceNs;
+        mLastDeviceNs = deviceTimeNs;
+        if (stepNs <= 0) {
+            return;
+        }
+        final long intervalNs = mSteps.size() < MIN_STEPS ? 0 : (long) mSteps.median();
+        if (mPendingGapNs > 0) {
+            if (stepNs <= GAP_INTERVALS * mPendingIntervalNs) {
+                mMissing += Math.round((double) mPendingGapNs / mPendingIntervalNs) - 1;
+            }
+            mPendingGapNs = 0;
+        }
+        if (intervalNs > 0 && stepNs > GAP_INTERVALS * intervalNs) {
+            mPendingGapNs = stepNs;
+            mPendingIntervalNs = intervalNs;
+        }
+        mSteps.add(stepNs);
+    }
+
+    /**
+     * Forgets the device clock, e.g. after the link or the altimeter restarts.
+     */
+    public synchronized void resetClock() {
+        mLastDeviceNs = -1;
+        mSteps.reset();
+        mPendingGapNs = 0;
+    }
+
+    public synchronized long getCorrupt() {
+        return mCorrupt;
+    }
+
+    public synchronized long getMissing() {
+        return mMissing;
+    }
+
+    /**
+     * @return Fraction of expected samples that did not reach the data stream.
+     */
+    public synchronized double getLossRate() {
+        final long expected = mReceived + mMissing;
+        return expected == 0 ? 0 : (double) (expected - mAccepted) / expected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Frames: received=%d accepted=%d corrupt=%d malformed=%d "
+                        + "overrun=%d missing~%d, loss %.2f%%", mReceived, mAccepted, mCorrupt,
+                mMalformed, mOverrun, mMissing, getLossRate() * 100);
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * The few Android services the ingest and storage path needs: the elapsed realtime clock,
+ * thread priorities and logging.  Each sits behind a small interface, so {@link IngestPipeline},
+ * {@link FlightRecorder}, {@link FlightLog} and {@link GroupCommitWriter} also run on a plain
+ * JVM, as {@link IngestSoak} does after {@link #useJvm()}.  Android's are used until something
+ * else is installed, which has to happen before any of those classes is used.
+ */
+public final class Platform {
+
+    /**
+     * A monotonic clock on the same base as the receive times handed to the pipeline.
+     */
+    public interface Clock {
+        long elapsedRealtimeNanos();
+    }
+
+    public interface Threads {
+        /**
+         * Lowers the calling thread to background priority, below the UI and the GATT
+         * callbacks.
+         */
+        void setBackgroundPriority();
+    }
+
+    public interface Logger {
+        void i(String tag, String message);
+
+        /**
+         * @param tr The cause, or null.
+         */
+        void w(String tag, String message, Throwable tr);
+
+        /**
+         * @param tr The cause, or null.
+         */
+        void e(String tag, String message, Throwable tr);
+    }
+
+    private static final Clock JVM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final Threads JVM_THREADS = new Threads() {
+        @Override
+        public void setBackgroundPriority() {
+            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        }
+    };
+
+    private static final Logger JVM_LOGGER = new Logger() {
+        @Override
+        public void i(String tag, String message) {
+            print("I", tag, message, null);
+        }
+
+        @Override
+        public void w(String tag, String message, Throwable tr) {
+            print("W", tag, message, tr);
+        }
+
+        @Override
+        public void e(String tag, String message, Throwable tr) {
+            print("E", tag, message, tr);
+        }
+    };
+
+    private static volatile Clock sClock = AndroidPlatform.CLOCK;
+    private static volatile Threads sThreads = AndroidPlatform.THREADS;
+    private static volatile Logger sLogger = AndroidPlatform.LOGGER;
+
+    private Platform() {
+    }
+
+    public static Clock clock() {
+        return sClock;
+    }
+
+    public static Threads threads() {
+        return sThreads;
+    }
+
+    public static Logger log() {
+        return sLogger;
+    }
+
+    public static void install(Clock clock, Threads threads, Logger logger) {
+        sClock = clock;
+        sThreads = threads;
+        sLogger = logger;
+    }
+
+    /**
+     * Switches to {@code System.nanoTime()}, Java thread priorities and {@code System.err}.
+     */
+    public static void useJvm() {
+        useJvm(JVM_CLOCK);
+    }
+
+    /**
+     * As {@link #useJvm()}, with the caller's clock, e.g. one running faster than real time.
+     */
+    public static void useJvm(Clock clock) {
+        install(clock, JVM_THREADS, JVM_LOGGER);
+    }
+
+    private static void print(String level, String tag, String message, Throwable tr) {
+        synchronized (System.err) {
+            System.err.println(level + "/" + tag + ": " + message);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+    }
+}
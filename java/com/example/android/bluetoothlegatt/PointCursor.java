@@ -0,0 +1,67 @@
+package com.example.android.bluetoothlegatt;
+
+import com.jjoe64.graphview.series.DataPointInterface;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A reusable iterator over points held in primitive arrays, handed to GraphView in place of a
+ * list of {@code DataPoint}s.  The cursor is itself the point it returns, so a whole draw pass
+ * allocates nothing; callers must read each point before advancing.
+ */
+abstract class PointCursor implements Iterator<DataPointInterface>, DataPointInterface {
+
+    private int mNext;
+    private int mEnd;
+    private double mX;
+    private double mY;
+
+    /**
+     * Restarts the cursor over points {@code [first, end)}.
+     */
+    PointCursor reset(int first, int end) {
+        mNext = first;
+        mEnd = end;
+        return this;
+    }
+
+    abstract double x(int i);
+
+    abstract double y(int i);
+
+    @Override
+    public boolean hasNext() {
+        // Points without a value are gaps in the data; step over them.
+        while (mNext < mEnd && Double.isNaN(y(mNext))) {
+            mNext++;
+        }
+        return mNext < mEnd;
+    }
+
+    @Override
+    public DataPointInterface next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        mX = x(mNext);
+        mY = y(mNext);
+        mNext++;
+        return this;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public double getX() {
+        return mX;
+    }
+
+    @Override
+    public double getY() {
+        return mY;
+    }
+}
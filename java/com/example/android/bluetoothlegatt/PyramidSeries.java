@@ -0,0 +1,155 @@
+package com.example.android.bluetoothlegatt;
+
+import android.graphics.Canvas;
+import android.util.Log;
+
+import com.jjoe64.graphview.GraphView;
+import com.jjoe64.graphview.series.DataPointInterface;
+import com.jjoe64.graphview.series.LineGraphSeries;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Line series served from a {@link FlightPyramid}.  Every draw asks the pyramid for the
+ * visible range at about one bucket per pixel and plots each bucket's min and max, so zooming
+ * and panning cost O(screen width) regardless of flight length.  X values are seconds since
+ * the start of the flight.  Buckets are handed to GraphView through a reused
+ * {@link PointCursor}, so drawing allocates nothing per point.
+ *
+ * With a {@link FlightPager}, ranges too short for the pyramid's finest stored level to fill
+ * the screen are read from the log itself, down to individual samples.  Drawing never waits on
+ * the log: until the pager has the chunks in memory the pyramid is drawn, and the graph is
+ * redrawn once they arrive.
+ */
+public class PyramidSeries extends LineGraphSeries<DataPointInterface> {
+    private final static String TAG = PyramidSeries.class.getSimpleName();
+
+    private static final int DEFAULT_BUCKETS = 512;
+
+    private final FlightPyramid mPyramid;
+    private final FlightPager mPager;
+    private final long mOriginNs;
+    private final long mEndNs;
+
+    private int mMaxBuckets = DEFAULT_BUCKETS;
+    private volatile GraphView mGraphView;
+    private long[] mStart = new long[0];
+    private float[] mMin = new float[0];
+    private float[] mMax = new float[0];
+    private float[] mMean = new float[0];
+
+    // Point 2i is bucket i's min and point 2i + 1 its max.
+    private final PointCursor mBuckets = new PointCursor() {
+        @Override
+        double x(int i) {
+            return (mStart[i >> 1] - mOriginNs) / 1e9;
+        }
+
+        @Override
+        double y(int i) {
+            return (i & 1) == 0 ? mMin[i >> 1] : mMax[i >> 1];
+        }
+    };
+
+    public PyramidSeries(FlightPyramid pyramid) {
+        this(pyramid, null);
+    }
+
+    /**
+     * @param pager Source for detail finer than the pyramid stores, or null.
+     */
+    public PyramidSeries(FlightPyramid pyramid, FlightPager pager) {
+        mPyramid = pyramid;
+        mPager = pager;
+        mOriginNs = pyramid.getStartTime();
+        long endNs = pyramid.getEndTime();
+        if (pager != null) {
+            try {
+                endNs = pager.getEndTime();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read the end of the flight", e);
+            }
+        }
+        mEndNs = endNs;
+    }
+
+    // Runs on the pager's thread when chunks a draw wanted have been loaded.
+    private final Runnable mRedraw = new Runnable() {
+        @Override
+        public void run() {
+            final GraphView graphView = mGraphView;
+            if (graphView != null) {
+                graphView.postInvalidate();
+            }
+        }
+    };
+
+    @Override
+    public void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
+        mGraphView = graphView;
+        if (graphView.getWidth() > 0) {
+            mMaxBuckets = graphView.getWidth();
+        }
+        super.draw(graphView, canvas, isSecondScale);
+    }
+
+    @Override
+    public Iterator<DataPointInterface> getValues(double from, double until) {
+        ensureCapacity(mMaxBuckets);
+        final long fromNs = toNs(from);
+        final long untilNs = toNs(until);
+        int n = -1;
+        if (mPager != null && mPager.estimateSamples(fromNs, untilNs)
+                <= mMaxBuckets * mPyramid.getBucketSamples()) {
+            try {
+                n = mPager.queryCached(fromNs, untilNs, mMaxBuckets, mStart, mMin, mMax,
+                        mRedraw);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to page in samples, using the pyramid", e);
+            }
+        }
+        if (n < 0) {
+            n = mPyramid.query(fromNs, untilNs, mMaxBuckets, mStart, mMin, mMax, mMean);
+        }
+        return mBuckets.reset(0, 2 * n);
+    }
+
+    @Override
+    public double getLowestValueX() {
+        return 0;
+    }
+
+    @Override
+    public double getHighestValueX() {
+        return (mEndNs - mOriginNs) / 1e9;
+    }
+
+    @Override
+    public double getLowestValueY() {
+        return mPyramid.getMin();
+    }
+
+    @Override
+    public double getHighestValueY() {
+        return mPyramid.getMax();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mPyramid.getSampleCount() == 0;
+    }
+
+    private long toNs(double seconds) {
+        return mOriginNs + (long) (seconds * 1e9);
+    }
+
+    private void ensureCapacity(int buckets) {
+        if (mStart.length < buckets) {
+            mStart = new long[buckets];
+            mMin = new float[buckets];
+            mMax = new float[buckets];
+            mMean = new float[buckets];
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A set of half-open {@code [start, end)} ranges of longs, kept sorted, disjoint and with
+ * touching ranges merged.  Used to track which samples of a flight are already stored locally.
+ */
+public class RangeSet {
+
+    private static final int MAGIC = 0x524E4731; // "RNG1"
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] mStart = new long[INITIAL_CAPACITY];
+    private long[] mEnd = new long[INITIAL_CAPACITY];
+    private int mCount;
+
+    public synchronized void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        // Ranges [first, last) are the ones the new range overlaps or touches.
+        final int first = firstEndingAtOrAfter(start);
+        int last = first;
+        while (last < mCount && mStart[last] <= end) {
+            last++;
+        }
+        if (first < last) {
+            start = Math.min(start, mStart[first]);
+            end = Math.max(end, mEnd[last - 1]);
+        }
+        final int removed = last - first;
+        if (removed == 0 && mCount == mStart.length) {
+            mStart = Arrays.copyOf(mStart, mCount * 2);
+            mEnd = Arrays.copyOf(mEnd, mCount * 2);
+        }
+        final int tail = mCount - last;
+        final int shift = removed == 0 ? 1 : 1 - removed;
+        System.arraycopy(mStart, last, mStart, last + shift, tail);
+        System.arraycopy(mEnd, last, mEnd, last + shift, tail);
+        mStart[first] = start;
+        mEnd[first] = end;
+        mCount += shift;
+    }
+
+    /**
+     * @return true if every value in {@code [start, end)} is in the set.
+     */
+    public synchronized boolean contains(long start, long end) {
+        if (start >= end) {
+            return true;
+        }
+        final int i = firstEndingAtOrAfter(start + 1);
+        return i < mCount && mStart[i] <= start && mEnd[i] >= end;
+    }
+
+    /**
+     * @return The parts of {@code [start, end)} not in the set.
+     */
+    public synchronized RangeSet missing(long start, long end) {
+        final RangeSet gaps = new RangeSet();
+        long next = start;
+        for (int i = firstEndingAtOrAfter(start + 1); i < mCount && mStart[i] < end; i++) {
+            gaps.add(next, Math.min(mStart[i], end));
+            next = Math.max(next, mEnd[i]);
+        }
+        gaps.add(next, end);
+        return gaps;
+    }
+
+    /**
+     * @return The total length of the ranges in the set.
+     */
+    public synchronized long length() {
+        long total = 0;
+        for (int i = 0; i < mCount; i++) {
+            total += mEnd[i] - mStart[i];
+        }
+        return total;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized long getStart(int i) {
+        return mStart[i];
+    }
+
+    public synchronized long getEnd(int i) {
+        return mEnd[i];
+    }
+
+    public synchronized void save(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(mCount);
+            for (int i = 0; i < mCount; i++) {
+                out.writeLong(mStart[i]);
+                out.writeLong(mEnd[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return The set saved in {@code file}, or an empty set if there is none.
+     */
+    public static RangeSet load(File file) throws IOException {
+        final RangeSet set = new RangeSet();
+        if (!file.exists()) {
+            return set;
+        }
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a range set: " + file);
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                set.add(in.readLong(), in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+        return set;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < mCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('[').append(mStart[i]).append(", ").append(mEnd[i]).append(')');
+        }
+        return sb.append('}').toString();
+    }
+
+    // Index of the first range whose end is at or after value, or mCount.
+    private int firstEndingAtOrAfter(long value) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mEnd[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A stand-in ground station for {@link TelemetryRelay}: receives its batches over UDP, checks
+ * and decodes them, and counts samples, malformed batches and the samples missing between
+ * batches.  Runs on any JVM, so the relay can be tried out without the real ground station:
+ *
+ * <pre>
+ * java com.example.android.bluetoothlegatt.RelayGroundStation PORT
+ * </pre>
+ *
+ * then point the phone at it with {@code BluetoothLeService.EXTRA_RELAY_ENDPOINT}.
+ */
+public class RelayGroundStation {
+    private final static String TAG = RelayGroundStation.class.getSimpleName();
+
+    /**
+     * Receives decoded samples on the station's receive thread.
+     */
+    public interface Listener {
+        void onSample(long sequence, long sampleTimeNs, float value, int phase);
+    }
+
+    private final DatagramSocket mSocket;
+    private final int mPort;
+    private final Listener mListener;
+    private final Thread mReceiver;
+
+    private long mBatches;
+    private long mSamples;
+    private long mMalformed;
+    private long mMissing;
+    // Sequence the next batch should start with, or -1 before the first.
+    private long mNextSequence = -1;
+
+    /**
+     * @param port UDP port to listen on, or 0 for any free one; see {@link #getPort()}.
+     */
+    public RelayGroundStation(int port, Listener listener) throws SocketException {
+        mSocket = new DatagramSocket(new InetSocketAddress(port));
+        mPort = mSocket.getLocalPort();
+        mListener = listener;
+        mReceiver = new Thread("RelayGroundStation") {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        };
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    public void start() {
+        mReceiver.start();
+    }
+
+    public void close() {
+        mSocket.close();
+        try {
+            mReceiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    /**
+     * @return Samples skipped between batches, by sequence number.
+     */
+    public synchronized long getMissingCount() {
+        return mMissing;
+    }
+
+    public synchronized long getMalformedCount() {
+        return mMalformed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Ground station on port %d: %d samples in %d batches, missing %d, "
+                + "malformed %d", mPort, mSamples, mBatches, mMissing, mMalformed);
+    }
+
+    /**
+     * Decodes one relay batch, handing its samples to {@code listener} in order.
+     *
+     * @return The batch's first sequence number, or -1 if the batch is malformed, in which
+     *         case nothing was handed over.
+     */
+    public static long decode(byte[] data, int length, Listener listener) {
+        final ByteBuffer batch = ByteBuffer.wrap(data, 0, length).order(ByteOrder.BIG_ENDIAN);
+        if (length < TelemetryRelay.HEADER_SIZE || batch.get(0) != TelemetryRelay.MAGIC
+                || batch.get(1) != TelemetryRelay.VERSION) {
+            return -1;
+        }
+        final int count = batch.get(2) & 0xFF;
+        if (length != TelemetryRelay.HEADER_SIZE + count * TelemetryRelay.SAMPLE_SIZE) {
+            return -1;
+        }
+        final long firstSequence = batch.getInt(4) & 0xFFFFFFFFL;
+        final long baseTimeNs = batch.getLong(8);
+        batch.position(TelemetryRelay.HEADER_SIZE);
+        for (int i = 0; i < count; i++) {
+            final long offsetUs = batch.getInt() & 0xFFFFFFFFL;
+            final float value = batch.getFloat();
+            final int phase = batch.get() & 0xFF;
+            listener.onSample(firstSequence + i, baseTimeNs + offsetUs * 1000, value, phase);
+        }
+        return firstSequence;
+    }
+
+    private void receiveLoop() {
+        final byte[] buffer = new byte[TelemetryRelay.HEADER_SIZE
+                + TelemetryRelay.MAX_SAMPLES * TelemetryRelay.SAMPLE_SIZE];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                mSocket.receive(packet);
+                final long first = decode(buffer, packet.getLength(), mListener);
+                synchronized (this) {
+                    if (first < 0) {
+                        mMalformed++;
+                        continue;
+                    }
+                    final int count = buffer[2] & 0xFF;
+                    if (mNextSequence >= 0 && first > mNextSequence) {
+                        mMissing += first - mNextSequence;
+                    }
+                    mNextSequence = first + count;
+                    mSamples += count;
+                    mBatches++;
+                }
+            }
+        } catch (IOException e) {
+            // Closed.
+        } finally {
+            Platform.log().i(TAG, toString());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: RelayGroundStation PORT");
+            System.exit(2);
+        }
+        Platform.useJvm();
+        final RelayGroundStation station = new RelayGroundStation(Integer.parseInt(args[0]),
+                new Listener() {
+                    @Override
+                    public void onSample(long sequence, long sampleTimeNs, float value,
+                                         int phase) {
+                        System.out.println(String.format("%d %.6f %.2f %s", sequence,
+                                sampleTimeNs / 1e9, value, FlightPhaseDetector.phaseName(phase)));
+                    }
+                });
+        System.err.println("Listening on udp port " + station.getPort());
+        station.start();
+        station.mReceiver.join();
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+
+/**
+ * End-to-end check of {@link TelemetryRelay} against a {@link RelayGroundStation} on the
+ * loopback interface: samples offered to the relay, with one gap in sequence, must arrive
+ * decoded exactly as offered, times to the microsecond, and the gap must be counted as missing
+ * samples.  Runs on any JVM and exits non-zero on a mismatch:
+ *
+ * <pre>
+ * java com.example.android.bluetoothlegatt.RelayLoopback [SAMPLES]
+ * </pre>
+ */
+public final class RelayLoopback {
+
+    public static final int DEFAULT_SAMPLES = 10000;
+
+    private static final int BATCH_SAMPLES = 20;
+    private static final long MAX_LATENCY_NS = 50000000L;
+    private static final long SAMPLE_PERIOD_NS = 10000000L;
+    // Sequence numbers left out, so the station has a gap to find.
+    private static final int GAP = 7;
+    private static final long RECEIVE_TIMEOUT_MS = 5000;
+
+    private RelayLoopback() {
+    }
+
+    /**
+     * @return A report of the relay and the station.
+     * @throws IllegalStateException if a sample arrived altered, out of order or not at all.
+     */
+    public static String run(final int samples) throws IOException, InterruptedException {
+        final int gapAt = samples / 2;
+        final long baseNs = 1234567890123L;
+        final long[] received = new long[1];
+        final String[] mismatch = new String[1];
+        final RelayGroundStation station = new RelayGroundStation(0,
+                new RelayGroundStation.Listener() {
+                    @Override
+                    public void onSample(long sequence, long sampleTimeNs, float value,
+                                         int phase) {
+                        final long expected = received[0] < gapAt ? received[0]
+                                : received[0] + GAP;
+                        received[0]++;
+                        if (mismatch[0] == null && (sequence != expected
+                                || sampleTimeNs != timeOf(baseNs, expected)
+                                || value != valueOf(expected) || phase != phaseOf(expected))) {
+                            mismatch[0] = String.format("sample %d: got #%d %d %f %d", expected,
+                                    sequence, sampleTimeNs, value, phase);
+                        }
+                    }
+                });
+        station.start();
+        // Room for every batch, so nothing is dropped however the threads are scheduled.
+        final TelemetryRelay relay = new TelemetryRelay(
+                TelemetryRelay.createTransport("udp://127.0.0.1:" + station.getPort()),
+                BATCH_SAMPLES, MAX_LATENCY_NS, samples / BATCH_SAMPLES + 2);
+        relay.start();
+        try {
+            for (long sequence = 0; sequence < samples + GAP; sequence++) {
+                if (sequence >= gapAt && sequence < gapAt + GAP) {
+                    continue;
+                }
+                relay.offer(sequence, timeOf(baseNs, sequence),
+                        Platform.clock().elapsedRealtimeNanos(), valueOf(sequence),
+                        phaseOf(sequence));
+                if (sequence % BATCH_SAMPLES == 0) {
+                    // Loopback UDP still drops what the receive buffer cannot hold.
+                    Thread.sleep(1);
+                }
+            }
+            final long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT_MS;
+            while (station.getSampleCount() < samples
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            relay.stop();
+            station.close();
+        }
+
+        if (mismatch[0] != null) {
+            throw new IllegalStateException("Relayed " + mismatch[0]);
+        }
+        if (station.getSampleCount() != samples || station.getMissingCount() != GAP
+                || station.getMalformedCount() != 0) {
+            throw new IllegalStateException("Expected " + samples + " samples with " + GAP
+                    + " missing; " + station);
+        }
+        return relay + "\n" + station;
+    }
+
+    // Offsets within a batch are whole microseconds.
+    private static long timeOf(long baseNs, long sequence) {
+        return baseNs + sequence * SAMPLE_PERIOD_NS + (sequence % 1000) * 1000;
+    }
+
+    private static float valueOf(long sequence) {
+        return 1013.25f - sequence * 0.01f;
+    }
+
+    private static int phaseOf(long sequence) {
+        return (int) (sequence / 1000 % FlightPhaseDetector.PHASE_COUNT);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Platform.useJvm();
+        System.out.println(run(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SAMPLES));
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+
+/**
+ * A connection to a ground-station endpoint that {@link TelemetryRelay} sends batches over.
+ * Implementations are used from the relay's sender thread only.
+ */
+public interface RelayTransport {
+
+    /**
+     * Opens the connection.  Called again after {@link #close()} to reconnect.
+     */
+    void connect() throws IOException;
+
+    /**
+     * Sends one batch as a single datagram or message.
+     */
+    void send(byte[] buffer, int length) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,255 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+
+/**
+ * Streams irregularly timed samples out on a uniform grid of period {@code periodNs}, aligned to
+ * multiples of the period.
+ *
+ * Each segment between two input samples is interpolated linearly, or with a cubic Hermite
+ * spline whose slopes come from the neighbouring samples.  The cubic holds one segment back
+ * until the sample after it arrives; {@link #flush()} releases it.  A segment longer than
+ * {@code maxGapNs} is a gap: its grid points are NaN, and past {@link #MAX_GAP_FILL_NS} the
+ * grid marks it with a single NaN and restarts after it.
+ *
+ * Grid points are written to a primitive output batch by straight-line loops over a
+ * polynomial in the point index, which the JIT can unroll and vectorize.  Not thread-safe.
+ */
+public class Resampler {
+
+    public static final int INTERPOLATION_LINEAR = 0;
+    public static final int INTERPOLATION_CUBIC = 1;
+
+    // Longest gap that is filled with NaN grid points rather than skipped.
+    public static final long MAX_GAP_FILL_NS = 10000000000L;
+    private static final int BATCH_POINTS = 256;
+
+    /**
+     * Receives grid points: {@code values[i]} belongs at {@code firstNs + i * periodNs}.  The
+     * array is reused for the next batch.
+     */
+    public interface Output {
+        void onGrid(long firstNs, long periodNs, float[] values, int count) throws IOException;
+    }
+
+    private final long mPeriodNs;
+    private final int mInterpolation;
+    private long mMaxGapNs;
+    private final Output mOutput;
+
+    // The last four input samples, oldest first; the cubic interpolates between [1] and [2].
+    private final long[] mT = new long[4];
+    private final float[] mV = new float[4];
+    private int mHave;
+    // Next grid time to produce.
+    private long mNextNs;
+
+    private final float[] mBatch = new float[BATCH_POINTS];
+    private long mBatchFirstNs;
+    private int mBatchCount;
+
+    private long mPoints;
+    private long mGapPoints;
+    private long mGaps;
+    private long mRejected;
+
+    /**
+     * @param interpolation {@link #INTERPOLATION_LINEAR} or {@link #INTERPOLATION_CUBIC}.
+     * @param maxGapNs Longest interval between samples that is interpolated across.
+     */
+    public Resampler(long periodNs, int interpolation, long maxGapNs, Output output) {
+        if (periodNs <= 0) {
+            throw new IllegalArgumentException("Grid period must be positive: " + periodNs);
+        }
+        mPeriodNs = periodNs;
+        mInterpolation = interpolation;
+        mMaxGapNs = maxGapNs;
+        mOutput = output;
+    }
+
+    /**
+     * Adds the next sample.  Samples not later than the previous one are rejected.
+     */
+    public void add(long timeNs, float value) throws IOException {
+        if (mHave > 0 && timeNs <= mT[3]) {
+            mRejected++;
+            return;
+        }
+        if (Float.isNaN(value)) {
+            mRejected++;
+            return;
+        }
+        System.arraycopy(mT, 1, mT, 0, 3);
+        System.arraycopy(mV, 1, mV, 0, 3);
+        mT[3] = timeNs;
+        mV[3] = value;
+        if (mHave == 0) {
+            mNextNs = ceilToGrid(timeNs);
+        }
+        if (mHave < 4) {
+            mHave++;
+        }
+
+        if (mInterpolation == INTERPOLATION_CUBIC) {
+            // The segment before the newest one now has its right-hand neighbour.
+            if (mHave >= 3) {
+                segment(1, mHave >= 4, true);
+            }
+        } else if (mHave >= 2) {
+            segment(2, false, false);
+        }
+        emit();
+    }
+
+    /**
+     * Interpolates up to the last sample and hands over every pending grid point.  Call when
+     * the stream ends; the next sample starts a new grid.
+     */
+    public void flush() throws IOException {
+        if (mInterpolation == INTERPOLATION_CUBIC && mHave >= 2) {
+            segment(2, mHave >= 3, false);
+        }
+        if (mHave > 0 && mNextNs == mT[3]) {
+            put(mV[3]);
+        }
+        emit();
+        mHave = 0;
+    }
+
+    /**
+     * Changes the longest interval interpolated across, e.g. when the sample rate changes.
+     */
+    public void setMaxGapNs(long maxGapNs) {
+        mMaxGapNs = maxGapNs;
+    }
+
+    public long getPeriodNs() {
+        return mPeriodNs;
+    }
+
+    public int getInterpolation() {
+        return mInterpolation;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Resampled %d grid points at %.1f ms, %d in %d gaps, %d rejected",
+                mPoints, mPeriodNs / 1e6, mGapPoints, mGaps, mRejected);
+    }
+
+    // Produces grid points in [mT[a], mT[a + 1]).  The flags say whether the samples either side
+    // of the segment are there to shape a cubic.
+    private void segment(int a, boolean before, boolean after) throws IOException {
+        final int b = a + 1;
+        final long t1 = mT[a];
+        final long t2 = mT[b];
+        if (mNextNs >= t2) {
+            return;
+        }
+        final long h = t2 - t1;
+        if (h > mMaxGapNs) {
+            if (mNextNs == t1) {
+                put(mV[a]);
+            }
+            gap(t2);
+            return;
+        }
+        while (mNextNs < t2) {
+            if (mBatchCount == 0) {
+                mBatchFirstNs = mNextNs;
+            }
+            final int n = (int) Math.min(BATCH_POINTS - mBatchCount,
+                    (t2 - mNextNs + mPeriodNs - 1) / mPeriodNs);
+            // Position of the first point in the segment, and the step, as fractions of h.
+            final double s0 = (double) (mNextNs - t1) / h;
+            final double ds = (double) mPeriodNs / h;
+            if (mInterpolation == INTERPOLATION_CUBIC) {
+                cubic(a, before && mT[a] - mT[a - 1] <= mMaxGapNs,
+                        after && mT[b + 1] - mT[b] <= mMaxGapNs, s0, ds, n);
+            } else {
+                linear(mV[a], mV[b], s0, ds, n);
+            }
+            mBatchCount += n;
+            mNextNs += n * mPeriodNs;
+            if (mBatchCount == BATCH_POINTS) {
+                emit();
+            }
+        }
+    }
+
+    private void linear(float v1, float v2, double s0, double ds, int n) {
+        final float[] out = mBatch;
+        final int base = mBatchCount;
+        final double c0 = v1 + (v2 - v1) * s0;
+        final double c1 = (v2 - v1) * ds;
+        for (int i = 0; i < n; i++) {
+            out[base + i] = (float) (c0 + c1 * i);
+        }
+    }
+
+    private void cubic(int a, boolean before, boolean after, double s0, double ds, int n) {
+        final int b = a + 1;
+        final double v1 = mV[a];
+        final double v2 = mV[b];
+        final double h = mT[b] - mT[a];
+        // Slopes scaled to the segment length; one-sided where there is no usable neighbour.
+        final double m1 = before ? (v2 - mV[a - 1]) * h / (mT[b] - mT[a - 1]) : v2 - v1;
+        final double m2 = after ? (mV[b + 1] - v1) * h / (mT[b + 1] - mT[a]) : v2 - v1;
+        // Hermite basis collected into c0 + c1 s + c2 s^2 + c3 s^3.
+        final double c0 = v1;
+        final double c1 = m1;
+        final double c2 = 3 * (v2 - v1) - 2 * m1 - m2;
+        final double c3 = 2 * (v1 - v2) + m1 + m2;
+        final float[] out = mBatch;
+        final int base = mBatchCount;
+        for (int i = 0; i < n; i++) {
+            final double s = s0 + ds * i;
+            out[base + i] = (float) (((c3 * s + c2) * s + c1) * s + c0);
+        }
+    }
+
+    // Marks grid points up to t2 as missing.
+    private void gap(long t2) throws IOException {
+        mGaps++;
+        if (t2 - mNextNs > MAX_GAP_FILL_NS) {
+            put(Float.NaN);
+            mGapPoints++;
+            emit();
+            mNextNs = ceilToGrid(t2);
+            return;
+        }
+        while (mNextNs < t2) {
+            put(Float.NaN);
+            mGapPoints++;
+        }
+    }
+
+    private void put(float value) throws IOException {
+        if (mBatchCount == 0) {
+            mBatchFirstNs = mNextNs;
+        }
+        mBatch[mBatchCount++] = value;
+        mNextNs += mPeriodNs;
+        if (mBatchCount == BATCH_POINTS) {
+            emit();
+        }
+    }
+
+    private void emit() throws IOException {
+        if (mBatchCount == 0) {
+            return;
+        }
+        final int count = mBatchCount;
+        mPoints += count;
+        mBatchCount = 0;
+        mOutput.onGrid(mBatchFirstNs, mPeriodNs, mBatch, count);
+    }
+
+    private long ceilToGrid(long timeNs) {
+        final long remainder = timeNs % mPeriodNs;
+        if (remainder == 0) {
+            return timeNs;
+        }
+        return remainder > 0 ? timeNs - remainder + mPeriodNs : timeNs - remainder;
+    }
+}
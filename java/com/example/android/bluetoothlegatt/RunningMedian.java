@@ -0,0 +1,174 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Median of the last {@code window} values, updated in O(log window) per value.
+ *
+ * The window is a ring of slots split across two heaps: a max-heap holding the lower half and a
+ * min-heap holding the upper half, with the lower half never smaller and at most one larger.
+ * Each slot knows its position in its heap, so the value leaving the window is removed in place
+ * rather than searched for.  All storage is allocated up front.  Not thread-safe.
+ */
+public class RunningMedian {
+
+    private final float[] mValues;
+    // Slot -> index in mLow, or ~index in mHigh.
+    private final int[] mPos;
+    private final int[] mLow;
+    private final int[] mHigh;
+    private int mLowSize;
+    private int mHighSize;
+    private int mNext;
+    private int mCount;
+
+    public RunningMedian(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive: " + window);
+        }
+        mValues = new float[window];
+        mPos = new int[window];
+        mLow = new int[window];
+        mHigh = new int[window];
+    }
+
+    /**
+     * Adds {@code value}, dropping the oldest value once the window is full.
+     */
+    public void add(float value) {
+        final int slot = mNext;
+        if (mCount == mValues.length) {
+            remove(slot);
+        } else {
+            mCount++;
+        }
+        mValues[slot] = value;
+        if (mLowSize == 0 || value <= mValues[mLow[0]]) {
+            push(mLow, mLowSize++, slot, true);
+        } else {
+            push(mHigh, mHighSize++, slot, false);
+        }
+        rebalance();
+        mNext = mNext + 1 == mValues.length ? 0 : mNext + 1;
+    }
+
+    /**
+     * @return The median of the window, the mean of the middle two for an even count, or NaN
+     *         while it is empty.
+     */
+    public float median() {
+        if (mCount == 0) {
+            return Float.NaN;
+        }
+        if (mLowSize > mHighSize) {
+            return mValues[mLow[0]];
+        }
+        return (mValues[mLow[0]] + mValues[mHigh[0]]) / 2;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return The {@code i}th oldest value in the window.
+     */
+    public float get(int i) {
+        if (i < 0 || i >= mCount) {
+            throw new IndexOutOfBoundsException("Index " + i + " of " + mCount);
+        }
+        return mValues[(mNext - mCount + i + mValues.length) % mValues.length];
+    }
+
+    public int getWindow() {
+        return mValues.length;
+    }
+
+    public void reset() {
+        mLowSize = mHighSize = 0;
+        mNext = 0;
+        mCount = 0;
+    }
+
+    private void remove(int slot) {
+        final int pos = mPos[slot];
+        if (pos >= 0) {
+            replace(mLow, --mLowSize, pos, true);
+        } else {
+            replace(mHigh, --mHighSize, ~pos, false);
+        }
+        rebalance();
+    }
+
+    // Restores the size invariant by moving heap tops across.
+    private void rebalance() {
+        if (mLowSize > mHighSize + 1) {
+            final int slot = mLow[0];
+            replace(mLow, --mLowSize, 0, true);
+            push(mHigh, mHighSize++, slot, false);
+        } else if (mHighSize > mLowSize) {
+            final int slot = mHigh[0];
+            replace(mHigh, --mHighSize, 0, false);
+            push(mLow, mLowSize++, slot, true);
+        }
+    }
+
+    // Appends slot at index size of heap and sifts it up.
+    private void push(int[] heap, int size, int slot, boolean max) {
+        set(heap, size, slot, max);
+        siftUp(heap, size, max);
+    }
+
+    // Fills index i of heap with its last element, now at index last, and restores heap order.
+    private void replace(int[] heap, int last, int i, boolean max) {
+        if (i == last) {
+            return;
+        }
+        set(heap, i, heap[last], max);
+        if (!siftUp(heap, i, max)) {
+            siftDown(heap, i, last, max);
+        }
+    }
+
+    private boolean siftUp(int[] heap, int i, boolean max) {
+        final int slot = heap[i];
+        final int start = i;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (!before(slot, heap[parent], max)) {
+                break;
+            }
+            set(heap, i, heap[parent], max);
+            i = parent;
+        }
+        set(heap, i, slot, max);
+        return i != start;
+    }
+
+    private void siftDown(int[] heap, int i, int size, boolean max) {
+        final int slot = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(heap[child + 1], heap[child], max)) {
+                child++;
+            }
+            if (!before(heap[child], slot, max)) {
+                break;
+            }
+            set(heap, i, heap[child], max);
+            i = child;
+        }
+        set(heap, i, slot, max);
+    }
+
+    // True if slot a belongs nearer the top of the heap than slot b.
+    private boolean before(int a, int b, boolean max) {
+        return max ? mValues[a] > mValues[b] : mValues[a] < mValues[b];
+    }
+
+    private void set(int[] heap, int i, int slot, boolean max) {
+        heap[i] = slot;
+        mPos[slot] = max ? i : ~i;
+    }
+}
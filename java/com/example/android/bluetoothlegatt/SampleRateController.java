@@ -0,0 +1,111 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Chooses the altimeter's streaming rate from the flight phase and accounts for what each
+ * phase actually delivered.  Rates are low on the pad and after landing, and highest during
+ * boost, where the interesting dynamics are; the savings are reported against streaming the
+ * whole session at the boost rate.
+ */
+public class SampleRateController {
+
+    // Target rate per phase, indexed by FlightPhaseDetector.PHASE_*.
+    private static final int[] PHASE_RATE_HZ = { 1, 10, 100, 50, 20 };
+
+    private final int mFrameBytes;
+
+    private final long[] mPhaseSamples = new long[FlightPhaseDetector.PHASE_COUNT];
+    private final long[] mPhaseNs = new long[FlightPhaseDetector.PHASE_COUNT];
+    private int mPhase = FlightPhaseDetector.PHASE_IDLE;
+    private long mPhaseStartNs = -1;
+    private long mLastSampleNs;
+
+    /**
+     * @param frameBytes Size of one RX sample frame, used to convert samples into bytes.
+     */
+    public SampleRateController(int frameBytes) {
+        mFrameBytes = frameBytes;
+    }
+
+    public static int rateFor(int phase) {
+        return PHASE_RATE_HZ[phase];
+    }
+
+    public static int maxRate() {
+        int max = 0;
+        for (int rate : PHASE_RATE_HZ) {
+            max = Math.max(max, rate);
+        }
+        return max;
+    }
+
+    public synchronized void onSample(long timeNs) {
+        if (mPhaseStartNs < 0) {
+            mPhaseStartNs = timeNs;
+        }
+        mPhaseSamples[mPhase]++;
+        mLastSampleNs = timeNs;
+    }
+
+    /**
+     * Records a phase change.
+     *
+     * @return The rate to request from the altimeter for the new phase.
+     */
+    public synchronized int onPhaseChanged(int phase, long timeNs) {
+        if (mPhaseStartNs >= 0) {
+            mPhaseNs[mPhase] += timeNs - mPhaseStartNs;
+        }
+        mPhase = phase;
+        mPhaseStartNs = timeNs;
+        return rateFor(phase);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < FlightPhaseDetector.PHASE_COUNT; i++) {
+            mPhaseSamples[i] = 0;
+            mPhaseNs[i] = 0;
+        }
+        mPhase = FlightPhaseDetector.PHASE_IDLE;
+        mPhaseStartNs = -1;
+    }
+
+    /**
+     * @return Samples per second actually received during {@code phase}.
+     */
+    public synchronized double getEffectiveRate(int phase) {
+        final long ns = phaseNs(phase);
+        return ns == 0 ? 0 : mPhaseSamples[phase] / (ns / 1e9);
+    }
+
+    /**
+     * @return Bytes not sent compared with streaming at the highest rate throughout.
+     */
+    public synchronized long getBytesSaved() {
+        final int max = maxRate();
+        long saved = 0;
+        for (int phase = 0; phase < FlightPhaseDetector.PHASE_COUNT; phase++) {
+            final long fullRateSamples = (long) (phaseNs(phase) / 1e9 * max);
+            saved += Math.max(0, fullRateSamples - mPhaseSamples[phase]) * mFrameBytes;
+        }
+        return saved;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("Sample rates:");
+        for (int phase = 0; phase < FlightPhaseDetector.PHASE_COUNT; phase++) {
+            sb.append(String.format(" %s=%.1f/%dHz", FlightPhaseDetector.phaseName(phase),
+                    getEffectiveRate(phase), PHASE_RATE_HZ[phase]));
+        }
+        sb.append(String.format(", saved %d bytes", getBytesSaved()));
+        return sb.toString();
+    }
+
+    private long phaseNs(int phase) {
+        long ns = mPhaseNs[phase];
+        if (phase == mPhase && mPhaseStartNs >= 0) {
+            ns += mLastSampleNs - mPhaseStartNs;
+        }
+        return ns;
+    }
+}
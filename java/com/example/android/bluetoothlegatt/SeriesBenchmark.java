@@ -0,0 +1,108 @@
+package com.example.android.bluetoothlegatt;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+
+import com.jjoe64.graphview.GraphView;
+import com.jjoe64.graphview.Viewport;
+import com.jjoe64.graphview.series.DataPoint;
+import com.jjoe64.graphview.series.LineGraphSeries;
+import com.jjoe64.graphview.series.Series;
+
+/**
+ * Compares heap use and render time of a {@code DataPoint} series against a
+ * {@link ColumnSeries} over the same synthetic flight.
+ *
+ * Heap figures are the growth in used heap after a forced GC while the series is alive, so they
+ * are approximate.  Render time is the mean of several full draws of the graph into an
+ * offscreen bitmap, after one warm-up draw.
+ */
+public final class SeriesBenchmark {
+
+    public static final int DEFAULT_POINTS = 1000000;
+
+    private static final int DRAWS = 5;
+    // Sample interval of the synthetic flight, in seconds.
+    private static final double INTERVAL = 0.001;
+
+    private SeriesBenchmark() {
+    }
+
+    /**
+     * Runs both series through {@code graph}, which must be laid out; it is left empty.  Must
+     * be called on the UI thread.
+     *
+     * @return A one-line report.
+     */
+    public static String run(GraphView graph, int points) {
+        final double[] x = new double[points];
+        final float[] y = new float[points];
+        for (int i = 0; i < points; i++) {
+            x[i] = i * INTERVAL;
+            // A boost, coast and descent, plus sensor noise.
+            final double t = (double) i / points;
+            y[i] = (float) (1000 * Math.sin(Math.PI * Math.min(1, t * 1.6))
+                    + 3 * Math.sin(i * 0.37));
+        }
+
+        // Each series is measured in its own frame, so the first is garbage during the second.
+        final String objects = measureObjects(graph, x, y);
+        final String columns = measureColumns(graph, x, y);
+        return String.format("%d points: DataPoint series %s; column series %s "
+                + "over %.1f MB of columns", points, objects, columns,
+                (x.length * 8L + y.length * 4L) / 1048576.0);
+    }
+
+    private static String measureObjects(GraphView graph, double[] x, float[] y) {
+        final long before = usedHeap();
+        final DataPoint[] data = new DataPoint[x.length];
+        for (int i = 0; i < x.length; i++) {
+            data[i] = new DataPoint(x[i], y[i]);
+        }
+        final LineGraphSeries<DataPoint> series = new LineGraphSeries<DataPoint>(data);
+        final long heap = usedHeap() - before;
+        return report(heap, render(graph, series, x[x.length - 1]));
+    }
+
+    private static String measureColumns(GraphView graph, double[] x, float[] y) {
+        final long before = usedHeap();
+        final ColumnSeries series = new ColumnSeries(x, y, x.length);
+        final long heap = usedHeap() - before;
+        return report(heap, render(graph, series, x[x.length - 1]));
+    }
+
+    private static String report(long heapBytes, double drawMs) {
+        return String.format("%.1f MB, %.1f ms/draw", heapBytes / 1048576.0, drawMs);
+    }
+
+    private static double render(GraphView graph, Series<?> series, double maxX) {
+        graph.removeAllSeries();
+        graph.addSeries(series);
+        final Viewport viewport = graph.getViewport();
+        viewport.setXAxisBoundsManual(true);
+        viewport.setMinX(0);
+        viewport.setMaxX(maxX);
+
+        final Bitmap bitmap = Bitmap.createBitmap(Math.max(1, graph.getWidth()),
+                Math.max(1, graph.getHeight()), Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        graph.draw(canvas);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < DRAWS; i++) {
+            graph.draw(canvas);
+        }
+        final double ms = (SystemClock.elapsedRealtimeNanos() - start) / 1e6 / DRAWS;
+        graph.removeAllSeries();
+        bitmap.recycle();
+        return ms;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe record of the recording session in progress, kept in one memory-mapped page next
+ * to the flight logs so the service can pick the session up again if its process dies.
+ *
+ * The page holds two slots written alternately, each {@code [magic][crc32][length][body]}:
+ * a commit only ever overwrites the older slot, so a process killed mid-commit leaves the
+ * newer one intact, and on open the valid slot with the highest generation wins.  The body
+ * carries whether a session is open, the last committed sequence number and sample time, the
+ * flight phase, how many samples the log held, the log's name and an opaque block of
+ * estimator and filter state written by {@link IngestPipeline}.
+ *
+ * Commits are plain stores into the mapping, which the kernel keeps once made whatever happens
+ * to the process, so they cost a copy and a CRC.  Only {@link #begin} and {@link #end} force
+ * the page to storage; a power loss may lose the periodic commits since, never the slots.
+ */
+public class SessionCheckpoint {
+
+    public static final String FILE_NAME = "session.ckpt";
+    public static final int PAGE_SIZE = 4096;
+
+    private static final int MAGIC = 0x434b5032; // "CKP2"
+    private static final int SLOT_SIZE = PAGE_SIZE / 2;
+    // Magic, CRC and body length.
+    private static final int HEADER_SIZE = 12;
+    // Generation, open flag, sequence, sample time, phase, log samples and the two lengths.
+    private static final int FIXED_SIZE = 8 + 1 + 8 + 8 + 4 + 8 + 2 + 2;
+    private static final int MAX_NAME = 128;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The most state a commit can carry.
+     */
+    public static final int MAX_STATE = SLOT_SIZE - HEADER_SIZE - FIXED_SIZE - MAX_NAME;
+
+    private final MappedByteBuffer mPage;
+    private final ByteBuffer mBody = ByteBuffer.allocate(SLOT_SIZE - HEADER_SIZE)
+            .order(ByteOrder.BIG_ENDIAN);
+    private final CRC32 mCrc = new CRC32();
+
+    private long mGeneration;
+    private int mSlot;
+    private boolean mOpen;
+    private long mSequence = -1;
+    private long mSampleTimeNs;
+    private int mPhase;
+    private long mLogSamples;
+    private byte[] mLogName = new byte[0];
+    // State recovered from the page on open; empty once a new session begins.
+    private byte[] mState = new byte[0];
+    private volatile long mCurrentLogSamples;
+
+    private SessionCheckpoint(MappedByteBuffer page) {
+        mPage = page;
+    }
+
+    /**
+     * Maps {@code file}, creating it if needed, and recovers the last committed slot.
+     */
+    public static SessionCheckpoint open(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final MappedByteBuffer page;
+        try {
+            // The mapping stays valid after the channel is closed.
+            page = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE);
+        } finally {
+            raf.close();
+        }
+        page.order(ByteOrder.BIG_ENDIAN);
+        final SessionCheckpoint checkpoint = new SessionCheckpoint(page);
+        checkpoint.recover();
+        return checkpoint;
+    }
+
+    /**
+     * @return true if the last session was still open when the process died.
+     */
+    public synchronized boolean isResumable() {
+        return mOpen && mLogName.length > 0;
+    }
+
+    /**
+     * Opens a session recording to {@code log}.
+     */
+    public synchronized void begin(File log) {
+        final byte[] name = log.getName().getBytes(UTF_8);
+        if (name.length > MAX_NAME) {
+            throw new IllegalArgumentException("Log name too long: " + log.getName());
+        }
+        mOpen = true;
+        mLogName = name;
+        mState = new byte[0];
+        mCurrentLogSamples = 0;
+        write(mSequence, mSampleTimeNs, mPhase, ByteBuffer.wrap(mState));
+        mPage.force();
+    }
+
+    /**
+     * Notes how many samples the session's log holds; included in the next commit.
+     */
+    public void setLogSamples(long samples) {
+        mCurrentLogSamples = samples;
+    }
+
+    /**
+     * Records the session's progress up to sample {@code sequence}.  Does nothing outside a
+     * session.
+     *
+     * @param state Estimator and filter state, from its position to its limit.
+     * @return false if no session is open.
+     */
+    public synchronized boolean commit(long sequence, long sampleTimeNs, int phase,
+            ByteBuffer state) {
+        if (!mOpen) {
+            return false;
+        }
+        write(sequence, sampleTimeNs, phase, state);
+        return true;
+    }
+
+    /**
+     * Closes the session, so it is not resumed.
+     */
+    public synchronized void end() {
+        if (!mOpen) {
+            return;
+        }
+        mOpen = false;
+        mState = new byte[0];
+        write(mSequence, mSampleTimeNs, mPhase, ByteBuffer.wrap(mState));
+        mPage.force();
+    }
+
+    /**
+     * @return The file name of the session's log, within {@code FlightLog.directory()}.
+     */
+    public synchronized String getLogName() {
+        return new String(mLogName, UTF_8);
+    }
+
+    /**
+     * @return The last committed sequence number, or -1 if none was.
+     */
+    public synchronized long getSequence() {
+        return mSequence;
+    }
+
+    public synchronized long getSampleTimeNs() {
+        return mSampleTimeNs;
+    }
+
+    public synchronized int getPhase() {
+        return mPhase;
+    }
+
+    /**
+     * @return How many samples the log held at the last commit.
+     */
+    public synchronized long getLogSamples() {
+        return mLogSamples;
+    }
+
+    /**
+     * @return The state recovered on open, or an empty buffer once a new session has begun.
+     */
+    public synchronized ByteBuffer getState() {
+        return ByteBuffer.wrap(mState).order(ByteOrder.BIG_ENDIAN).asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Checkpoint %s %s, generation %d, sequence %d, %s, %d samples",
+                mOpen ? "open" : "closed", getLogName(), mGeneration, mSequence,
+                FlightPhaseDetector.phaseName(mPhase), mLogSamples);
+    }
+
+    private void recover() {
+        for (int slot = 0; slot < 2; slot++) {
+            final ByteBuffer body = readSlot(slot);
+            if (body == null) {
+                continue;
+            }
+            final long generation = body.getLong();
+            if (generation <= mGeneration) {
+                continue;
+            }
+            mGeneration = generation;
+            mSlot = slot;
+            mOpen = body.get() != 0;
+            mSequence = body.getLong();
+            mSampleTimeNs = body.getLong();
+            mPhase = body.getInt();
+            mLogSamples = body.getLong();
+            mLogName = new byte[body.getShort()];
+            body.get(mLogName);
+            mState = new byte[body.getShort()];
+            body.get(mState);
+        }
+    }
+
+    // Returns the slot's body if it is intact, or null.
+    private ByteBuffer readSlot(int slot) {
+        final int offset = slot * SLOT_SIZE;
+        final int length = mPage.getInt(offset + 8);
+        if (mPage.getInt(offset) != MAGIC || length < FIXED_SIZE
+                || length > SLOT_SIZE - HEADER_SIZE) {
+            return null;
+        }
+        final byte[] body = new byte[length];
+        final ByteBuffer view = mPage.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.get(body);
+        mCrc.reset();
+        mCrc.update(body, 0, length);
+        if ((int) mCrc.getValue() != mPage.getInt(offset + 4)) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(body).order(ByteOrder.BIG_ENDIAN);
+        // Lengths that do not fit the body mean a slot from some other layout.
+        buffer.position(FIXED_SIZE - 4);
+        final int nameLength = buffer.getShort();
+        if (nameLength < 0 || nameLength > MAX_NAME
+                || FIXED_SIZE - 2 + nameLength > length) {
+            return null;
+        }
+        buffer.position(FIXED_SIZE - 2 + nameLength);
+        final int stateLength = buffer.getShort();
+        if (stateLength < 0 || buffer.position() + stateLength != length) {
+            return null;
+        }
+        buffer.position(0);
+        return buffer;
+    }
+
+    // Fills the older slot with the current session and the given progress.
+    private void write(long sequence, long sampleTimeNs, int phase, ByteBuffer state) {
+        if (state.remaining() > MAX_STATE) {
+            throw new IllegalArgumentException("Checkpoint state too large: "
+                    + state.remaining());
+        }
+        final long logSamples = mCurrentLogSamples;
+        final ByteBuffer body = mBody;
+        body.clear();
+        body.putLong(mGeneration + 1).put((byte) (mOpen ? 1 : 0)).putLong(sequence)
+                .putLong(sampleTimeNs).putInt(phase).putLong(logSamples);
+        body.putShort((short) mLogName.length).put(mLogName);
+        body.putShort((short) state.remaining()).put(state.duplicate());
+        final int length = body.position();
+        mCrc.reset();
+        mCrc.update(body.array(), 0, length);
+
+        final int slot = 1 - mSlot;
+        final int offset = slot * SLOT_SIZE;
+        // Invalidate first, so a slot is never taken for valid while it is half written.
+        mPage.putInt(offset, 0);
+        final ByteBuffer view = mPage.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.put(body.array(), 0, length);
+        mPage.putInt(offset + 4, (int) mCrc.getValue());
+        mPage.putInt(offset + 8, length);
+        mPage.putInt(offset, MAGIC);
+
+        mGeneration++;
+        mSlot = slot;
+        mSequence = sequence;
+        mSampleTimeNs = sampleTimeNs;
+        mPhase = phase;
+        mLogSamples = logSamples;
+    }
+}
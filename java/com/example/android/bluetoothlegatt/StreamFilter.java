@@ -0,0 +1,410 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A streaming operator on one channel: each input value produces one output value.
+ *
+ * Operators keep all their state in fields and buffers sized at construction, so
+ * {@link #process(float)} never allocates or boxes.  They compose with {@link Chain} in any
+ * order.  NaN marks a missing value: it passes through without touching any state.  Instances
+ * are not thread-safe and belong to one channel.
+ *
+ * {@link #saveState(ByteBuffer)} and {@link #restoreState(ByteBuffer)} carry an operator's
+ * history across a process restart; operators that do not override them start afresh.
+ */
+public abstract class StreamFilter {
+
+    /**
+     * @return The filtered value for the next input.
+     */
+    public abstract float process(float x);
+
+    /**
+     * Forgets all history, as if no value had been processed.
+     */
+    public abstract void reset();
+
+    /**
+     * Appends this operator's history to {@code out}.
+     */
+    public void saveState(ByteBuffer out) {
+    }
+
+    /**
+     * Reads back what {@link #saveState(ByteBuffer)} wrote, on an operator built the same way.
+     */
+    public void restoreState(ByteBuffer in) {
+        reset();
+    }
+
+    /**
+     * Runs its stages in order, each feeding the next.
+     */
+    public static final class Chain extends StreamFilter {
+        private final StreamFilter[] mStages;
+
+        public Chain(StreamFilter... stages) {
+            mStages = stages.clone();
+        }
+
+        @Override
+        public float process(float x) {
+            final StreamFilter[] stages = mStages;
+            for (int i = 0; i < stages.length; i++) {
+                x = stages[i].process(x);
+            }
+            return x;
+        }
+
+        @Override
+        public void reset() {
+            for (StreamFilter stage : mStages) {
+                stage.reset();
+            }
+        }
+
+        @Override
+        public void saveState(ByteBuffer out) {
+            for (StreamFilter stage : mStages) {
+                stage.saveState(out);
+            }
+        }
+
+        @Override
+        public void restoreState(ByteBuffer in) {
+            for (StreamFilter stage : mStages) {
+                stage.restoreState(in);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(mStages);
+        }
+    }
+
+    /**
+     * Mean of the last {@code window} values, kept as a running sum over a ring.
+     */
+    public static final class MovingAverage extends StreamFilter {
+        private final float[] mRing;
+        private double mSum;
+        private int mNext;
+        private int mCount;
+
+        public MovingAverage(int window) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("Window must be positive: " + window);
+            }
+            mRing = new float[window];
+        }
+
+        @Override
+        public float process(float x) {
+            if (Float.isNaN(x)) {
+                return x;
+            }
+            if (mCount == mRing.length) {
+                mSum -= mRing[mNext];
+            } else {
+                mCount++;
+            }
+            mRing[mNext] = x;
+            mSum += x;
+            mNext = mNext + 1 == mRing.length ? 0 : mNext + 1;
+            return (float) (mSum / mCount);
+        }
+
+        @Override
+        public void reset() {
+            mSum = 0;
+            mNext = 0;
+            mCount = 0;
+        }
+
+        @Override
+        public void saveState(ByteBuffer out) {
+            out.putInt(mCount);
+            for (int i = 0; i < mCount; i++) {
+                out.putFloat(mRing[(mNext - mCount + i + mRing.length) % mRing.length]);
+            }
+        }
+
+        @Override
+        public void restoreState(ByteBuffer in) {
+            reset();
+            for (int i = in.getInt(); i > 0; i--) {
+                process(in.getFloat());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "mean(" + mRing.length + ")";
+        }
+    }
+
+    /**
+     * Exponential smoothing, {@code y += alpha * (x - y)}, starting from the first value.
+     */
+    public static final class Exponential extends StreamFilter {
+        private final float mAlpha;
+        private float mY;
+        private boolean mStarted;
+
+        /**
+         * @param alpha Weight of each new value, in (0, 1].
+         */
+        public Exponential(float alpha) {
+            if (!(alpha > 0 && alpha <= 1)) {
+                throw new IllegalArgumentException("Alpha must be in (0, 1]: " + alpha);
+            }
+            mAlpha = alpha;
+        }
+
+        @Override
+        public float process(float x) {
+            if (Float.isNaN(x)) {
+                return x;
+            }
+            if (!mStarted) {
+                mStarted = true;
+                mY = x;
+            } else {
+                mY += mAlpha * (x - mY);
+            }
+            return mY;
+        }
+
+        @Override
+        public void reset() {
+            mStarted = false;
+        }
+
+        @Override
+        public void saveState(ByteBuffer out) {
+            out.put((byte) (mStarted ? 1 : 0)).putFloat(mY);
+        }
+
+        @Override
+        public void restoreState(ByteBuffer in) {
+            mStarted = in.get() != 0;
+            mY = in.getFloat();
+        }
+
+        @Override
+        public String toString() {
+            return "ema(" + mAlpha + ")";
+        }
+    }
+
+    /**
+     * Median of the last {@code window} values; see {@link RunningMedian}.
+     */
+    public static final class Median extends StreamFilter {
+        private final RunningMedian mMedian;
+
+        public Median(int window) {
+            mMedian = new RunningMedian(window);
+        }
+
+        @Override
+        public float process(float x) {
+            if (Float.isNaN(x)) {
+                return x;
+            }
+            mMedian.add(x);
+            return mMedian.median();
+        }
+
+        @Override
+        public void reset() {
+            mMedian.reset();
+        }
+
+        @Override
+        public void saveState(ByteBuffer out) {
+            out.putInt(mMedian.size());
+            for (int i = 0; i < mMedian.size(); i++) {
+                out.putFloat(mMedian.get(i));
+            }
+        }
+
+        @Override
+        public void restoreState(ByteBuffer in) {
+            mMedian.reset();
+            for (int i = in.getInt(); i > 0; i--) {
+                mMedian.add(in.getFloat());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "median(" + mMedian.getWindow() + ")";
+        }
+    }
+
+    /**
+     * Second-order low-pass (RBJ cookbook biquad), in transposed direct form II with double
+     * precision state.
+     */
+    public static final class Biquad extends StreamFilter {
+        private final double mB0;
+        private final double mB1;
+        private final double mB2;
+        private final double mA1;
+        private final double mA2;
+        private final float mCutoffHz;
+        private double mZ1;
+        private double mZ2;
+        private boolean mStarted;
+
+        /**
+         * @param q Quality factor; {@code 1 / sqrt(2)} gives a maximally flat pass band.
+         */
+        public static Biquad lowPass(float cutoffHz, float sampleRateHz, float q) {
+            if (!(cutoffHz > 0 && cutoffHz < sampleRateHz / 2)) {
+                throw new IllegalArgumentException("Cutoff " + cutoffHz
+                        + " Hz must be below Nyquist for " + sampleRateHz + " Hz");
+            }
+            final double w0 = 2 * Math.PI * cutoffHz / sampleRateHz;
+            final double cos = Math.cos(w0);
+            final double alpha = Math.sin(w0) / (2 * q);
+            final double a0 = 1 + alpha;
+            return new Biquad(cutoffHz, (1 - cos) / 2 / a0, (1 - cos) / a0, (1 - cos) / 2 / a0,
+                    -2 * cos / a0, (1 - alpha) / a0);
+        }
+
+        private Biquad(float cutoffHz, double b0, double b1, double b2, double a1, double a2) {
+            mCutoffHz = cutoffHz;
+            mB0 = b0;
+            mB1 = b1;
+            mB2 = b2;
+            mA1 = a1;
+            mA2 = a2;
+        }
+
+        @Override
+        public float process(float x) {
+            if (Float.isNaN(x)) {
+                return x;
+            }
+            if (!mStarted) {
+                // Settle on the first value, as if it had always been the input.
+                mStarted = true;
+                mZ1 = x - mB0 * x;
+                mZ2 = mB2 * x - mA2 * x;
+            }
+            final double y = mB0 * x + mZ1;
+            mZ1 = mB1 * x - mA1 * y + mZ2;
+            mZ2 = mB2 * x - mA2 * y;
+            return (float) y;
+        }
+
+        @Override
+        public void reset() {
+            mStarted = false;
+        }
+
+        @Override
+        public void saveState(ByteBuffer out) {
+            out.put((byte) (mStarted ? 1 : 0)).putDouble(mZ1).putDouble(mZ2);
+        }
+
+        @Override
+        public void restoreState(ByteBuffer in) {
+            mStarted = in.get() != 0;
+            mZ1 = in.getDouble();
+            mZ2 = in.getDouble();
+        }
+
+        @Override
+        public String toString() {
+            return "lowpass(" + mCutoffHz + " Hz)";
+        }
+    }
+
+    /**
+     * Replaces isolated spikes with the last accepted value.
+     *
+     * A value further than {@code threshold} times the running mean absolute step from the
+     * last accepted value is rejected.  After {@code maxRejected} rejections in a row the
+     * signal is taken to have really moved and the next value is accepted.
+     */
+    public static final class OutlierRejector extends StreamFilter {
+        // Steps accepted before the mean step is trusted.
+        private static final int WARM_UP = 8;
+        private static final float STEP_ALPHA = 1 / 16f;
+
+        private final float mThreshold;
+        private final int mMaxRejected;
+        private float mLast;
+        private float mMeanStep;
+        private int mAccepted;
+        private int mRejectedRun;
+        private long mRejected;
+
+        public OutlierRejector(float threshold, int maxRejected) {
+            mThreshold = threshold;
+            mMaxRejected = maxRejected;
+        }
+
+        @Override
+        public float process(float x) {
+            if (Float.isNaN(x)) {
+                return x;
+            }
+            if (mAccepted == 0) {
+                mAccepted = 1;
+                mLast = x;
+                return x;
+            }
+            final float step = Math.abs(x - mLast);
+            if (mAccepted > WARM_UP && step > mThreshold * mMeanStep
+                    && mRejectedRun < mMaxRejected) {
+                mRejectedRun++;
+                mRejected++;
+                return mLast;
+            }
+            mRejectedRun = 0;
+            mMeanStep += (mAccepted <= WARM_UP ? 1f / mAccepted : STEP_ALPHA)
+                    * (step - mMeanStep);
+            mAccepted++;
+            mLast = x;
+            return x;
+        }
+
+        @Override
+        public void reset() {
+            mAccepted = 0;
+            mMeanStep = 0;
+            mRejectedRun = 0;
+        }
+
+        @Override
+        public void saveState(ByteBuffer out) {
+            out.putFloat(mLast).putFloat(mMeanStep).putInt(mAccepted).putInt(mRejectedRun)
+                    .putLong(mRejected);
+        }
+
+        @Override
+        public void restoreState(ByteBuffer in) {
+            mLast = in.getFloat();
+            mMeanStep = in.getFloat();
+            mAccepted = in.getInt();
+            mRejectedRun = in.getInt();
+            mRejected = in.getLong();
+        }
+
+        public long getRejected() {
+            return mRejected;
+        }
+
+        @Override
+        public String toString() {
+            return "outliers(" + mThreshold + "x, " + mRejected + " rejected)";
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Simulates a rocket flight and emits it as altimeter RX frames, for soak testing ingest,
+ * storage and analytics without hardware; {@link IngestSoak} drives the pipeline with it.
+ *
+ * A point mass is integrated vertically under thrust, gravity and drag through: idle on the
+ * pad, a thrust curve, coast, apogee, drogue descent, main descent and landing, then idle again
+ * until the requested duration is up.  Pressure follows the standard atmosphere above a slowly
+ * drifting ground pressure, with sensor noise and an overpressure spike at each ejection.
+ * Temperature, acceleration, battery and the device sample clock are filled in too, so every
+ * frame is a full {@link TelemetrySchema#SENSORS} frame with its {@link FrameCrc}, exactly as
+ * the ingest pipeline decodes it.  The device clock is 32 bit microseconds, so runs longer
+ * than 71 minutes wrap it like the real altimeter does.
+ *
+ * Runs are deterministic for a given seed.  Uses no Android APIs, so it runs on any JVM:
+ *
+ * <pre>
+ * java com.example.android.bluetoothlegatt.SyntheticFlight RATE_HZ SECONDS [SEED] [OUT]
+ * </pre>
+ */
+public class SyntheticFlight {
+
+    public static final int MAX_RATE_HZ = 10000;
+    public static final int FRAME_LENGTH =
+            TelemetrySchema.SENSOR_FRAME_LENGTH + FrameCrc.LENGTH;
+
+    // Ground truth phases, also carried in the low bits of the frame's flags byte.
+    public static final int PHASE_PAD = 0;
+    public static final int PHASE_BOOST = 1;
+    public static final int PHASE_COAST = 2;
+    public static final int PHASE_DROGUE = 3;
+    public static final int PHASE_MAIN = 4;
+    public static final int PHASE_LANDED = 5;
+
+    private static final double G = 9.80665;
+    private static final double SEA_LEVEL_DENSITY = 1.225;
+    // Longest integration step, however slow the sample rate.
+    private static final double MAX_STEP_S = 0.001;
+    // Parachutes open over this long rather than instantly.
+    private static final double INFLATION_S = 0.5;
+    private static final double SPIKE_TAU_S = 0.03;
+    private static final double SENSOR_TEMPERATURE_TAU_S = 5;
+    // Ground pressure drifts with the weather, by this much over this period.
+    private static final double DRIFT_HPA = 0.5;
+    private static final double DRIFT_PERIOD_S = 6 * 3600;
+
+    private final int mRateHz;
+    private final long mSamples;
+    private final Random mRandom;
+
+    // Flight parameters; see the setters.
+    private double mPadSeconds = 10;
+    private double mImpulseNs = 160;
+    private double mBurnSeconds = 1.6;
+    private double mDryMassKg = 1.2;
+    private double mPropellantKg = 0.2;
+    private double mBodyCdA = 0.0025;
+    private double mDrogueCdA = 0.048;
+    private double mMainCdA = 0.77;
+    private double mDrogueDelaySeconds = 1;
+    private double mMainAltitudeM = 150;
+    private double mGroundHpa = 1013.25;
+    private double mNoiseHpa = 0.03;
+    private double mSpikeHpa = 4;
+
+    // State.
+    private long mIndex;
+    private double mTime;
+    private double mAltitude;
+    private double mVelocity;
+    private double mAcceleration;
+    private int mPhase = PHASE_PAD;
+    private double mPhaseStart;
+    private double mApogee;
+    private double mApogeeTime = -1;
+    private double mLastEjection = Double.NEGATIVE_INFINITY;
+    private double mTemperature = Double.NaN;
+    private float mPressure;
+
+    /**
+     * @param rateHz Samples per second, up to {@link #MAX_RATE_HZ}.
+     * @param seconds Length of the whole run, pad idle and after landing included.
+     */
+    public SyntheticFlight(int rateHz, double seconds, long seed) {
+        if (rateHz <= 0 || rateHz > MAX_RATE_HZ) {
+            throw new IllegalArgumentException("Rate must be 1.." + MAX_RATE_HZ + " Hz: "
+                    + rateHz);
+        }
+        mRateHz = rateHz;
+        mSamples = (long) (seconds * rateHz);
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Time on the pad before ignition.
+     */
+    public SyntheticFlight setPadSeconds(double seconds) {
+        mPadSeconds = seconds;
+        return this;
+    }
+
+    public SyntheticFlight setMotor(double impulseNs, double burnSeconds, double propellantKg) {
+        mImpulseNs = impulseNs;
+        mBurnSeconds = burnSeconds;
+        mPropellantKg = propellantKg;
+        return this;
+    }
+
+    /**
+     * @param bodyCdA Drag coefficient times reference area of the airframe, in m^2.
+     */
+    public SyntheticFlight setAirframe(double dryMassKg, double bodyCdA) {
+        mDryMassKg = dryMassKg;
+        mBodyCdA = bodyCdA;
+        return this;
+    }
+
+    /**
+     * @param drogueDelaySeconds Ejection delay after apogee.
+     */
+    public SyntheticFlight setRecovery(double drogueCdA, double drogueDelaySeconds,
+                                       double mainCdA, double mainAltitudeM) {
+        mDrogueCdA = drogueCdA;
+        mDrogueDelaySeconds = drogueDelaySeconds;
+        mMainCdA = mainCdA;
+        mMainAltitudeM = mainAltitudeM;
+        return this;
+    }
+
+    /**
+     * @param noiseHpa Standard deviation of the pressure noise.
+     * @param spikeHpa Peak overpressure at each ejection.
+     */
+    public SyntheticFlight setSensor(double groundHpa, double noiseHpa, double spikeHpa) {
+        mGroundHpa = groundHpa;
+        mNoiseHpa = noiseHpa;
+        mSpikeHpa = spikeHpa;
+        return this;
+    }
+
+    /**
+     * Simulates the next sample and writes its frame, {@link #FRAME_LENGTH} bytes.
+     *
+     * @return false once the run is over; the frame is then untouched.
+     */
+    public boolean next(byte[] frame) {
+        if (mIndex >= mSamples) {
+            return false;
+        }
+        final double target = (double) mIndex / mRateHz;
+        while (mTime < target) {
+            step(Math.min(MAX_STEP_S, target - mTime));
+        }
+        encode(frame);
+        mIndex++;
+        return true;
+    }
+
+    /**
+     * Runs to the end, handing every frame to {@code sink} as fast as it accepts them; a full
+     * sink is expected to block rather than refuse straight away.  Frames
+     * are received {@code linkDelayNs} after they were sampled, starting at {@code epochNs}.
+     *
+     * @return The number of frames emitted.
+     */
+    public long run(FrameSink sink, long epochNs, long linkDelayNs)
+            throws InterruptedException {
+        final byte[] frame = new byte[FRAME_LENGTH];
+        long count = 0;
+        while (next(frame)) {
+            final long rxTimeNs = epochNs + getSampleTimeNs() + linkDelayNs;
+            while (!sink.submit(frame, rxTimeNs)) {
+                // Still full after the sink's own wait; offer the frame again.
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return When the last emitted sample was taken, from the start of the run.
+     */
+    public long getSampleTimeNs() {
+        return mIndex == 0 ? 0 : (mIndex - 1) * 1000000000L / mRateHz;
+    }
+
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    public int getPhase() {
+        return mPhase;
+    }
+
+    public double getAltitude() {
+        return mAltitude;
+    }
+
+    public double getApogee() {
+        return mApogee;
+    }
+
+    /**
+     * @return The pressure in the last frame, noise and spikes included.
+     */
+    public float getPressure() {
+        return mPressure;
+    }
+
+    public static String phaseName(int phase) {
+        switch (phase) {
+            case PHASE_PAD:
+                return "pad";
+            case PHASE_BOOST:
+                return "boost";
+            case PHASE_COAST:
+                return "coast";
+            case PHASE_DROGUE:
+                return "drogue";
+            case PHASE_MAIN:
+                return "main";
+            case PHASE_LANDED:
+                return "landed";
+            default:
+                return "phase " + phase;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Synthetic flight at %d Hz: %d of %d samples, %s, apogee %.1f m "
+                        + "at %.2f s", mRateHz, mIndex, mSamples, phaseName(mPhase), mApogee,
+                mApogeeTime);
+    }
+
+    private void step(double dt) {
+        final double flightTime = mTime - mPadSeconds;
+        double thrust = 0;
+        double mass = mDryMassKg;
+        if (flightTime >= 0 && flightTime < mBurnSeconds) {
+            final double u = flightTime / mBurnSeconds;
+            thrust = mImpulseNs / mBurnSeconds * thrustShape(u);
+            mass += mPropellantKg * (1 - u);
+        } else if (flightTime < 0) {
+            mass += mPropellantKg;
+        }
+
+        switch (mPhase) {
+            case PHASE_PAD:
+                if (thrust > mass * G) {
+                    setPhase(PHASE_BOOST);
+                }
+                break;
+            case PHASE_BOOST:
+                if (flightTime >= mBurnSeconds) {
+                    setPhase(PHASE_COAST);
+                }
+                break;
+            case PHASE_COAST:
+                if (mVelocity <= 0 && mApogeeTime < 0) {
+                    mApogeeTime = mTime;
+                }
+                if (mApogeeTime >= 0 && mTime - mApogeeTime >= mDrogueDelaySeconds) {
+                    setPhase(PHASE_DROGUE);
+                    mLastEjection = mTime;
+                }
+                break;
+            case PHASE_DROGUE:
+                if (mAltitude <= mMainAltitudeM) {
+                    setPhase(PHASE_MAIN);
+                    mLastEjection = mTime;
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (mPhase == PHASE_PAD || mPhase == PHASE_LANDED) {
+            mAcceleration = 0;
+            mVelocity = 0;
+        } else {
+            final double density = SEA_LEVEL_DENSITY
+                    * Math.pow(Math.max(0, 1 - mAltitude / 44330.0), 4.255);
+            final double drag = 0.5 * density * mVelocity * Math.abs(mVelocity) * dragArea();
+            mAcceleration = (thrust - drag) / mass - G;
+            mVelocity += mAcceleration * dt;
+            mAltitude += mVelocity * dt;
+            if (mAltitude > mApogee) {
+                mApogee = mAltitude;
+            }
+            if (mAltitude <= 0 && mPhase >= PHASE_DROGUE) {
+                mAltitude = 0;
+                mVelocity = 0;
+                mAcceleration = 0;
+                setPhase(PHASE_LANDED);
+            } else if (mAltitude < 0) {
+                // Still on the rail, thrust not yet above weight.
+                mAltitude = 0;
+                mVelocity = Math.max(0, mVelocity);
+            }
+        }
+        mTime += dt;
+    }
+
+    // Thrust relative to the mean, over the burn: a fast rise to a peak, then a taper.
+    private static double thrustShape(double u) {
+        final double shape = u < 0.1 ? 14 * u : 1.4 - 0.6 * (u - 0.1) / 0.9;
+        // The shape integrates to 1.06 over the burn.
+        return shape / 1.06;
+    }
+
+    private double dragArea() {
+        final double opened = Math.min(1, (mTime - mPhaseStart) / INFLATION_S);
+        switch (mPhase) {
+            case PHASE_DROGUE:
+                return mBodyCdA + opened * mDrogueCdA;
+            case PHASE_MAIN:
+                return mBodyCdA + mDrogueCdA + opened * mMainCdA;
+            default:
+                return mBodyCdA;
+        }
+    }
+
+    private void setPhase(int phase) {
+        mPhase = phase;
+        mPhaseStart = mTime;
+    }
+
+    private void encode(byte[] frame) {
+        final double ground = mGroundHpa
+                + DRIFT_HPA * Math.sin(2 * Math.PI * mTime / DRIFT_PERIOD_S);
+        double pressure = ground * Math.pow(1 - mAltitude / 44330.0, 5.255)
+                + mNoiseHpa * mRandom.nextGaussian();
+        final double sinceEjection = mTime - mLastEjection;
+        if (sinceEjection >= 0) {
+            pressure += mSpikeHpa * Math.exp(-sinceEjection / SPIKE_TAU_S);
+        }
+        mPressure = (float) pressure;
+
+        // The sensor lags the air temperature.
+        final double air = 15 - 0.0065 * mAltitude;
+        mTemperature = Double.isNaN(mTemperature) ? air
+                : mTemperature + (air - mTemperature) / (SENSOR_TEMPERATURE_TAU_S * mRateHz + 1);
+
+        // The accelerometer reads specific force: 1 g at rest, 0 in free fall.
+        final boolean tumbling = mPhase == PHASE_DROGUE || mPhase == PHASE_MAIN;
+        final double lateral = tumbling ? 0.5 : 0.02;
+        final double axial = (mAcceleration + G) / G + 0.02 * mRandom.nextGaussian();
+
+        final int bits = Float.floatToIntBits(mPressure);
+        putInt(frame, 0, bits);
+        putInt(frame, 4, (int) (getTimeMicros() & 0xFFFFFFFFL));
+        putShort(frame, 8, (int) Math.round(mTemperature * 100));
+        putShort(frame, 10, milliG(lateral * mRandom.nextGaussian()));
+        putShort(frame, 12, milliG(lateral * mRandom.nextGaussian()));
+        putShort(frame, 14, milliG(axial));
+        // A 1S LiPo sagging slowly from 4.1 V, in 20 mV steps.
+        frame[16] = (byte) Math.max(0, Math.round((4.1 - mTime / 36000) / 0.02));
+        frame[17] = (byte) mPhase;
+        FrameCrc.append(frame, TelemetrySchema.SENSOR_FRAME_LENGTH);
+    }
+
+    private long getTimeMicros() {
+        return mIndex * 1000000L / mRateHz;
+    }
+
+    private static int milliG(double g) {
+        return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(g * 1000)));
+    }
+
+    private static void putInt(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >>> 24);
+        frame[offset + 1] = (byte) (value >>> 16);
+        frame[offset + 2] = (byte) (value >>> 8);
+        frame[offset + 3] = (byte) value;
+    }
+
+    private static void putShort(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >>> 8);
+        frame[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Writes a run's frames back to back to a file, or to stdout without one, and reports the
+     * flight on stderr.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticFlight RATE_HZ SECONDS [SEED] [OUT]");
+            System.exit(2);
+        }
+        final SyntheticFlight flight = new SyntheticFlight(Integer.parseInt(args[0]),
+                Double.parseDouble(args[1]), args.length > 2 ? Long.parseLong(args[2]) : 1);
+        final OutputStream out = new BufferedOutputStream(
+                args.length > 3 ? new FileOutputStream(args[3]) : System.out, 1 << 16);
+        final byte[] frame = new byte[FRAME_LENGTH];
+        final long start = System.nanoTime();
+        try {
+            while (flight.next(frame)) {
+                out.write(frame);
+            }
+        } finally {
+            out.close();
+        }
+        System.err.println(flight + String.format(", generated in %.2f s",
+                (System.nanoTime() - start) / 1e9));
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A bounded hand-off of {@link TelemetrySnapshot}s from the ingest pipeline to one consumer,
+ * with a policy for what happens when the consumer falls behind:
+ *
+ * <ul>
+ *     <li>{@link #POLICY_BLOCK} - the producer waits for room; nothing is lost.  Only for
+ *         consumers that must see every sample and keep up on average, such as storage.</li>
+ *     <li>{@link #POLICY_DROP_OLDEST} - the oldest queued snapshot makes room for the new one.</li>
+ *     <li>{@link #POLICY_CONFLATE} - only the latest snapshot is kept, for readouts.</li>
+ *     <li>{@link #POLICY_DECIMATE} - only every Nth snapshot is queued, dropping the oldest if
+ *         the queue is still full, for graphs.</li>
+ * </ul>
+ *
+ * Only {@link #POLICY_BLOCK} can delay the producer, so a slow UI on any other policy never
+ * holds up the pipeline.  Each channel counts what it delivered, dropped, conflated and
+ * decimated.
+ */
+public class TelemetryChannel {
+    private final static String TAG = TelemetryChannel.class.getSimpleName();
+
+    public static final int POLICY_BLOCK = 0;
+    public static final int POLICY_DROP_OLDEST = 1;
+    public static final int POLICY_CONFLATE = 2;
+    public static final int POLICY_DECIMATE = 3;
+
+    /**
+     * Receives snapshots on the channel's delivery thread.
+     */
+    public interface Consumer {
+        void deliver(TelemetrySnapshot snapshot) throws InterruptedException;
+    }
+
+    private final String mName;
+    private final int mPolicy;
+    private final int mDecimation;
+    private final TelemetrySnapshot[] mRing;
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+    private Thread mThread;
+
+    private long mOffered;
+    private long mDelivered;
+    private long mDropped;
+    private long mConflated;
+    private long mDecimated;
+
+    /**
+     * @param capacity Snapshots queued for the consumer; conflating channels always hold one.
+     * @param decimation Keep one snapshot in this many; only used by {@link #POLICY_DECIMATE}.
+     */
+    public TelemetryChannel(String name, int policy, int capacity, int decimation) {
+        mName = name;
+        mPolicy = policy;
+        mDecimation = Math.max(1, decimation);
+        mRing = new TelemetrySnapshot[policy == POLICY_CONFLATE ? 1 : Math.max(1, capacity)];
+    }
+
+    public static String policyName(int policy) {
+        switch (policy) {
+            case POLICY_BLOCK:
+                return "block";
+            case POLICY_DROP_OLDEST:
+                return "drop-oldest";
+            case POLICY_CONFLATE:
+                return "conflate";
+            case POLICY_DECIMATE:
+                return "decimate";
+            default:
+                return "policy " + policy;
+        }
+    }
+
+    /**
+     * Hands a snapshot to the consumer according to the channel's policy.  Only blocks for
+     * {@link #POLICY_BLOCK}.
+     *
+     * @return false if the snapshot was decimated away or the channel is closed.
+     */
+    public synchronized boolean offer(TelemetrySnapshot snapshot) throws InterruptedException {
+        if (mClosed) {
+            return false;
+        }
+        mOffered++;
+        if (mPolicy == POLICY_DECIMATE && (mOffered - 1) % mDecimation != 0) {
+            mDecimated++;
+            return false;
+        }
+        if (mCount == mRing.length) {
+            switch (mPolicy) {
+                case POLICY_BLOCK:
+                    while (mCount == mRing.length && !mClosed) {
+                        wait();
+                    }
+                    if (mClosed) {
+                        return false;
+                    }
+                    break;
+                case POLICY_CONFLATE:
+                    mConflated++;
+                    mHead = (mHead + 1) % mRing.length;
+                    mCount--;
+                    break;
+                default:
+                    mDropped++;
+                    mHead = (mHead + 1) % mRing.length;
+                    mCount--;
+                    break;
+            }
+        }
+        mRing[(mHead + mCount) % mRing.length] = snapshot;
+        mCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits for the next snapshot.
+     *
+     * @return null once the channel is closed.
+     */
+    public synchronized TelemetrySnapshot take() throws InterruptedException {
+        while (mCount == 0 && !mClosed) {
+            wait();
+        }
+        if (mCount == 0) {
+            return null;
+        }
+        final TelemetrySnapshot snapshot = mRing[mHead];
+        mRing[mHead] = null;
+        mHead = (mHead + 1) % mRing.length;
+        mCount--;
+        mDelivered++;
+        notifyAll();
+        return snapshot;
+    }
+
+    /**
+     * Starts a thread that feeds every snapshot to {@code consumer} until the channel closes.
+     */
+    public synchronized void start(final Consumer consumer) {
+        mThread = new Thread("Telemetry-" + mName) {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    for (TelemetrySnapshot s = take(); s != null; s = take()) {
+                        consumer.deliver(s);
+                    }
+                } catch (InterruptedException e) {
+                    // Closing.
+                }
+                Log.i(TAG, TelemetryChannel.this.toString());
+            }
+        };
+        mThread.start();
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    public synchronized long getDelivered() {
+        return mDelivered;
+    }
+
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    public synchronized long getConflated() {
+        return mConflated;
+    }
+
+    public synchronized long getDecimated() {
+        return mDecimated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s (%s): offered=%d delivered=%d dropped=%d conflated=%d "
+                        + "decimated=%d", mName, policyName(mPolicy), mOffered, mDelivered,
+                mDropped, mConflated, mDecimated);
+    }
+}
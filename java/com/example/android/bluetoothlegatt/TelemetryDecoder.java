@@ -0,0 +1,183 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link TelemetrySchema} compiled into flat tables.  Fields are grouped by wire width, and
+ * byte order and signedness are folded into per-field byte offsets and a mask, so decoding is
+ * a handful of straight loops over primitive arrays with no per-field type dispatch.  Each
+ * channel is written into its own column.
+ */
+public class TelemetryDecoder {
+
+    private final int mFrameLength;
+
+    // One group per integer width (1, 2 and 4 bytes) plus one for floats.  Offsets are stored
+    // most significant byte first, so little-endian fields just list their bytes in reverse.
+    private final int[] mInt8Channel;
+    private final int[] mInt8Offset;
+    private final long[] mInt8Mask;
+    private final double[] mInt8Scale;
+
+    private final int[] mInt16Channel;
+    private final int[] mInt16Hi;
+    private final int[] mInt16Lo;
+    private final long[] mInt16Mask;
+    private final double[] mInt16Scale;
+
+    private final int[] mInt32Channel;
+    private final int[] mInt32B0;
+    private final int[] mInt32B1;
+    private final int[] mInt32B2;
+    private final int[] mInt32B3;
+    private final long[] mInt32Mask;
+    private final double[] mInt32Scale;
+
+    private final int[] mFloatChannel;
+    private final int[] mFloatB0;
+    private final int[] mFloatB1;
+    private final int[] mFloatB2;
+    private final int[] mFloatB3;
+    private final double[] mFloatScale;
+
+    // Channels this layout does not carry.
+    private final int[] mAbsent;
+
+    TelemetryDecoder(TelemetrySchema schema) {
+        mFrameLength = schema.getFrameLength();
+        final List<TelemetrySchema.Field> fields = schema.getFields();
+
+        int n8 = 0, n16 = 0, n32 = 0, nFloat = 0;
+        final boolean[] present = new boolean[TelemetrySchema.CHANNEL_COUNT];
+        for (TelemetrySchema.Field field : fields) {
+            present[field.channel] = true;
+            if (field.type == TelemetrySchema.TYPE_F32) {
+                nFloat++;
+            } else {
+                switch (TelemetrySchema.sizeOf(field.type)) {
+                    case 1: n8++; break;
+                    case 2: n16++; break;
+                    default: n32++; break;
+                }
+            }
+        }
+
+        mInt8Channel = new int[n8];
+        mInt8Offset = new int[n8];
+        mInt8Mask = new long[n8];
+        mInt8Scale = new double[n8];
+        mInt16Channel = new int[n16];
+        mInt16Hi = new int[n16];
+        mInt16Lo = new int[n16];
+        mInt16Mask = new long[n16];
+        mInt16Scale = new double[n16];
+        mInt32Channel = new int[n32];
+        mInt32B0 = new int[n32];
+        mInt32B1 = new int[n32];
+        mInt32B2 = new int[n32];
+        mInt32B3 = new int[n32];
+        mInt32Mask = new long[n32];
+        mInt32Scale = new double[n32];
+        mFloatChannel = new int[nFloat];
+        mFloatB0 = new int[nFloat];
+        mFloatB1 = new int[nFloat];
+        mFloatB2 = new int[nFloat];
+        mFloatB3 = new int[nFloat];
+        mFloatScale = new double[nFloat];
+
+        int i8 = 0, i16 = 0, i32 = 0, iFloat = 0;
+        for (TelemetrySchema.Field field : fields) {
+            final int size = TelemetrySchema.sizeOf(field.type);
+            final int[] msbFirst = new int[size];
+            for (int b = 0; b < size; b++) {
+                msbFirst[b] = field.offset + (field.bigEndian ? b : size - 1 - b);
+            }
+            final boolean signed = TelemetrySchema.isSigned(field.type);
+            // Fields are read into the top of an int and shifted down, which sign-extends;
+            // the mask then strips the extension from unsigned fields.
+            final long mask = signed ? -1L : (1L << (8 * size)) - 1;
+
+            if (field.type == TelemetrySchema.TYPE_F32) {
+                mFloatChannel[iFloat] = field.channel;
+                mFloatB0[iFloat] = msbFirst[0];
+                mFloatB1[iFloat] = msbFirst[1];
+                mFloatB2[iFloat] = msbFirst[2];
+                mFloatB3[iFloat] = msbFirst[3];
+                mFloatScale[iFloat] = field.scale;
+                iFloat++;
+            } else if (size == 1) {
+                mInt8Channel[i8] = field.channel;
+                mInt8Offset[i8] = msbFirst[0];
+                mInt8Mask[i8] = mask;
+                mInt8Scale[i8] = field.scale;
+                i8++;
+            } else if (size == 2) {
+                mInt16Channel[i16] = field.channel;
+                mInt16Hi[i16] = msbFirst[0];
+                mInt16Lo[i16] = msbFirst[1];
+                mInt16Mask[i16] = mask;
+                mInt16Scale[i16] = field.scale;
+                i16++;
+            } else {
+                mInt32Channel[i32] = field.channel;
+                mInt32B0[i32] = msbFirst[0];
+                mInt32B1[i32] = msbFirst[1];
+                mInt32B2[i32] = msbFirst[2];
+                mInt32B3[i32] = msbFirst[3];
+                mInt32Mask[i32] = mask;
+                mInt32Scale[i32] = field.scale;
+                i32++;
+            }
+        }
+
+        int absent = 0;
+        final int[] missing = new int[TelemetrySchema.CHANNEL_COUNT];
+        for (int channel = 0; channel < TelemetrySchema.CHANNEL_COUNT; channel++) {
+            if (!present[channel]) {
+                missing[absent++] = channel;
+            }
+        }
+        mAbsent = Arrays.copyOf(missing, absent);
+    }
+
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /**
+     * Decodes one frame into row {@code row} of {@code columns}, which is indexed
+     * {@code [channel][row]}.
+     *
+     * @return false, leaving the row untouched, if the frame is shorter than the layout.
+     */
+    public boolean decode(byte[] frame, int length, double[][] columns, int row) {
+        if (length < mFrameLength) {
+            return false;
+        }
+        for (int i = 0; i < mFloatChannel.length; i++) {
+            final int bits = (frame[mFloatB0[i]] & 0xFF) << 24 | (frame[mFloatB1[i]] & 0xFF) << 16
+                    | (frame[mFloatB2[i]] & 0xFF) << 8 | (frame[mFloatB3[i]] & 0xFF);
+            columns[mFloatChannel[i]][row] = Float.intBitsToFloat(bits) * mFloatScale[i];
+        }
+        for (int i = 0; i < mInt32Channel.length; i++) {
+            final int bits = (frame[mInt32B0[i]] & 0xFF) << 24 | (frame[mInt32B1[i]] & 0xFF) << 16
+                    | (frame[mInt32B2[i]] & 0xFF) << 8 | (frame[mInt32B3[i]] & 0xFF);
+            columns[mInt32Channel[i]][row] = (bits & mInt32Mask[i]) * mInt32Scale[i];
+        }
+        for (int i = 0; i < mInt16Channel.length; i++) {
+            final int bits = (frame[mInt16Hi[i]] & 0xFF) << 24 | (frame[mInt16Lo[i]] & 0xFF) << 16;
+            columns[mInt16Channel[i]][row] =
+                    ((bits >> 16) & mInt16Mask[i]) * mInt16Scale[i];
+        }
+        for (int i = 0; i < mInt8Channel.length; i++) {
+            final int bits = frame[mInt8Offset[i]] << 24;
+            columns[mInt8Channel[i]][row] =
+                    ((bits >> 24) & mInt8Mask[i]) * mInt8Scale[i];
+        }
+        for (int channel : mAbsent) {
+            columns[channel][row] = Double.NaN;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards decoded samples to a ground-station endpoint in compact batches.
+ *
+ * A batch is sent once it holds {@code maxSamples} samples or its oldest sample was received
+ * {@code maxLatencyNs} ago.  Finished batches wait in a bounded queue for the sender thread;
+ * when the link is down and the queue fills, the oldest batch is dropped so the ground station
+ * always gets the most recent data once the link returns.  Reconnects back off exponentially
+ * with jitter.
+ *
+ * Batches are big-endian:
+ * <pre>
+ * [magic 'A'][version][sample count][0][first sequence u32][base sample time ns i64]
+ * then per sample: [sample time - base, us u32][pressure f32][flight phase u8]
+ * </pre>
+ * Sequences within a batch are consecutive; a gap in sequence between batches means samples
+ * were dropped.
+ */
+public class TelemetryRelay {
+    private final static String TAG = TelemetryRelay.class.getSimpleName();
+
+    public static final int MAGIC = 'A';
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int SAMPLE_SIZE = 9;
+    // Largest batch that fits the minimum datagram every IPv4 host must accept.
+    public static final int MAX_SAMPLES = (508 - HEADER_SIZE) / SAMPLE_SIZE;
+
+    private static final long MIN_BACKOFF_NS = 250000000L;
+    private static final long MAX_BACKOFF_NS = 10000000000L;
+
+    private static final class Batch {
+        final ByteBuffer data;
+        int count;
+        long firstSequence;
+        long baseTimeNs;
+        long oldestRxTimeNs;
+
+        Batch(int maxSamples) {
+            data = ByteBuffer.allocate(HEADER_SIZE + maxSamples * SAMPLE_SIZE)
+                    .order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    private final RelayTransport mTransport;
+    private final int mMaxSamples;
+    private final long mMaxLatencyNs;
+
+    private final BlockingQueue<Batch> mQueue;
+    private final BlockingQueue<Batch> mFree;
+    private final Random mJitter = new Random();
+    private final LatencyStats mLatency = new LatencyStats("Relay latency");
+    private final Thread mSender;
+
+    // Batch being filled, guarded by this.
+    private Batch mCurrent;
+
+    private volatile boolean mStopped;
+    private final long mStartNs;
+    private long mBytesSent;
+    private long mSamplesSent;
+    private long mBatchesSent;
+    private long mSamplesDropped;
+    private long mConnects;
+
+    /**
+     * @param maxSamples Samples per batch, at most {@link #MAX_SAMPLES}.
+     * @param maxLatencyNs Longest a sample may wait for its batch to fill.
+     * @param queueBatches Finished batches held while the link is slow or down.
+     */
+    public TelemetryRelay(RelayTransport transport, int maxSamples, long maxLatencyNs,
+                          int queueBatches) {
+        if (maxSamples < 1 || maxSamples > MAX_SAMPLES) {
+            throw new IllegalArgumentException("Batch size must be 1.." + MAX_SAMPLES);
+        }
+        mTransport = transport;
+        mMaxSamples = maxSamples;
+        mMaxLatencyNs = maxLatencyNs;
+        mQueue = new ArrayBlockingQueue<Batch>(queueBatches);
+        // Every batch is either queued, being sent or being filled.
+        mFree = new ArrayBlockingQueue<Batch>(queueBatches + 2);
+        for (int i = 0; i < queueBatches + 2; i++) {
+            mFree.add(new Batch(maxSamples));
+        }
+        mStartNs = Platform.clock().elapsedRealtimeNanos();
+        mSender = new Thread("TelemetryRelay") {
+            @Override
+            public void run() {
+                Platform.threads().setBackgroundPriority();
+                sendLoop();
+            }
+        };
+    }
+
+    /**
+     * Creates a transport from a {@code udp://host:port} or {@code ws://host:port/path} URI.
+     */
+    public static RelayTransport createTransport(String uri) {
+        final URI parsed = URI.create(uri);
+        if (parsed.getHost() == null || parsed.getPort() < 0) {
+            throw new IllegalArgumentException("Relay endpoint needs a host and port: " + uri);
+        }
+        if ("udp".equals(parsed.getScheme())) {
+            return new UdpRelayTransport(parsed.getHost(), parsed.getPort());
+        }
+        if ("ws".equals(parsed.getScheme())) {
+            final String path = parsed.getRawPath();
+            return new WebSocketRelayTransport(parsed.getHost(), parsed.getPort(),
+                    path == null || path.isEmpty() ? "/" : path);
+        }
+        throw new IllegalArgumentException("Unsupported relay scheme: " + uri);
+    }
+
+    public void start() {
+        mSender.start();
+    }
+
+    public void stop() {
+        mStopped = true;
+        mSender.interrupt();
+    }
+
+    /**
+     * Adds one sample to the current batch.  Never blocks on the network.
+     */
+    public synchronized void offer(long sequence, long sampleTimeNs, long rxTimeNs, float value,
+                                   int phase) {
+        if (mCurrent != null) {
+            final long offsetUs = (sampleTimeNs - mCurrent.baseTimeNs) / 1000;
+            if (sequence != mCurrent.firstSequence + mCurrent.count
+                    || offsetUs < 0 || offsetUs > 0xFFFFFFFFL) {
+                finishBatch();
+            }
+        }
+        if (mCurrent == null) {
+            mCurrent = mFree.poll();
+            if (mCurrent == null) {
+                // Cannot happen while the pool covers the queue, sender and builder.
+                mSamplesDropped++;
+                return;
+            }
+            mCurrent.count = 0;
+            mCurrent.firstSequence = sequence;
+            mCurrent.baseTimeNs = sampleTimeNs;
+            mCurrent.oldestRxTimeNs = rxTimeNs;
+            mCurrent.data.clear();
+            mCurrent.data.position(HEADER_SIZE);
+        }
+        mCurrent.data.putInt((int) ((sampleTimeNs - mCurrent.baseTimeNs) / 1000));
+        mCurrent.data.putFloat(value);
+        mCurrent.data.put((byte) phase);
+        mCurrent.count++;
+        if (mCurrent.count == mMaxSamples || Platform.clock().elapsedRealtimeNanos()
+                - mCurrent.oldestRxTimeNs >= mMaxLatencyNs) {
+            finishBatch();
+        }
+    }
+
+    public LatencyStats getLatency() {
+        return mLatency;
+    }
+
+    public synchronized double getBytesPerSecond() {
+        final long elapsedNs = Platform.clock().elapsedRealtimeNanos() - mStartNs;
+        return elapsedNs <= 0 ? 0 : mBytesSent / (elapsedNs / 1e9);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Relay %s: %d samples in %d batches, %.0f B/s, dropped %d, "
+                        + "connects %d, %s", mTransport, mSamplesSent, mBatchesSent,
+                getBytesPerSecond(), mSamplesDropped, mConnects, mLatency);
+    }
+
+    // Must hold this.
+    private void finishBatch() {
+        final Batch batch = mCurrent;
+        mCurrent = null;
+        batch.data.put(0, (byte) MAGIC);
+        batch.data.put(1, (byte) VERSION);
+        batch.data.put(2, (byte) batch.count);
+        batch.data.put(3, (byte) 0);
+        batch.data.putInt(4, (int) batch.firstSequence);
+        batch.data.putLong(8, batch.baseTimeNs);
+        while (!mQueue.offer(batch)) {
+            final Batch oldest = mQueue.poll();
+            if (oldest != null) {
+                mSamplesDropped += oldest.count;
+                mFree.offer(oldest);
+            }
+        }
+    }
+
+    private synchronized void finishIfStale(long nowNs) {
+        if (mCurrent != null && nowNs - mCurrent.oldestRxTimeNs >= mMaxLatencyNs) {
+            finishBatch();
+        }
+    }
+
+    private void sendLoop() {
+        boolean connected = false;
+        long backoffNs = MIN_BACKOFF_NS;
+        try {
+            while (!mStopped) {
+                final Batch batch = mQueue.poll(mMaxLatencyNs / 4 + 1, TimeUnit.NANOSECONDS);
+                if (batch == null) {
+                    finishIfStale(Platform.clock().elapsedRealtimeNanos());
+                    continue;
+                }
+                try {
+                    while (!mStopped) {
+                        try {
+                            if (!connected) {
+                                mTransport.connect();
+                                connected = true;
+                                synchronized (this) {
+                                    mConnects++;
+                                }
+                                Platform.log().i(TAG, "Relay connected to " + mTransport);
+                            }
+                            final int length = HEADER_SIZE + batch.count * SAMPLE_SIZE;
+                            mTransport.send(batch.data.array(), length);
+                            final long now = Platform.clock().elapsedRealtimeNanos();
+                            mLatency.record(now - batch.oldestRxTimeNs);
+                            synchronized (this) {
+                                mBytesSent += length;
+                                mSamplesSent += batch.count;
+                                mBatchesSent++;
+                            }
+                            backoffNs = MIN_BACKOFF_NS;
+                            break;
+                        } catch (IOException e) {
+                            Platform.log().w(TAG, "Relay to " + mTransport + " failed: "
+                                    + e.getMessage(), null);
+                            mTransport.close();
+                            connected = false;
+                            // Up to 20% jitter so several phones do not reconnect in lockstep.
+                            final long sleepNs = backoffNs
+                                    + (long) (mJitter.nextDouble() * backoffNs / 5);
+                            TimeUnit.NANOSECONDS.sleep(sleepNs);
+                            backoffNs = Math.min(backoffNs * 2, MAX_BACKOFF_NS);
+                        }
+                    }
+                } finally {
+                    mFree.offer(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopping.
+        } finally {
+            mTransport.close();
+            Platform.log().i(TAG, toString());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes where each telemetry channel sits in one RX frame payload: its byte offset, wire
+ * type, byte order and the linear scale that converts the raw integer into engineering units.
+ * A schema is {@link #compile() compiled} once into a {@link TelemetryDecoder}.
+ *
+ * Every layout shares the same channel numbering, so a channel's column means the same thing
+ * whichever frame it came from; channels a layout does not carry decode as NaN.
+ */
+public class TelemetrySchema {
+
+    // RX sample payloads: a big-endian float, optionally followed by the altimeter's 32 bit
+    // microsecond sample clock and then the other sensors.  Every RX frame, acks included, is
+    // its payload followed by a FrameCrc, so the longest payload is the 20 byte ATT payload
+    // less the CRC.
+    public static final int SAMPLE_FRAME_LENGTH = 4;
+    public static final int TIMED_SAMPLE_FRAME_LENGTH = 8;
+    public static final int SENSOR_FRAME_LENGTH =
+            CommandEncoder.MAX_FRAME_LENGTH - FrameCrc.LENGTH;
+
+    // Channels, in column order.
+    public static final int CHANNEL_PRESSURE = 0;
+    public static final int CHANNEL_DEVICE_MICROS = 1;
+    public static final int CHANNEL_TEMPERATURE = 2;
+    public static final int CHANNEL_ACCEL_X = 3;
+    public static final int CHANNEL_ACCEL_Y = 4;
+    public static final int CHANNEL_ACCEL_Z = 5;
+    public static final int CHANNEL_BATTERY = 6;
+    public static final int CHANNEL_FLAGS = 7;
+    public static final int CHANNEL_COUNT = 8;
+
+    // Wire types.
+    public static final int TYPE_U8 = 0;
+    public static final int TYPE_I8 = 1;
+    public static final int TYPE_U16 = 2;
+    public static final int TYPE_I16 = 3;
+    public static final int TYPE_U32 = 4;
+    public static final int TYPE_I32 = 5;
+    public static final int TYPE_F32 = 6;
+
+    private static final double STANDARD_GRAVITY = 9.80665;
+
+    /** Pressure only: {@code [pressure f32]}. */
+    public static final TelemetrySchema PRESSURE = new TelemetrySchema(
+            SAMPLE_FRAME_LENGTH)
+            .add(CHANNEL_PRESSURE, 0, TYPE_F32, true, 1);
+
+    /** Pressure with the device sample clock: {@code [pressure f32][device us u32]}. */
+    public static final TelemetrySchema TIMED = new TelemetrySchema(
+            TIMED_SAMPLE_FRAME_LENGTH)
+            .add(CHANNEL_PRESSURE, 0, TYPE_F32, true, 1)
+            .add(CHANNEL_DEVICE_MICROS, 4, TYPE_U32, true, 1);
+
+    /**
+     * All sensors in one ATT payload with its CRC: {@code [pressure f32][device us u32]
+     * [temperature i16 centi-C][accel x/y/z i16 mg][battery u8 20 mV][flags u8]}.
+     */
+    public static final TelemetrySchema SENSORS = new TelemetrySchema(
+            SENSOR_FRAME_LENGTH)
+            .add(CHANNEL_PRESSURE, 0, TYPE_F32, true, 1)
+            .add(CHANNEL_DEVICE_MICROS, 4, TYPE_U32, true, 1)
+            .add(CHANNEL_TEMPERATURE, 8, TYPE_I16, true, 0.01)
+            .add(CHANNEL_ACCEL_X, 10, TYPE_I16, true, STANDARD_GRAVITY / 1000)
+            .add(CHANNEL_ACCEL_Y, 12, TYPE_I16, true, STANDARD_GRAVITY / 1000)
+            .add(CHANNEL_ACCEL_Z, 14, TYPE_I16, true, STANDARD_GRAVITY / 1000)
+            .add(CHANNEL_BATTERY, 16, TYPE_U8, true, 0.02)
+            .add(CHANNEL_FLAGS, 17, TYPE_U8, true, 1);
+
+    static final class Field {
+        final int channel;
+        final int offset;
+        final int type;
+        final boolean bigEndian;
+        final double scale;
+
+        Field(int channel, int offset, int type, boolean bigEndian, double scale) {
+            this.channel = channel;
+            this.offset = offset;
+            this.type = type;
+            this.bigEndian = bigEndian;
+            this.scale = scale;
+        }
+    }
+
+    private final int mFrameLength;
+    private final List<Field> mFields = new ArrayList<Field>();
+
+    /**
+     * @param frameLength Payload length of the frames this layout describes, excluding the
+     *                    trailing {@link FrameCrc}.
+     */
+    public TelemetrySchema(int frameLength) {
+        mFrameLength = frameLength;
+    }
+
+    /**
+     * Adds a channel.  The decoded value is {@code raw * scale}.
+     */
+    public TelemetrySchema add(int channel, int offset, int type, boolean bigEndian,
+                               double scale) {
+        if (channel < 0 || channel >= CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Unknown channel " + channel);
+        }
+        if (offset < 0 || offset + sizeOf(type) > mFrameLength) {
+            throw new IllegalArgumentException(channelName(channel) + " does not fit in a "
+                    + mFrameLength + " byte frame");
+        }
+        for (Field field : mFields) {
+            if (field.channel == channel) {
+                throw new IllegalArgumentException(channelName(channel) + " added twice");
+            }
+        }
+        mFields.add(new Field(channel, offset, type, bigEndian, scale));
+        return this;
+    }
+
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    List<Field> getFields() {
+        return mFields;
+    }
+
+    public TelemetryDecoder compile() {
+        return new TelemetryDecoder(this);
+    }
+
+    public static int sizeOf(int type) {
+        switch (type) {
+            case TYPE_U8:
+            case TYPE_I8:
+                return 1;
+            case TYPE_U16:
+            case TYPE_I16:
+                return 2;
+            case TYPE_U32:
+            case TYPE_I32:
+            case TYPE_F32:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    public static boolean isSigned(int type) {
+        return type == TYPE_I8 || type == TYPE_I16 || type == TYPE_I32;
+    }
+
+    public static String channelName(int channel) {
+        switch (channel) {
+            case CHANNEL_PRESSURE:
+                return "pressure";
+            case CHANNEL_DEVICE_MICROS:
+                return "device time";
+            case CHANNEL_TEMPERATURE:
+                return "temperature";
+            case CHANNEL_ACCEL_X:
+                return "accel x";
+            case CHANNEL_ACCEL_Y:
+                return "accel y";
+            case CHANNEL_ACCEL_Z:
+                return "accel z";
+            case CHANNEL_BATTERY:
+                return "battery";
+            case CHANNEL_FLAGS:
+                return "flags";
+            default:
+                return "channel " + channel;
+        }
+    }
+}
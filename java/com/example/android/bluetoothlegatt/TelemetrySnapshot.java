@@ -0,0 +1,33 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Immutable view of the most recent sample published by the {@link IngestPipeline}.  The UI
+ * only ever reads these; it never touches the pipeline's working buffers.
+ */
+public final class TelemetrySnapshot {
+
+    public final long sequence;
+    // Copy of the RX frame the sample was decoded from.
+    public final byte[] raw;
+    public final float value;
+    // Every TelemetrySchema.CHANNEL_*, NaN where the frame did not carry it.
+    public final double[] channels;
+    // The same channels after the pipeline's per-channel filters; raw where none is set.
+    public final double[] filtered;
+    public final long sampleTimeNs;
+    public final long rxTimeNs;
+    public final long publishTimeNs;
+
+    public TelemetrySnapshot(long sequence, byte[] raw, float value, double[] channels,
+                             double[] filtered, long sampleTimeNs, long rxTimeNs,
+                             long publishTimeNs) {
+        this.sequence = sequence;
+        this.raw = raw;
+        this.value = value;
+        this.channels = channels;
+        this.filtered = filtered;
+        this.sampleTimeNs = sampleTimeNs;
+        this.rxTimeNs = rxTimeNs;
+        this.publishTimeNs = publishTimeNs;
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One in-process subscriber to the service's decoded telemetry; see
+ * {@link BluetoothLeService#subscribe(TelemetrySubscription)}.
+ *
+ * The subscriber picks which channels it wants, keeps one sample in {@code decimation}, caps
+ * the rate it is handed samples at, and chooses the thread they arrive on: its own delivery
+ * thread, or a {@link Handler}'s looper such as the main thread.  Every subscriber is handed the
+ * same immutable {@link TelemetrySnapshot}, decoded once by the ingest pipeline, so another
+ * subscriber costs a few comparisons and a queue slot per sample.  Samples pass through a
+ * {@link TelemetryChannel}, so a slow subscriber only ever loses its own samples.
+ *
+ * Configure before subscribing.  A subscription cannot be reused once unsubscribed.
+ */
+public class TelemetrySubscription {
+
+    // Readouts are for people; more updates than this are not readable.
+    public static final float READOUT_RATE_HZ = 20f;
+
+    /**
+     * Receives samples on the subscription's delivery thread.
+     */
+    public interface Listener {
+        void onTelemetry(TelemetrySnapshot snapshot);
+    }
+
+    private final String mName;
+    private final Listener mListener;
+    // Bit set of TelemetrySchema.CHANNEL_*; samples carrying none of them are skipped.
+    private int mChannels = (1 << TelemetrySchema.CHANNEL_COUNT) - 1;
+    private int mDecimation = 1;
+    private long mMinIntervalNs;
+    private Handler mHandler;
+    private int mPolicy = TelemetryChannel.POLICY_CONFLATE;
+    private int mCapacity = 1;
+    private TelemetryChannel mChannel;
+
+    // Only touched by the offering thread.
+    private long mOffered;
+    private long mSkipped;
+
+    public TelemetrySubscription(String name, Listener listener) {
+        mName = name;
+        mListener = listener;
+    }
+
+    /**
+     * A conflated readout of filtered pressure on the main thread at
+     * {@link #READOUT_RATE_HZ}.
+     */
+    public static TelemetrySubscription readout(String name, Listener listener) {
+        return new TelemetrySubscription(name, listener)
+                .channels(TelemetrySchema.CHANNEL_PRESSURE)
+                .maxRateHz(READOUT_RATE_HZ)
+                .deliverOn(new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Limits delivery to samples carrying at least one of {@code channels}.
+     */
+    public TelemetrySubscription channels(int... channels) {
+        checkNotStarted();
+        int mask = 0;
+        for (int channel : channels) {
+            mask |= 1 << channel;
+        }
+        mChannels = mask;
+        return this;
+    }
+
+    /**
+     * Keeps one sample in {@code decimation}, counted over the samples with wanted channels.
+     */
+    public TelemetrySubscription decimation(int decimation) {
+        checkNotStarted();
+        mDecimation = Math.max(1, decimation);
+        return this;
+    }
+
+    /**
+     * Caps delivery at {@code hz}; 0 for no cap.  After each delivery the subscriber counts as
+     * busy for {@code 1 / hz}, so the queue policy sheds samples meanwhile.  The default
+     * conflating queue hands over the latest sample once the interval is up, so the last
+     * sample before the stream pauses is never held back.
+     */
+    public TelemetrySubscription maxRateHz(float hz) {
+        checkNotStarted();
+        mMinIntervalNs = hz <= 0 ? 0 : (long) (1e9 / hz);
+        return this;
+    }
+
+    /**
+     * Delivers on {@code handler}'s looper, or on the subscription's own thread if null.
+     */
+    public TelemetrySubscription deliverOn(Handler handler) {
+        checkNotStarted();
+        mHandler = handler;
+        return this;
+    }
+
+    /**
+     * Sets what happens when the subscriber falls behind; see {@link TelemetryChannel}.  The
+     * default conflates to the latest sample.
+     */
+    public TelemetrySubscription queue(int policy, int capacity) {
+        checkNotStarted();
+        mPolicy = policy;
+        mCapacity = capacity;
+        return this;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    synchronized void start() {
+        checkNotStarted();
+        // Decimation happens here, before the queue, so the channel never decimates.
+        mChannel = new TelemetryChannel(mName, mPolicy, mCapacity, 1);
+        final Handler handler = mHandler;
+        mChannel.start(new TelemetryChannel.Consumer() {
+            @Override
+            public void deliver(final TelemetrySnapshot snapshot) throws InterruptedException {
+                final long startNs = Platform.clock().elapsedRealtimeNanos();
+                if (handler == null) {
+                    mListener.onTelemetry(snapshot);
+                } else {
+                    // Waits for the looper, so the channel's policy decides what to shed while
+                    // it is busy.
+                    final CountDownLatch delivered = new CountDownLatch(1);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                mListener.onTelemetry(snapshot);
+                            } finally {
+                                delivered.countDown();
+                            }
+                        }
+                    });
+                    delivered.await();
+                }
+                if (mMinIntervalNs > 0) {
+                    TimeUnit.NANOSECONDS.sleep(
+                            startNs + mMinIntervalNs - Platform.clock().elapsedRealtimeNanos());
+                }
+            }
+        });
+    }
+
+    synchronized void close() {
+        if (mChannel != null) {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Offers one published sample.  Called on the pipeline's publish thread for every sample,
+     * so it never allocates.
+     *
+     * @return true if it was queued for the subscriber.
+     */
+    boolean offer(TelemetrySnapshot snapshot) throws InterruptedException {
+        if (!carriesWanted(snapshot.channels)) {
+            mSkipped++;
+            return false;
+        }
+        if (mOffered++ % mDecimation != 0) {
+            mSkipped++;
+            return false;
+        }
+        return mChannel.offer(snapshot);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, skipped=%d", mChannel, mSkipped);
+    }
+
+    private boolean carriesWanted(double[] channels) {
+        for (int channel = 0; channel < channels.length; channel++) {
+            if ((mChannels & 1 << channel) != 0 && !Double.isNaN(channels[channel])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkNotStarted() {
+        if (mChannel != null) {
+            throw new IllegalStateException(mName + " is already subscribed");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * Sends relay batches as UDP datagrams.  Lost datagrams are not retransmitted; each batch
+ * carries its first sequence number, so the ground station can see the gaps.
+ */
+public class UdpRelayTransport implements RelayTransport {
+
+    private final String mHost;
+    private final int mPort;
+    private DatagramSocket mSocket;
+    private DatagramPacket mPacket;
+
+    public UdpRelayTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(mHost, mPort);
+        if (address.isUnresolved()) {
+            throw new IOException("Unable to resolve " + mHost);
+        }
+        mSocket = new DatagramSocket();
+        mSocket.connect(address);
+        mPacket = new DatagramPacket(new byte[0], 0, address);
+    }
+
+    @Override
+    public void send(byte[] buffer, int length) throws IOException {
+        mPacket.setData(buffer, 0, length);
+        mSocket.send(mPacket);
+    }
+
+    @Override
+    public void close() {
+        if (mSocket != null) {
+            mSocket.close();
+            mSocket = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "udp://" + mHost + ":" + mPort;
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * A clock that only moves when told to.  Replay and simulation stamp frames with virtual time
+ * instead of {@code SystemClock}, so the same input always produces the same timestamps no
+ * matter how fast it is pushed through the pipeline.
+ */
+public class VirtualClock {
+
+    private volatile long mNowNs;
+
+    public VirtualClock(long startNs) {
+        mNowNs = startNs;
+    }
+
+    public long nowNs() {
+        return mNowNs;
+    }
+
+    /**
+     * Moves the clock forward; attempts to move it backwards are ignored.
+     */
+    public void advanceTo(long ns) {
+        if (ns > mNowNs) {
+            mNowNs = ns;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Base64;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Sends relay batches as binary WebSocket messages (RFC 6455) over plain TCP.  The relay only
+ * ever sends, so anything the server sends back after the handshake is ignored.
+ */
+public class WebSocketRelayTransport implements RelayTransport {
+
+    private static final String HANDSHAKE_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int FIN = 0x80;
+    private static final int MASKED = 0x80;
+    // Frame header: 2 bytes, up to 8 bytes of extended length, 4 byte mask.
+    private static final int MAX_HEADER = 14;
+
+    private final String mHost;
+    private final int mPort;
+    private final String mPath;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final byte[] mMask = new byte[4];
+
+    private Socket mSocket;
+    private OutputStream mOut;
+    private byte[] mFrame = new byte[0];
+
+    public WebSocketRelayTransport(String host, int port, String path) {
+        mHost = host;
+        mPort = port;
+        mPath = path;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mSocket = new Socket();
+        mSocket.setTcpNoDelay(true);
+        mSocket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+        mSocket.setSoTimeout(CONNECT_TIMEOUT_MS);
+
+        final byte[] nonce = new byte[16];
+        mRandom.nextBytes(nonce);
+        final String key = Base64.encodeToString(nonce, Base64.NO_WRAP);
+        final String request = "GET " + mPath + " HTTP/1.1\r\n"
+                + "Host: " + mHost + ":" + mPort + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+        mOut = new BufferedOutputStream(mSocket.getOutputStream());
+        mOut.write(request.getBytes(ASCII));
+        mOut.flush();
+
+        final InputStream in = mSocket.getInputStream();
+        final String status = readLine(in);
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new IOException("WebSocket upgrade refused: " + status);
+        }
+        String accept = null;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            final int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim()
+                    .equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                accept = line.substring(colon + 1).trim();
+            }
+        }
+        if (!expectedAccept(key).equals(accept)) {
+            throw new IOException("Bad Sec-WebSocket-Accept: " + accept);
+        }
+        mSocket.setSoTimeout(0);
+    }
+
+    @Override
+    public void send(byte[] buffer, int length) throws IOException {
+        if (mFrame.length < MAX_HEADER + length) {
+            mFrame = new byte[MAX_HEADER + length];
+        }
+        int n = 0;
+        mFrame[n++] = (byte) (FIN | OPCODE_BINARY);
+        if (length < 126) {
+            mFrame[n++] = (byte) (MASKED | length);
+        } else if (length <= 0xFFFF) {
+            mFrame[n++] = (byte) (MASKED | 126);
+            mFrame[n++] = (byte) (length >>> 8);
+            mFrame[n++] = (byte) length;
+        } else {
+            mFrame[n++] = (byte) (MASKED | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mFrame[n++] = (byte) ((long) length >>> shift);
+            }
+        }
+        // Client frames must be masked.
+        mRandom.nextBytes(mMask);
+        System.arraycopy(mMask, 0, mFrame, n, mMask.length);
+        n += mMask.length;
+        for (int i = 0; i < length; i++) {
+            mFrame[n++] = (byte) (buffer[i] ^ mMask[i & 3]);
+        }
+        mOut.write(mFrame, 0, n);
+        mOut.flush();
+    }
+
+    @Override
+    public void close() {
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // Already broken; nothing to release.
+            }
+            mSocket = null;
+            mOut = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ws://" + mHost + ":" + mPort + mPath;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed during WebSocket handshake");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String expectedAccept(String key) throws IOException {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.encodeToString(sha1.digest((key + HANDSHAKE_GUID).getBytes(ASCII)),
+                    Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}